@@ -4,11 +4,17 @@ import android.content.Context;
 import android.os.Environment;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import qian.jimmie.cn.volley.volley.builder.ImageBuilder;
 import qian.jimmie.cn.volley.volley.builder.StringBuilder;
 import qian.jimmie.cn.volley.volley.cache.DiskBasedCache;
+import qian.jimmie.cn.volley.volley.cache.TieredCache;
+import qian.jimmie.cn.volley.volley.cache.WriteBehindCache;
 import qian.jimmie.cn.volley.volley.core.RequestQueue;
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
 import qian.jimmie.cn.volley.volley.core.interfaces.Network;
 import qian.jimmie.cn.volley.volley.exception.VolleyLog;
 import qian.jimmie.cn.volley.volley.network.BasicNetwork;
@@ -36,6 +42,27 @@ public class Bees {
      * 设置缓存的最大值(硬盘缓存)
      */
     public static RequestQueue newRequestQueue(Context context, long maxDiskCacheBytes) {
+        return newRequestQueue(context, maxDiskCacheBytes, 0);
+    }
+
+    /**
+     * 创建一个默认的请求队列,同时设置硬盘缓存和内存缓存的最大值
+     *
+     * @param maxMemoryCacheBytes 内存缓存的最大值,大于 0 时在硬盘缓存前面加一层内存缓存 {@link TieredCache}
+     */
+    public static RequestQueue newRequestQueue(Context context, long maxDiskCacheBytes,
+                                               long maxMemoryCacheBytes) {
+        return newRequestQueue(context, maxDiskCacheBytes, maxMemoryCacheBytes, false);
+    }
+
+    /**
+     * 创建一个默认的请求队列
+     *
+     * @param maxMemoryCacheBytes 内存缓存的最大值,大于 0 时在硬盘缓存前面加一层内存缓存 {@link TieredCache}
+     * @param writeBehind         true: 硬盘缓存由单独的线程延迟写入 {@link WriteBehindCache},网络线程不再等待写文件
+     */
+    public static RequestQueue newRequestQueue(Context context, long maxDiskCacheBytes,
+                                               long maxMemoryCacheBytes, boolean writeBehind) {
         if (queue != null) return queue;
         File cacheDir;
         if (context == null)
@@ -46,14 +73,25 @@ public class Bees {
         // 使用 stack 并将结果转换为可被ResponseDelivery处理的NetworkResponse
         Network network = new BasicNetwork(new HurlStack());
 
+        DiskBasedCache diskCache;
         if (maxDiskCacheBytes <= -1) {
             VolleyLog.e("不进行缓存");
             // 未设置缓存大小 使用默认缓存 (5M)
-            queue = new RequestQueue(new DiskBasedCache(cacheDir), network);
+            diskCache = new DiskBasedCache(cacheDir);
         } else {
             // 设置缓存大小 (bytes)
-            queue = new RequestQueue(new DiskBasedCache(cacheDir, maxDiskCacheBytes), network);
+            diskCache = new DiskBasedCache(cacheDir, maxDiskCacheBytes);
         }
+        Cache cache = diskCache;
+        if (writeBehind) {
+            cache = new WriteBehindCache(cache);
+        }
+        if (maxMemoryCacheBytes > 0) {
+            cache = new TieredCache(cache, maxMemoryCacheBytes);
+        }
+        queue = new RequestQueue(cache, network);
+        // 硬盘缓存的淘汰和读写字节数记录到队列的统计中
+        diskCache.setStats(queue.getCacheStats());
 
         // 开始轮循
         queue.start();
@@ -73,6 +111,17 @@ public class Bees {
         return new StringBuilder(queue, request);
     }
 
+    /**
+     * 预取一组 url 的响应到缓存中 (GET),见 {@link RequestQueue#prefetch(Collection)}
+     */
+    public static void prefetch(Collection<String> urls) {
+        List<Request<?>> requests = new ArrayList<>(urls.size());
+        for (String url : urls) {
+            requests.add(new StringRequest().setUrl(url));
+        }
+        queue.prefetch(requests);
+    }
+
     public static ImageBuilder newImageRequest() {
         Request request = new ImageRequest();
         return new ImageBuilder(queue, request);
@@ -0,0 +1,123 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache.Entry;
+import qian.jimmie.cn.volley.volley.effict.ByteBufferInputStream;
+
+/**
+ * 复制 {@link Entry} 的工具方法,供包装其他缓存的实现使用
+ */
+final class CacheEntries {
+
+    private CacheEntries() {
+    }
+
+    /**
+     * 返回条目的浅拷贝,实体数据和响应头共享. 修改副本的 ttl 等字段不会影响原条目
+     */
+    static Entry copyOf(Entry entry) {
+        Entry copy = new Entry();
+        copy.data = entry.data;
+        copy.buffer = entry.buffer;
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.lastModified = entry.lastModified;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.responseHeaders = entry.responseHeaders;
+        return copy;
+    }
+
+    /**
+     * 返回一个新的条目: 实体数据来自 entry,元数据 (ttl,softTtl,etag,日期,响应头) 来自 metadata
+     */
+    static Entry withMetadata(Entry entry, Entry metadata) {
+        Entry copy = copyOf(metadata);
+        copy.data = entry.data;
+        copy.buffer = entry.buffer;
+        return copy;
+    }
+
+    /**
+     * 只复制元数据,data 和 buffer 为 null
+     */
+    static Entry metadataOf(Entry entry) {
+        Entry copy = copyOf(entry);
+        copy.data = null;
+        copy.buffer = null;
+        return copy;
+    }
+
+    /**
+     * 把已经在内存中 (或者映射自缓存文件) 的条目包装成 {@link Cache.EntryStream}
+     */
+    static Cache.EntryStream streamOf(Entry entry) {
+        InputStream stream;
+        long length;
+        if (entry.data == null && entry.buffer != null) {
+            stream = new ByteBufferInputStream(entry.buffer);
+            length = entry.buffer.limit();
+        } else {
+            stream = new ByteArrayInputStream(entry.data);
+            length = entry.data.length;
+        }
+        return new Cache.EntryStream(metadataOf(entry), stream, length);
+    }
+
+    /**
+     * 在内存中缓冲实体,提交时调用 {@link Cache#put(String, Entry)} 的写入流.
+     * 供不能直接写入文件的缓存实现使用
+     */
+    static Cache.EntryWriter bufferingWriter(final Cache cache, final String key, final Entry metadata) {
+        return new Cache.EntryWriter() {
+            private ByteArrayOutputStream mBody = new ByteArrayOutputStream();
+            private Entry mMetadata = metadata;
+
+            @Override
+            public void write(int b) throws IOException {
+                body().write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                body().write(b, off, len);
+            }
+
+            @Override
+            public void setMetadata(Entry metadata) {
+                mMetadata = metadata;
+            }
+
+            @Override
+            public void commit() throws IOException {
+                Entry entry = copyOf(mMetadata);
+                entry.data = body().toByteArray();
+                entry.buffer = null;
+                mBody = null;
+                cache.put(key, entry);
+            }
+
+            @Override
+            public void abort() {
+                mBody = null;
+            }
+
+            @Override
+            public void close() {
+                abort();
+            }
+
+            private ByteArrayOutputStream body() throws IOException {
+                if (mBody == null) {
+                    throw new IOException("writer already committed or aborted");
+                }
+                return mBody;
+            }
+        };
+    }
+}
@@ -0,0 +1,428 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.util.Arrays;
+
+/**
+ * {@link DiskBasedCache} 的内存索引: 以 key 的 64 位哈希为键的开放寻址(线性探测)哈希表.
+ * <p>
+ * 每个条目只占一个 long[] 中连续的 5 个 long (哈希,大小,ttl,softTtl,最后访问序号),
+ * 不为每个条目创建对象,也不保存 key,etag 和响应头 (命中时从缓存文件读取).
+ * 缓存文件本身就是按 key 的哈希命名的,所以按哈希索引与磁盘上的布局一致.
+ * <p>
+ * 哈希 0 表示空槽,{@link DiskBasedCache#hashKey(String)} 不会返回 0.
+ * 所有方法在自身上同步,每个操作都是 O(1) 的内存操作.
+ * <p>
+ * 另有一个按 ttl 排列的最小堆 (每项为 ttl 和哈希两个 long),用于找出已经过期的条目.
+ * 删除条目或者修改 ttl 时不从堆中删除旧的项,取出时与表中的 ttl 对比,不一致的项直接丢弃;
+ * 失效的项过多时根据表重建堆.
+ */
+final class CacheIndex {
+
+    private static final int HASH = 0;
+    private static final int SIZE = 1;
+    private static final int TTL = 2;
+    private static final int SOFT_TTL = 3;
+    private static final int ACCESS = 4;
+    private static final int STRIDE = 5;
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * 条目数超过容量的该比例时扩容
+     */
+    private static final float LOAD_FACTOR = 0.6f;
+
+    /**
+     * 过期堆中的项数超过条目数的该倍数时重建
+     */
+    private static final int MAX_EXPIRY_HEAP_RATIO = 2;
+
+    /**
+     * 槽位数组,容量为 2 的幂,每个槽位 STRIDE 个 long
+     */
+    private long[] mSlots;
+
+    private int mCapacity;
+
+    private int mCount;
+
+    /**
+     * 所有条目的大小之和
+     */
+    private long mTotalSize;
+
+    /**
+     * 过期堆,第 i 项的 ttl 和哈希分别在 2i 和 2i+1
+     */
+    private long[] mExpiryHeap = new long[2 * MIN_CAPACITY];
+
+    private int mExpiryCount;
+
+    CacheIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    synchronized int count() {
+        return mCount;
+    }
+
+    synchronized long totalSize() {
+        return mTotalSize;
+    }
+
+    synchronized boolean contains(long hash) {
+        return find(hash) >= 0;
+    }
+
+    /**
+     * 返回条目的大小,不存在时返回 -1
+     */
+    synchronized long sizeOf(long hash) {
+        int slot = find(hash);
+        return slot < 0 ? -1 : mSlots[slot * STRIDE + SIZE];
+    }
+
+    /**
+     * 放入或替换条目
+     */
+    synchronized void put(long hash, long size, long ttl, long softTtl, long access) {
+        int slot = find(hash);
+        if (slot < 0) {
+            if (mCount + 1 > mCapacity * LOAD_FACTOR) {
+                allocate(mCapacity * 2);
+            }
+            slot = ~find(hash);
+            mCount++;
+        } else {
+            mTotalSize -= mSlots[slot * STRIDE + SIZE];
+        }
+        int base = slot * STRIDE;
+        mSlots[base + HASH] = hash;
+        mSlots[base + SIZE] = size;
+        mSlots[base + TTL] = ttl;
+        mSlots[base + SOFT_TTL] = softTtl;
+        mSlots[base + ACCESS] = access;
+        mTotalSize += size;
+        pushExpiry(ttl, hash);
+    }
+
+    /**
+     * 只更新 ttl 和 softTtl
+     *
+     * @return false 表示条目不存在
+     */
+    synchronized boolean updateTtl(long hash, long ttl, long softTtl) {
+        int slot = find(hash);
+        if (slot < 0) {
+            return false;
+        }
+        mSlots[slot * STRIDE + TTL] = ttl;
+        mSlots[slot * STRIDE + SOFT_TTL] = softTtl;
+        pushExpiry(ttl, hash);
+        return true;
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @return false 表示条目不存在
+     */
+    synchronized boolean touch(long hash, long access) {
+        int slot = find(hash);
+        if (slot < 0) {
+            return false;
+        }
+        mSlots[slot * STRIDE + ACCESS] = access;
+        return true;
+    }
+
+    /**
+     * @return 被删除的条目是否存在
+     */
+    synchronized boolean remove(long hash) {
+        int slot = find(hash);
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * 只有在条目的最后访问序号仍为 access 时删除 (淘汰时使用: 取得快照后被访问或重新写入的条目不淘汰)
+     */
+    synchronized boolean removeIfUnchanged(long hash, long access) {
+        int slot = find(hash);
+        if (slot < 0 || mSlots[slot * STRIDE + ACCESS] != access) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * 只有在条目的 ttl 早于 now 时删除
+     */
+    synchronized boolean removeIfExpired(long hash, long now) {
+        int slot = find(hash);
+        if (slot < 0 || mSlots[slot * STRIDE + TTL] >= now) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * 从过期堆中取出 ttl 早于 now 的条目,最先过期的在前. 取出的条目仍留在表中,由调用者删除
+     *
+     * @param hashes 存放结果
+     * @return 取出的条目数,不超过 hashes 的长度
+     */
+    synchronized int pollExpired(long now, long[] hashes) {
+        int n = 0;
+        while (n < hashes.length && mExpiryCount > 0 && mExpiryHeap[0] < now) {
+            long ttl = mExpiryHeap[0];
+            long hash = mExpiryHeap[1];
+            popExpiry();
+            int slot = find(hash);
+            if (slot >= 0 && mSlots[slot * STRIDE + TTL] == ttl) {
+                hashes[n++] = hash;
+            }
+        }
+        return n;
+    }
+
+    synchronized void clear() {
+        mSlots = null;
+        allocate(MIN_CAPACITY);
+        mTotalSize = 0;
+        mExpiryHeap = new long[2 * MIN_CAPACITY];
+        mExpiryCount = 0;
+    }
+
+    /**
+     * 按访问顺序(最久未使用的在前)返回所有条目的快照
+     */
+    synchronized Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(mCount);
+        int[] slots = new int[mCount];
+        int n = 0;
+        for (int slot = 0; slot < mCapacity; slot++) {
+            if (mSlots[slot * STRIDE + HASH] != 0) {
+                slots[n++] = slot;
+            }
+        }
+        // 按访问序号排序槽位
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = mSlots[slots[i] * STRIDE + ACCESS];
+        }
+        sortByKey(keys, slots, n);
+        for (int i = 0; i < n; i++) {
+            int base = slots[i] * STRIDE;
+            snapshot.hashes[i] = mSlots[base + HASH];
+            snapshot.sizes[i] = mSlots[base + SIZE];
+            snapshot.ttls[i] = mSlots[base + TTL];
+            snapshot.softTtls[i] = mSlots[base + SOFT_TTL];
+            snapshot.accesses[i] = mSlots[base + ACCESS];
+        }
+        return snapshot;
+    }
+
+    /**
+     * 索引中所有条目的只读副本,按访问顺序排列
+     */
+    static final class Snapshot {
+        final int count;
+        final long[] hashes;
+        final long[] sizes;
+        final long[] ttls;
+        final long[] softTtls;
+        final long[] accesses;
+
+        Snapshot(int count) {
+            this.count = count;
+            hashes = new long[count];
+            sizes = new long[count];
+            ttls = new long[count];
+            softTtls = new long[count];
+            accesses = new long[count];
+        }
+    }
+
+    private void pushExpiry(long ttl, long hash) {
+        if (mExpiryCount >= MAX_EXPIRY_HEAP_RATIO * mCount + MIN_CAPACITY) {
+            rebuildExpiryHeap();
+            // 重建后已经包含了刚刚写入的 ttl
+            return;
+        }
+        if (2 * mExpiryCount == mExpiryHeap.length) {
+            mExpiryHeap = Arrays.copyOf(mExpiryHeap, mExpiryHeap.length * 2);
+        }
+        int i = mExpiryCount++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (mExpiryHeap[2 * parent] <= ttl) {
+                break;
+            }
+            mExpiryHeap[2 * i] = mExpiryHeap[2 * parent];
+            mExpiryHeap[2 * i + 1] = mExpiryHeap[2 * parent + 1];
+            i = parent;
+        }
+        mExpiryHeap[2 * i] = ttl;
+        mExpiryHeap[2 * i + 1] = hash;
+    }
+
+    private void popExpiry() {
+        mExpiryCount--;
+        mExpiryHeap[0] = mExpiryHeap[2 * mExpiryCount];
+        mExpiryHeap[1] = mExpiryHeap[2 * mExpiryCount + 1];
+        siftDown(0);
+    }
+
+    private void siftDown(int i) {
+        long ttl = mExpiryHeap[2 * i];
+        long hash = mExpiryHeap[2 * i + 1];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= mExpiryCount) {
+                break;
+            }
+            if (child + 1 < mExpiryCount && mExpiryHeap[2 * (child + 1)] < mExpiryHeap[2 * child]) {
+                child++;
+            }
+            if (mExpiryHeap[2 * child] >= ttl) {
+                break;
+            }
+            mExpiryHeap[2 * i] = mExpiryHeap[2 * child];
+            mExpiryHeap[2 * i + 1] = mExpiryHeap[2 * child + 1];
+            i = child;
+        }
+        mExpiryHeap[2 * i] = ttl;
+        mExpiryHeap[2 * i + 1] = hash;
+    }
+
+    /**
+     * 丢弃失效的项,根据表中当前的 ttl 重建过期堆
+     */
+    private void rebuildExpiryHeap() {
+        mExpiryHeap = new long[2 * Math.max(MIN_CAPACITY, mCount * 2)];
+        mExpiryCount = 0;
+        for (int slot = 0; slot < mCapacity; slot++) {
+            int base = slot * STRIDE;
+            if (mSlots[base + HASH] != 0) {
+                mExpiryHeap[2 * mExpiryCount] = mSlots[base + TTL];
+                mExpiryHeap[2 * mExpiryCount + 1] = mSlots[base + HASH];
+                mExpiryCount++;
+            }
+        }
+        for (int i = mExpiryCount / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    /**
+     * 返回 hash 所在的槽位; 不存在时返回 ~(应插入的空槽位)
+     */
+    private int find(long hash) {
+        int mask = mCapacity - 1;
+        int slot = mix(hash) & mask;
+        while (true) {
+            long current = mSlots[slot * STRIDE + HASH];
+            if (current == hash) {
+                return slot;
+            }
+            if (current == 0) {
+                return ~slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * 删除槽位,并把后面同一探测链上的条目前移 (不使用墓碑)
+     */
+    private void removeSlot(int slot) {
+        mTotalSize -= mSlots[slot * STRIDE + SIZE];
+        mCount--;
+        int mask = mCapacity - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (mSlots[next * STRIDE + HASH] != 0) {
+            int home = mix(mSlots[next * STRIDE + HASH]) & mask;
+            // home 不在 (hole, next] 之间时,条目可以移动到 hole
+            boolean movable = hole <= next
+                    ? (home <= hole || home > next)
+                    : (home <= hole && home > next);
+            if (movable) {
+                System.arraycopy(mSlots, next * STRIDE, mSlots, hole * STRIDE, STRIDE);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        Arrays.fill(mSlots, hole * STRIDE, hole * STRIDE + STRIDE, 0L);
+    }
+
+    private void allocate(int capacity) {
+        long[] old = mSlots;
+        int oldCapacity = mCapacity;
+        mSlots = new long[capacity * STRIDE];
+        mCapacity = capacity;
+        mCount = 0;
+        if (old == null) {
+            return;
+        }
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int base = slot * STRIDE;
+            if (old[base + HASH] != 0) {
+                int target = ~find(old[base + HASH]);
+                System.arraycopy(old, base, mSlots, target * STRIDE, STRIDE);
+                mCount++;
+            }
+        }
+    }
+
+    /**
+     * 文件名已经用到了哈希的高位,槽位再打散一次低位
+     */
+    private static int mix(long hash) {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * 按 keys 升序排序 slots (归并排序,稳定)
+     */
+    private static void sortByKey(long[] keys, int[] slots, int n) {
+        long[] keyBuffer = new long[n];
+        int[] slotBuffer = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    if (keys[j] < keys[i]) {
+                        keyBuffer[k] = keys[j];
+                        slotBuffer[k++] = slots[j++];
+                    } else {
+                        keyBuffer[k] = keys[i];
+                        slotBuffer[k++] = slots[i++];
+                    }
+                }
+                while (i < mid) {
+                    keyBuffer[k] = keys[i];
+                    slotBuffer[k++] = slots[i++];
+                }
+                while (j < hi) {
+                    keyBuffer[k] = keys[j];
+                    slotBuffer[k++] = slots[j++];
+                }
+            }
+            System.arraycopy(keyBuffer, 0, keys, 0, n);
+            System.arraycopy(slotBuffer, 0, slots, 0, n);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+
+import qian.jimmie.cn.volley.volley.exception.VolleyLog;
+
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readInt;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readLong;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.writeInt;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.writeLong;
+
+/**
+ * {@link DiskBasedCache} 的索引日志 (参考 DiskLruCache 的 journal)
+ * <p>
+ * 只追加写入,记录每条缓存的 key 的哈希,大小,ttl 以及访问顺序(LRU).
+ * 启动时只需顺序读取这一个文件,就能恢复内存中的索引,不再需要打开每一个缓存文件.
+ * 冗余记录过多时会重写(压缩)日志.
+ * <p>
+ * 缓存文件重命名到位之前先写入 DIRTY 记录,之后的 PUT 或 REMOVE 表示写入完成.
+ * 回放时仍然是 DIRTY 的条目说明写入过程中崩溃,磁盘上的文件不可信.
+ * READ 记录只写入缓冲区,随下一条 PUT/REMOVE 或 {@link #flush()} 一起写入文件,
+ * 崩溃时丢失的只是最近的访问顺序.
+ * <p>
+ * 文件格式:
+ * <pre>
+ *     int  JOURNAL_MAGIC
+ *     int  JOURNAL_VERSION
+ *     记录... : byte op, long hash, [PUT: long size, long ttl, long softTtl]
+ *     op: PUT, REMOVE, READ, DIRTY
+ * </pre>
+ * 日志缺失,版本不符或者内容损坏时,{@link #read()} 抛出 IOException,由调用者退回到扫描目录.
+ * <p>
+ * 该类不是线程安全的,由 {@link DiskBasedCache} 负责同步.
+ */
+class CacheJournal {
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    private static final int JOURNAL_MAGIC = 0x4A524E4C;
+    /**
+     * 2: 缓存文件改为按 key 的 64 位哈希分目录存放. 旧版本的日志会被拒绝,
+     * 由 {@link DiskBasedCache} 扫描目录并迁移旧的缓存文件.
+     * 3: 记录 key 的 64 位哈希而不是 key 本身,每条记录的长度固定
+     * 4: 增加 DIRTY 记录
+     */
+    private static final int JOURNAL_VERSION = 4;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_READ = 3;
+    private static final int OP_DIRTY = 4;
+
+    /**
+     * 冗余记录数超过该值(并且超过存活条目数)时压缩日志
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+
+    private OutputStream mWriter;
+
+    /**
+     * 日志中的总记录数,用于判断冗余度
+     */
+    private int mOpCount;
+
+    CacheJournal(File directory) {
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+    }
+
+    /**
+     * 日志自己的文件,扫描缓存目录时需要跳过
+     */
+    static boolean isJournalFile(File file) {
+        String name = file.getName();
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name);
+    }
+
+    /**
+     * 回放日志,返回索引. 索引中的访问序号按日志中的顺序递增,反映 LRU 顺序.
+     * 读取成功后,日志以追加方式打开.
+     *
+     * @param dirty 存放没有写完的条目 (最后一条记录是 DIRTY),这些条目不在返回的索引中
+     * @throws IOException 日志缺失或损坏
+     */
+    CacheIndex read(Set<Long> dirty) throws IOException {
+        CacheIndex entries = new CacheIndex();
+        InputStream is = new BufferedInputStream(new FileInputStream(mJournalFile));
+        int opCount = 0;
+        try {
+            if (readInt(is) != JOURNAL_MAGIC || readInt(is) != JOURNAL_VERSION) {
+                throw new IOException("unexpected journal header");
+            }
+            int op;
+            long access = 0;
+            while ((op = is.read()) != -1) {
+                long hash = readLong(is);
+                if (hash == 0) {
+                    throw new IOException("bad journal hash");
+                }
+                switch (op) {
+                    case OP_PUT:
+                        long size = readLong(is);
+                        long ttl = readLong(is);
+                        long softTtl = readLong(is);
+                        entries.put(hash, size, ttl, softTtl, ++access);
+                        dirty.remove(hash);
+                        break;
+                    case OP_REMOVE:
+                        entries.remove(hash);
+                        dirty.remove(hash);
+                        break;
+                    case OP_READ:
+                        entries.touch(hash, ++access);
+                        break;
+                    case OP_DIRTY:
+                        entries.remove(hash);
+                        dirty.add(hash);
+                        break;
+                    default:
+                        throw new IOException("unexpected journal op " + op);
+                }
+                opCount++;
+            }
+        } catch (EOFException e) {
+            // 最后一条记录被截断,当作损坏处理
+            throw new IOException("truncated journal");
+        } finally {
+            try {
+                is.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mOpCount = opCount;
+        mWriter = new BufferedOutputStream(new FileOutputStream(mJournalFile, true));
+        return entries;
+    }
+
+    /**
+     * 根据内存中的索引重写日志,先写入临时文件再替换,保证任何时候磁盘上都有一份完整的日志
+     *
+     * @param entries 按 LRU 顺序排列的索引快照
+     */
+    void rebuild(CacheIndex.Snapshot entries) {
+        closeWriter();
+        OutputStream os = null;
+        int opCount = 0;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(mJournalFileTmp));
+            writeInt(os, JOURNAL_MAGIC);
+            writeInt(os, JOURNAL_VERSION);
+            for (int i = 0; i < entries.count; i++) {
+                writePut(os, entries.hashes[i], entries.sizes[i], entries.ttls[i], entries.softTtls[i]);
+                opCount++;
+            }
+            os.close();
+            os = null;
+            if (!mJournalFileTmp.renameTo(mJournalFile)) {
+                throw new IOException("could not rename " + mJournalFileTmp);
+            }
+            mOpCount = opCount;
+            mWriter = new BufferedOutputStream(new FileOutputStream(mJournalFile, true));
+        } catch (IOException e) {
+            VolleyLog.e("Could not rebuild cache journal: %s", e.toString());
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) {
+                }
+            }
+            mJournalFileTmp.delete();
+            invalidate();
+        }
+    }
+
+    void appendPut(long hash, long size, long ttl, long softTtl) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            writePut(mWriter, hash, size, ttl, softTtl);
+            mWriter.flush();
+            mOpCount++;
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    void appendRemove(long hash) {
+        append(OP_REMOVE, hash, true);
+    }
+
+    /**
+     * 缓存文件重命名到位之前调用,写入后立即 flush
+     */
+    void appendDirty(long hash) {
+        append(OP_DIRTY, hash, true);
+    }
+
+    /**
+     * 写入 READ 记录,不 flush
+     *
+     * @param hashes 按访问顺序排列
+     */
+    void appendReads(long[] hashes, int count) {
+        for (int i = 0; i < count && mWriter != null; i++) {
+            append(OP_READ, hashes[i], false);
+        }
+    }
+
+    /**
+     * 将缓冲的记录写入文件
+     */
+    void flush() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.flush();
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    /**
+     * 冗余记录过多时需要压缩
+     *
+     * @param liveEntries 当前存活的缓存条目数
+     */
+    boolean needsCompaction(int liveEntries) {
+        int redundantOps = mOpCount - liveEntries;
+        return redundantOps >= REDUNDANT_OP_COMPACT_THRESHOLD && redundantOps >= liveEntries;
+    }
+
+    /**
+     * 丢弃日志,下次启动时退回到扫描目录
+     */
+    void invalidate() {
+        closeWriter();
+        mJournalFile.delete();
+    }
+
+    private void append(int op, long hash, boolean flush) {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write(op);
+            writeLong(mWriter, hash);
+            if (flush) {
+                mWriter.flush();
+            }
+            mOpCount++;
+        } catch (IOException e) {
+            onWriteError(e);
+        }
+    }
+
+    private static void writePut(OutputStream os, long hash, long size, long ttl, long softTtl)
+            throws IOException {
+        os.write(OP_PUT);
+        writeLong(os, hash);
+        writeLong(os, size);
+        writeLong(os, ttl);
+        writeLong(os, softTtl);
+    }
+
+    /**
+     * 日志写入失败后已经和内存中的索引不一致,直接丢弃,避免下次启动读到错误的索引
+     */
+    private void onWriteError(IOException e) {
+        VolleyLog.e("Cache journal write failed, dropping journal: %s", e.toString());
+        invalidate();
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) {
+            }
+            mWriter = null;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 缓存的统计数据: 命中,未命中,重新验证,淘汰,读写的字节数和读写耗时.
+ * <p>
+ * 由 {@link qian.jimmie.cn.volley.volley.dispatcher.CacheDispatcher},
+ * {@link qian.jimmie.cn.volley.volley.dispatcher.NetworkDispatcher} 和 {@link DiskBasedCache} 记录,
+ * 所有方法都是线程安全的,不需要加锁. {@link #snapshot()} 可以在队列运行时随时调用,
+ * 每个计数各自是准确的,但不同计数之间不是同一时刻的值
+ */
+public class CacheStats {
+
+    /**
+     * 淘汰的原因
+     */
+    public enum EvictionReason {
+        /**
+         * 超出容量,按淘汰策略删除
+         */
+        SIZE,
+        /**
+         * 已经过期,清理时先删除
+         */
+        EXPIRED,
+        /**
+         * 文件损坏或读写失败
+         */
+        CORRUPT
+    }
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mSoftExpiredHits = new AtomicLong();
+    private final AtomicLong mExpiredHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mNotModified = new AtomicLong();
+    private final AtomicLong mRevalidatedChanged = new AtomicLong();
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLongArray mEvictions = new AtomicLongArray(EvictionReason.values().length);
+    private final Histogram mGetLatency = new Histogram();
+    private final Histogram mPutLatency = new Histogram();
+
+    /**
+     * 没有过期,直接分发
+     */
+    public void recordHit() {
+        mHits.incrementAndGet();
+    }
+
+    /**
+     * 需要刷新但没有过期: 先分发缓存,再请求网络
+     */
+    public void recordSoftExpiredHit() {
+        mSoftExpiredHits.incrementAndGet();
+    }
+
+    /**
+     * 已经过期,带着 etag 等请求网络
+     */
+    public void recordExpiredHit() {
+        mExpiredHits.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        mMisses.incrementAndGet();
+    }
+
+    /**
+     * 请求带着缓存的条目发出后收到的响应
+     *
+     * @param notModified true: 服务器返回 304; false: 返回了新的实体
+     */
+    public void recordRevalidation(boolean notModified) {
+        (notModified ? mNotModified : mRevalidatedChanged).incrementAndGet();
+    }
+
+    public void recordEviction(EvictionReason reason) {
+        mEvictions.incrementAndGet(reason.ordinal());
+    }
+
+    public void recordBytesRead(long bytes) {
+        mBytesRead.addAndGet(bytes);
+    }
+
+    public void recordBytesWritten(long bytes) {
+        mBytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * @param nanos 一次读取缓存 (get 或 openForRead) 的耗时
+     */
+    public void recordGetLatency(long nanos) {
+        mGetLatency.record(nanos);
+    }
+
+    /**
+     * @param nanos 一次写入缓存 (put,提交写入流或更新头部) 的耗时
+     */
+    public void recordPutLatency(long nanos) {
+        mPutLatency.record(nanos);
+    }
+
+    /**
+     * 返回当前的统计数据,不影响正在进行的记录
+     */
+    public Snapshot snapshot() {
+        long[] evictions = new long[mEvictions.length()];
+        for (int i = 0; i < evictions.length; i++) {
+            evictions[i] = mEvictions.get(i);
+        }
+        return new Snapshot(mHits.get(), mSoftExpiredHits.get(), mExpiredHits.get(), mMisses.get(),
+                mNotModified.get(), mRevalidatedChanged.get(), evictions,
+                mBytesRead.get(), mBytesWritten.get(),
+                mGetLatency.snapshot(), mPutLatency.snapshot());
+    }
+
+    /**
+     * 清零所有计数. 和记录同时进行时,清零期间的记录可能丢失
+     */
+    public void reset() {
+        mHits.set(0);
+        mSoftExpiredHits.set(0);
+        mExpiredHits.set(0);
+        mMisses.set(0);
+        mNotModified.set(0);
+        mRevalidatedChanged.set(0);
+        mBytesRead.set(0);
+        mBytesWritten.set(0);
+        for (int i = 0; i < mEvictions.length(); i++) {
+            mEvictions.set(i, 0);
+        }
+        mGetLatency.reset();
+        mPutLatency.reset();
+    }
+
+    /**
+     * 某一时刻的统计数据,不可变
+     */
+    public static final class Snapshot {
+        public final long hits;
+        public final long softExpiredHits;
+        public final long expiredHits;
+        public final long misses;
+        public final long notModified;
+        public final long revalidatedChanged;
+        public final long bytesRead;
+        public final long bytesWritten;
+        public final Latency getLatency;
+        public final Latency putLatency;
+        private final long[] mEvictions;
+
+        Snapshot(long hits, long softExpiredHits, long expiredHits, long misses,
+                 long notModified, long revalidatedChanged, long[] evictions,
+                 long bytesRead, long bytesWritten, Latency getLatency, Latency putLatency) {
+            this.hits = hits;
+            this.softExpiredHits = softExpiredHits;
+            this.expiredHits = expiredHits;
+            this.misses = misses;
+            this.notModified = notModified;
+            this.revalidatedChanged = revalidatedChanged;
+            this.bytesRead = bytesRead;
+            this.bytesWritten = bytesWritten;
+            this.getLatency = getLatency;
+            this.putLatency = putLatency;
+            mEvictions = evictions;
+        }
+
+        /**
+         * 查找缓存的次数
+         */
+        public long requests() {
+            return hits + softExpiredHits + expiredHits + misses;
+        }
+
+        /**
+         * 不需要等待网络就能分发的比例 (命中和需要刷新的命中)
+         */
+        public double hitRatio() {
+            long requests = requests();
+            return requests == 0 ? 0 : (double) (hits + softExpiredHits) / requests;
+        }
+
+        public long evictions(EvictionReason reason) {
+            return mEvictions[reason.ordinal()];
+        }
+
+        public long evictions() {
+            long total = 0;
+            for (long n : mEvictions) {
+                total += n;
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return "CacheStats{hits=" + hits
+                    + ", softExpiredHits=" + softExpiredHits
+                    + ", expiredHits=" + expiredHits
+                    + ", misses=" + misses
+                    + ", notModified=" + notModified
+                    + ", revalidatedChanged=" + revalidatedChanged
+                    + ", evictions[size=" + evictions(EvictionReason.SIZE)
+                    + ", expired=" + evictions(EvictionReason.EXPIRED)
+                    + ", corrupt=" + evictions(EvictionReason.CORRUPT)
+                    + "], bytesRead=" + bytesRead
+                    + ", bytesWritten=" + bytesWritten
+                    + ", get=" + getLatency
+                    + ", put=" + putLatency + "}";
+        }
+    }
+
+    /**
+     * 耗时分布的快照. 第 0 个桶为不到 1 微秒,第 i 个桶为 [2^(i-1), 2^i) 微秒,最后一个桶包含所有更长的耗时
+     */
+    public static final class Latency {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mTotalNanos;
+
+        Latency(long[] buckets, long totalNanos) {
+            mBuckets = buckets;
+            long count = 0;
+            for (long n : buckets) {
+                count += n;
+            }
+            mCount = count;
+            mTotalNanos = totalNanos;
+        }
+
+        public long count() {
+            return mCount;
+        }
+
+        public long meanMicros() {
+            return mCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(mTotalNanos / mCount);
+        }
+
+        /**
+         * 返回分位数所在桶的上限 (微秒),没有记录时返回 0
+         *
+         * @param percentile 0 到 100
+         */
+        public long percentileMicros(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(mCount * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    return upperBoundMicros(i);
+                }
+            }
+            return upperBoundMicros(mBuckets.length - 1);
+        }
+
+        /**
+         * 每个桶的计数,见 {@link Latency}
+         */
+        public long[] buckets() {
+            return mBuckets.clone();
+        }
+
+        private static long upperBoundMicros(int bucket) {
+            return 1L << bucket;
+        }
+
+        @Override
+        public String toString() {
+            return "{n=" + mCount + ", mean=" + meanMicros() + "us, p50=" + percentileMicros(50)
+                    + "us, p99=" + percentileMicros(99) + "us}";
+        }
+    }
+
+    /**
+     * 按微秒的 log2 分桶计数,记录时不需要加锁
+     */
+    private static final class Histogram {
+        /**
+         * 最后一个桶从 2^30 微秒 (约 18 分钟) 开始
+         */
+        private static final int BUCKETS = 32;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mTotalNanos = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            long micros = nanos / 1000;
+            // micros 为 0 时在第 0 个桶,否则为其二进制位数
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            mBuckets.incrementAndGet(bucket);
+            mTotalNanos.addAndGet(nanos);
+        }
+
+        Latency snapshot() {
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return new Latency(buckets, mTotalNanos.get());
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+            mTotalNanos.set(0);
+        }
+    }
+}
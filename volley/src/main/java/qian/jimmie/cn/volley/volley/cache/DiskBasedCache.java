@@ -17,10 +17,13 @@
 package qian.jimmie.cn.volley.volley.cache;
 
 
+import android.os.StatFs;
 import android.os.SystemClock;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -29,15 +32,55 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import qian.jimmie.cn.volley.volley.constance.HTTP;
 import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
 import qian.jimmie.cn.volley.volley.exception.VolleyLog;
 
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readInt;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readLong;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readLongString;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readLongStringMap;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readString;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readStringStringMap;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readVarString;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readVarStringMap;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.readVarint;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.streamToBytes;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.writeInt;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.writeLong;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.writeVarString;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.writeVarStringMap;
+import static qian.jimmie.cn.volley.volley.utils.IOUtils.writeVarint;
+
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
@@ -45,16 +88,15 @@ import qian.jimmie.cn.volley.volley.exception.VolleyLog;
 public class DiskBasedCache implements Cache {
 
     /**
-     * Map of the Key, CacheHeader pairs
+     * 内存中的索引,以 key 的 64 位哈希为键,只保存大小,ttl 和访问序号.
+     * etag 和响应头在命中时从缓存文件读取
      */
-    private final Map<String, CacheHeader> mEntries =
-            //前两个参数是hashmap默认的值,true:表示有序
-            new LinkedHashMap<>(16, .75f, true);
+    private final CacheIndex mIndex = new CacheIndex();
 
     /**
-     * 已缓存总的大小 字节
+     * 访问序号,用于记录 LRU 顺序
      */
-    private long mTotalSize = 0;
+    private final AtomicLong mAccessClock = new AtomicLong();
 
     /**
      * 缓存的内部存储
@@ -74,261 +116,1925 @@ public class DiskBasedCache implements Cache {
     /**
      * 高速缓存的使用比率
      */
-    private static final float HYSTERESIS_FACTOR = 0.9f;
+    static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /**
+     * 占用超过容量的该比例时,后台线程开始清理
+     */
+    private static final float HIGH_WATERMARK_FACTOR = 0.9f;
+
+    /**
+     * 后台线程清理到容量的该比例以下,留出余量给之后的写入
+     */
+    private static final float LOW_WATERMARK_FACTOR = 0.8f;
+
+    /**
+     * 后台清理每持有一次读锁最多淘汰的条目数,避免长时间阻塞 {@link #clear()} 等需要写锁的操作
+     */
+    private static final int TRIM_BATCH = 32;
+
+    /**
+     * 无法读取文件系统的块大小时使用的默认值
+     */
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * 后台清理线程的间隔
+     */
+    private static final long SWEEP_INTERVAL_MS = 5 * 60 * 1000;
+
+    /**
+     * 默认保留过期条目的时间. 过期的条目仍然可以带着 etag 发起条件请求 (304),后台清理不立即删除
+     */
+    private static final long DEFAULT_EXPIRED_RETENTION_MS = 24 * 60 * 60 * 1000;
+
+    /**
+     * 每次从过期堆中取出的条目数
+     */
+    private static final int EXPIRED_BATCH = 16;
+
+    /**
+     * 默认的映射读取阈值,实体不小于该值时,通过 {@link FileChannel#map} 读取
+     */
+    private static final int DEFAULT_MAPPED_READ_THRESHOLD_BYTES = 256 * 1024;
+
+    /**
+     * 按 key 分段的锁的个数(2 的幂)
+     */
+    private static final int LOCK_STRIPES = 32;
+
+    /**
+     * 缓冲的 READ 日志记录数,满了之后写入日志
+     */
+    private static final int PENDING_READS = 256;
+
+    /**
+     * 用于缓存格式化的字符串 (第一版格式,只读)
+     */
+    private static final int CACHE_MAGIC = 0x20150306;
+
+    /**
+     * 第二版缓存文件格式,带有头部长度,实体长度和实体的 CRC32, 见 {@link CacheHeader#writeHeader}
+     */
+    private static final int CACHE_MAGIC_V2 = 0x20170307;
+
+    /**
+     * 第三版缓存文件格式: 固定长度部分与第二版相同,字符串长度和响应头个数改为 varint,
+     * 见 {@link CacheHeader#encode(int)}. 第一版和第二版只读
+     */
+    private static final int CACHE_MAGIC_V3 = 0x20170601;
+
+    /**
+     * 第二版 (以及第三版) 头部中固定长度部分的字节数: magic, headerLength, ttl, softTtl, flags, crc,
+     * bodyLength, serverDate, lastModified
+     */
+    private static final int FIXED_HEADER_BYTES_V2 = 56;
+
+    /**
+     * 头部末尾预留的空间. 304 更新的响应头(etag,Date 等)一般只是长度略有变化,
+     * 可以在原位置重写头部,不需要重写实体
+     */
+    private static final int HEADER_SLACK_BYTES = 128;
+
+    /**
+     * 以流的方式写入时的缓冲区大小,网络读取的数据块一般较小,攒够再写入文件
+     */
+    private static final int WRITER_BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * 读取头部时允许的最大长度,防止损坏的头部长度导致分配过大的数组
+     */
+    private static final int MAX_HEADER_BYTES = 1024 * 1024;
+
+    /**
+     * 默认写入缓存文件的响应头: 解析缓存头部,304 重新验证以及解析实体 (字符集,压缩) 需要的响应头.
+     * 其他响应头 (Set-Cookie,Server,Via 等) 对缓存的响应没有用处
+     */
+    private static final String[] DEFAULT_PERSISTED_HEADERS = {
+            "Cache-Control", "Content-Type", "Content-Encoding", "Content-Language",
+            "Content-Length", "Date", "Expires", "Last-Modified", "ETag", "Age", "Vary",
+    };
+
+    /**
+     * 常见的响应头名字. 读取头部时相同的名字使用这里的实例,不再 intern 每个响应头
+     */
+    private static final Map<String, String> KNOWN_HEADER_NAMES = new HashMap<>();
+
+    static {
+        for (String name : DEFAULT_PERSISTED_HEADERS) {
+            KNOWN_HEADER_NAMES.put(name, name);
+            String lower = name.toLowerCase(Locale.US);
+            KNOWN_HEADER_NAMES.put(lower, lower);
+        }
+    }
+
+    /**
+     * 临时文件目录. 缓存文件先写入这里,写完后再重命名到最终位置,崩溃时不会留下写了一半的缓存文件
+     */
+    private static final String TEMP_DIR = "tmp";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * 头部标志位: 实体经过 deflate 压缩
+     */
+    private static final int FLAG_DEFLATE = 1;
+
+    /**
+     * 默认的压缩阈值,更小的实体压缩收益不大
+     */
+    private static final int DEFAULT_COMPRESSION_MIN_BYTES = 1024;
+
+    /**
+     * 临时文件目录,与缓存文件在同一个文件系统上,重命名是原子的
+     */
+    private final File mTempDirectory;
+
+    /**
+     * 本实例创建的临时文件的前缀. 启动时删除其他前缀的临时文件(上次运行崩溃时遗留的)
+     */
+    private final String mTempPrefix = Long.toHexString(new Random().nextLong()) + "-";
+
+    /**
+     * 临时文件序号
+     */
+    private final AtomicLong mTempCounter = new AtomicLong();
+
+    private volatile boolean mTempDirectoryReady = false;
+
+    /**
+     * 索引日志,用于快速恢复内存中的索引. 日志的读写在 mJournal 上同步
+     */
+    private final CacheJournal mJournal;
+
+    /**
+     * 还没有写入日志的 READ 记录. 命中时只在 mPendingReadsLock 上同步,不持有日志锁;
+     * 写入 PUT/REMOVE 记录,{@link #flush()} 或者缓冲区满时,持有日志锁与 mDrainingReads 交换后写入
+     */
+    private final Object mPendingReadsLock = new Object();
+    private long[] mPendingReads = new long[PENDING_READS];
+    private int mPendingReadCount;
+    private long[] mDrainingReads = new long[PENDING_READS];
+
+    /**
+     * 按 key 分段的锁,同一个 key 的文件读写互斥,不同 key 之间互不阻塞
+     */
+    private final Object[] mKeyLocks = new Object[LOCK_STRIPES];
+
+    /**
+     * 普通的读写操作持有读锁,{@link #clear()} 和合并加载完的索引时持有写锁
+     */
+    private final ReentrantReadWriteLock mStateLock = new ReentrantReadWriteLock();
+
+    /**
+     * 同一时间只有一个线程在清理空间
+     */
+    private final ReentrantLock mPruneLock = new ReentrantLock();
+
+    /**
+     * true: 在后台线程加载索引,{@link #initialize()} 立即返回
+     */
+    private volatile boolean mAsyncInitialize = false;
+
+    /**
+     * 索引是否已经加载完成 (只在持有写锁时修改)
+     */
+    private volatile boolean mInitialized = false;
+
+    /**
+     * 索引加载期间被 put / remove / get 过的 key,合并时以内存中的状态为准
+     */
+    private final Set<Long> mTouchedWhileLoading =
+            Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * 索引加载期间是否调用过 {@link #clear()}
+     */
+    private boolean mClearedWhileLoading = false;
+
+    /**
+     * 加载索引耗费的时间,未加载完成时为 -1
+     */
+    private volatile long mIndexLoadTimeMs = -1;
+
+    private volatile OnInitializedListener mOnInitializedListener;
+
+    /**
+     * 实体不小于该值时映射缓存文件,而不是复制到 byte[] 中
+     */
+    private volatile int mMappedReadThreshold = DEFAULT_MAPPED_READ_THRESHOLD_BYTES;
+
+    /**
+     * 淘汰策略
+     */
+    private volatile EvictionPolicy mEvictionPolicy = new LruPolicy();
+
+    /**
+     * 是否开启后台清理
+     */
+    private volatile boolean mBackgroundSweep = false;
+
+    /**
+     * 是否由后台线程提前腾出空间
+     */
+    private volatile boolean mBackgroundSpaceManager = true;
+
+    /**
+     * 文件系统的块大小,索引中的大小按块对齐 (文件实际占用的空间)
+     */
+    private volatile int mBlockSize = DEFAULT_BLOCK_SIZE;
+
+    /**
+     * 后台清理删除过期超过该时间的条目
+     */
+    private volatile long mExpiredRetentionMs = DEFAULT_EXPIRED_RETENTION_MS;
+
+    /**
+     * 后台清理线程,开启后台清理并初始化后创建
+     */
+    private volatile Thread mSweeper;
+
+    /**
+     * 唤醒后台清理线程 (在自身上同步)
+     */
+    private final Object mSweepSignal = new Object();
+
+    private boolean mSweepRequested = false;
+
+    /**
+     * 是否压缩文本类型的实体
+     */
+    private volatile boolean mCompressionEnabled = false;
+
+    /**
+     * 实体不小于该值时才压缩
+     */
+    private volatile int mCompressionMinBytes = DEFAULT_COMPRESSION_MIN_BYTES;
+
+    /**
+     * 写入缓存文件的响应头 (小写),为 null 时写入全部响应头
+     */
+    private volatile Set<String> mPersistedHeaders = lowerCaseSet(Arrays.asList(DEFAULT_PERSISTED_HEADERS));
+
+    /**
+     * 读写的字节数和淘汰的统计
+     */
+    private volatile CacheStats mStats = new CacheStats();
+
+    /**
+     * 索引加载完成的回调
+     */
+    public interface OnInitializedListener {
+        /**
+         * 索引加载完成时被调用. 异步模式下在加载线程中回调,否则在调用 {@link #initialize()} 的线程中回调
+         *
+         * @param cache         加载完成的缓存
+         * @param loadTimeMs    加载索引耗费的时间
+         */
+        void onInitialized(DiskBasedCache cache, long loadTimeMs);
+    }
+
+    /**
+     * @param rootDirectory       缓存根目录
+     * @param maxCacheSizeInBytes 最大的缓存数
+     */
+    public DiskBasedCache(File rootDirectory, long maxCacheSizeInBytes) {
+        mRootDirectory = rootDirectory;
+        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mTempDirectory = new File(rootDirectory, TEMP_DIR);
+        mJournal = new CacheJournal(rootDirectory);
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mKeyLocks[i] = new Object();
+        }
+    }
+
+    public DiskBasedCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * 设置是否在后台线程加载索引,需要在 {@link #initialize()} 之前调用.
+     * <p>
+     * 异步模式下 {@link #initialize()} 立即返回,缓存分发线程可以马上处理请求:
+     * 还没有加载进索引的 key 会直接到磁盘上查找对应的缓存文件.
+     */
+    public void setAsyncInitialize(boolean asyncInitialize) {
+        mAsyncInitialize = asyncInitialize;
+    }
+
+    /**
+     * 设置映射读取的阈值. 实体大小不小于该值时,{@link #get(String)} 返回的 {@link Entry#buffer}
+     * 直接映射自缓存文件({@link Entry#data} 为 null),不再复制到堆中.
+     * 传入 {@link Integer#MAX_VALUE} 关闭映射读取.
+     */
+    public void setMappedReadThreshold(int thresholdBytes) {
+        mMappedReadThreshold = thresholdBytes;
+    }
+
+    /**
+     * 设置是否压缩缓存的实体. 只压缩文本类型 (text/*,json,xml,javascript) 并且不小于
+     * {@link #setCompressionMinBytes(int)} 的实体,压缩后没有变小的实体按原样保存.
+     * 读取时透明解压,已经写入的条目不受影响.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
+
+    public void setCompressionMinBytes(int minBytes) {
+        mCompressionMinBytes = minBytes;
+    }
+
+    /**
+     * 设置写入缓存文件的响应头 (不区分大小写),其他响应头不保存. 默认只保存解析缓存和实体需要的响应头
+     *
+     * @param names 为 null 时保存全部响应头
+     */
+    public void setPersistedHeaders(Collection<String> names) {
+        mPersistedHeaders = names == null ? null : lowerCaseSet(names);
+    }
+
+    private static Set<String> lowerCaseSet(Collection<String> names) {
+        Set<String> set = new HashSet<>();
+        for (String name : names) {
+            set.add(name.toLowerCase(Locale.US));
+        }
+        return set;
+    }
+
+    /**
+     * 只保留需要写入缓存文件的响应头
+     */
+    private Map<String, String> persistedHeaders(Map<String, String> headers) {
+        Set<String> allowed = mPersistedHeaders;
+        if (allowed == null || headers == null) {
+            return headers;
+        }
+        Map<String, String> result = null;
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (name == null || !allowed.contains(name.toLowerCase(Locale.US))) {
+                if (result == null) {
+                    // 第一次遇到需要去掉的响应头时才复制
+                    result = new HashMap<>(headers);
+                }
+                result.remove(name);
+            }
+        }
+        return result == null ? headers : result;
+    }
+
+    /**
+     * 写入用的头部,只包含需要保存的响应头
+     */
+    private CacheHeader newHeader(String key, Entry entry) {
+        CacheHeader header = new CacheHeader(key, entry);
+        header.responseHeaders = persistedHeaders(entry.responseHeaders);
+        return header;
+    }
+
+    /**
+     * 设置淘汰策略,默认为 {@link LruPolicy}. 需要在 {@link #initialize()} 之前调用
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        mEvictionPolicy = policy;
+    }
+
+    /**
+     * 读写的字节数和淘汰记录到 stats 中,一般传入 {@link qian.jimmie.cn.volley.volley.core.RequestQueue#getCacheStats()}
+     */
+    public void setStats(CacheStats stats) {
+        if (stats == null) {
+            throw new IllegalArgumentException("stats == null");
+        }
+        mStats = stats;
+    }
+
+    public CacheStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * 开启后台清理: 后台线程定期删除过期超过 {@link #setExpiredRetentionMs(long)} 的条目.
+     * 需要在 {@link #initialize()} 之前调用
+     */
+    public void setBackgroundSweepEnabled(boolean enabled) {
+        mBackgroundSweep = enabled;
+    }
+
+    /**
+     * 后台腾出空间 (默认开启): 占用超过容量的 90% 时,后台线程按淘汰策略清理到 80% 以下,
+     * 写入线程只在写入后会超出容量时才自己清理. 关闭后每次超出容量都在写入线程中清理.
+     * 需要在 {@link #initialize()} 之前调用
+     */
+    public void setBackgroundSpaceManagerEnabled(boolean enabled) {
+        mBackgroundSpaceManager = enabled;
+    }
+
+    /**
+     * 缓存文件占用的磁盘空间 (按文件系统的块对齐)
+     */
+    public long getTotalSize() {
+        return mIndex.totalSize();
+    }
+
+    /**
+     * 设置后台清理保留过期条目的时间,默认为一天
+     */
+    public void setExpiredRetentionMs(long retentionMs) {
+        mExpiredRetentionMs = retentionMs;
+    }
+
+    public void setOnInitializedListener(OnInitializedListener listener) {
+        mOnInitializedListener = listener;
+    }
+
+    /**
+     * 索引是否已经加载完成
+     */
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * 索引中是否有该 key. 索引还没有加载完成时总是返回 true (可能在磁盘上)
+     */
+    boolean contains(String key) {
+        return !mInitialized || mIndex.contains(hashKey(key));
+    }
+
+    /**
+     * 加载索引耗费的时间(毫秒),未加载完成时返回 -1
+     */
+    public long getIndexLoadTimeMs() {
+        return mIndexLoadTimeMs;
+    }
+
+    /**
+     * 从索引日志中恢复内存中的缓存头部,只需要顺序读取一个文件.
+     * 日志缺失或者损坏时,才扫描缓存目录,将缓存头部从磁盘中取到内存中
+     * (注意只是头部,真正的缓存消息,还需要从硬盘中获取)
+     */
+    @Override
+    public void initialize() {
+        if (mBackgroundSweep || mBackgroundSpaceManager) {
+            startSweeper();
+        }
+        if (!mAsyncInitialize) {
+            loadIndex();
+            return;
+        }
+        Thread loader = new Thread("bees-cache-index") {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                loadIndex();
+            }
+        };
+        loader.start();
+    }
+
+    /**
+     * 读取索引(不持有锁),然后与加载期间的操作合并
+     */
+    private void loadIndex() {
+        long startTime = SystemClock.elapsedRealtime();
+        List<File> badFiles = new ArrayList<>();
+        CacheIndex loaded = null;
+        boolean journalIntact = false;
+        Set<Long> dirty = new HashSet<>();
+
+        // 如果缓存目录不存在,就创建
+        if (!mRootDirectory.exists()) {
+            if (!mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            }
+            mBlockSize = readBlockSize(mRootDirectory);
+        } else {
+            mBlockSize = readBlockSize(mRootDirectory);
+            deleteOrphanedTempFiles();
+            try {
+                synchronized (mJournal) {
+                    loaded = mJournal.read(dirty);
+                }
+                journalIntact = true;
+            } catch (IOException e) {
+                VolleyLog.d("Cache journal unusable (%s), scanning %s",
+                        e.toString(), mRootDirectory.getAbsolutePath());
+                loaded = scanDirectory(badFiles);
+            }
+        }
+
+        int entryCount;
+        mStateLock.writeLock().lock();
+        try {
+            for (long hash : dirty) {
+                // 写入时崩溃,文件可能不完整,也不在索引中,不删除的话会一直占用空间
+                badFiles.add(getFileForHash(hash));
+            }
+            mergeLoadedIndex(loaded, badFiles);
+            if (!journalIntact || !dirty.isEmpty() || mClearedWhileLoading
+                    || !mTouchedWhileLoading.isEmpty()) {
+                rebuildJournal();
+            } else {
+                compactJournalIfNeeded();
+            }
+            mTouchedWhileLoading.clear();
+            mClearedWhileLoading = false;
+            mInitialized = true;
+            entryCount = mIndex.count();
+        } finally {
+            mStateLock.writeLock().unlock();
+        }
+
+        mIndexLoadTimeMs = SystemClock.elapsedRealtime() - startTime;
+        if (mSweeper != null) {
+            // 加载期间的写入没有清理过
+            requestSweep();
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("cache index loaded, %d entries, %d ms", entryCount, mIndexLoadTimeMs);
+        }
+        OnInitializedListener listener = mOnInitializedListener;
+        if (listener != null) {
+            listener.onInitialized(this, mIndexLoadTimeMs);
+        }
+    }
+
+    /**
+     * 读取文件系统的块大小,失败时返回 {@link #DEFAULT_BLOCK_SIZE}
+     */
+    @SuppressWarnings("deprecation")
+    private static int readBlockSize(File directory) {
+        try {
+            int blockSize = new StatFs(directory.getPath()).getBlockSize();
+            return blockSize > 0 ? blockSize : DEFAULT_BLOCK_SIZE;
+        } catch (RuntimeException e) {
+            VolleyLog.d("Could not stat %s: %s", directory.getAbsolutePath(), e.toString());
+            return DEFAULT_BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * 长度为 length 的文件实际占用的磁盘空间 (向上对齐到块大小)
+     */
+    private long diskSize(long length) {
+        long blockSize = mBlockSize;
+        return (length + blockSize - 1) / blockSize * blockSize;
+    }
+
+    /**
+     * 将加载到的索引放入内存. 加载期间被操作过的 key 以内存中的为准,并且比加载到的条目更新(LRU)
+     * <p>
+     * 需要持有写锁
+     */
+    private void mergeLoadedIndex(CacheIndex loaded, List<File> badFiles) {
+        CacheIndex.Snapshot touched = mIndex.snapshot();
+        mIndex.clear();
+        if (loaded != null && !mClearedWhileLoading) {
+            CacheIndex.Snapshot entries = loaded.snapshot();
+            for (int i = 0; i < entries.count; i++) {
+                if (!mTouchedWhileLoading.contains(entries.hashes[i])) {
+                    mIndex.put(entries.hashes[i], entries.sizes[i], entries.ttls[i],
+                            entries.softTtls[i], mAccessClock.incrementAndGet());
+                }
+            }
+        }
+        for (int i = 0; i < touched.count; i++) {
+            mIndex.put(touched.hashes[i], touched.sizes[i], touched.ttls[i],
+                    touched.softTtls[i], mAccessClock.incrementAndGet());
+        }
+
+        // 扫描时读不出头部的文件或者没有写完的文件,可能是加载期间正在写入的文件,这些文件不能删除
+        Set<File> touchedFiles = new HashSet<>();
+        for (long hash : mTouchedWhileLoading) {
+            touchedFiles.add(getFileForHash(hash));
+        }
+        for (File file : badFiles) {
+            if (!touchedFiles.contains(file)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 删除上次运行时没有写完的临时文件. 只列出临时文件目录,不需要扫描缓存文件;
+     * 本实例正在写入的临时文件(可能在加载索引期间写入)不会被删除
+     */
+    private void deleteOrphanedTempFiles() {
+        File[] files = mTempDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.getName().startsWith(mTempPrefix)) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 返回一个新的临时文件,需要时创建临时文件目录
+     */
+    private File newTempFile(long hash) {
+        if (!mTempDirectoryReady) {
+            mTempDirectory.mkdirs();
+            mTempDirectoryReady = true;
+        }
+        return new File(mTempDirectory,
+                mTempPrefix + mTempCounter.incrementAndGet() + "-" + filenameForHash(hash) + TEMP_SUFFIX);
+    }
+
+    /**
+     * 列出缓存目录中的所有文件,逐个读取缓存头部.
+     * 根目录下的文件是旧版本按 {@link String#hashCode()} 命名的缓存文件,读取后移动到分目录的新位置
+     *
+     * @param badFiles 读取失败的文件
+     */
+    private CacheIndex scanDirectory(List<File> badFiles) {
+        CacheIndex entries = new CacheIndex();
+        long access = 0;
+        // 列出缓存列表中的所有数据
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return entries;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (CacheJournal.isJournalFile(file) || TEMP_DIR.equals(name)) {
+                continue;
+            }
+            if (isShardName(name)) {
+                File[] shards = file.listFiles();
+                if (shards == null) {
+                    continue;
+                }
+                for (File shard : shards) {
+                    File[] shardFiles = shard.listFiles();
+                    if (shardFiles == null) {
+                        continue;
+                    }
+                    for (File shardFile : shardFiles) {
+                        CacheHeader entry = readHeaderFromFile(shardFile, badFiles);
+                        if (entry != null) {
+                            entries.put(hashKey(entry.key), diskSize(entry.size), entry.ttl, entry.softTtl, ++access);
+                        }
+                    }
+                }
+                continue;
+            }
+            CacheHeader entry = readHeaderFromFile(file, badFiles);
+            if (entry != null && migrateLegacyFile(file, entry.key)) {
+                entries.put(hashKey(entry.key), diskSize(entry.size), entry.ttl, entry.softTtl, ++access);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 读取缓存文件的头部,失败时放入 badFiles
+     */
+    private static CacheHeader readHeaderFromFile(File file, List<File> badFiles) {
+        BufferedInputStream fis = null;
+        try {
+            fis = new BufferedInputStream(new FileInputStream(file));
+            // 将输入流 转化为 CacheHeader
+            CacheHeader entry = CacheHeader.readHeader(fis);
+            // 单个缓存文本的大小为文件的大小
+            entry.size = file.length();
+            return entry;
+        } catch (IOException e) {
+            badFiles.add(file);
+            return null;
+        } finally {
+            try {
+                if (fis != null) {
+                    fis.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 将旧版本的缓存文件移动到新的位置. 加载期间已经写入了新文件时,删除旧文件
+     *
+     * @return true 移动成功
+     */
+    private boolean migrateLegacyFile(File legacy, String key) {
+        long hash = hashKey(key);
+        synchronized (lockFor(hash)) {
+            File target = getFileForHash(hash);
+            if (!target.exists()) {
+                target.getParentFile().mkdirs();
+                if (legacy.renameTo(target)) {
+                    return true;
+                }
+            }
+            legacy.delete();
+            return false;
+        }
+    }
+
+    /**
+     * 让这个entry无效
+     *
+     * @param key        Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        long hash = hashKey(key);
+        mStateLock.readLock().lock();
+        try {
+            synchronized (lockFor(hash)) {
+                updateHeaderLocked(key, hash, null, fullExpire);
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 只重写缓存文件的头部,实体数据不需要读取和重写
+     */
+    @Override
+    public void updateMetadata(String key, Entry metadata) {
+        long hash = hashKey(key);
+        mStateLock.readLock().lock();
+        try {
+            synchronized (lockFor(hash)) {
+                updateHeaderLocked(key, hash, metadata, false);
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 在原位置重写头部 (一次写入,大小不超过头部长度). 第一版格式的文件,
+     * 或者新的头部超出了原来的头部长度时,退回到读取并重写整个文件.
+     * <p>
+     * 需要持有读锁和 key 的锁
+     *
+     * @param metadata 新的元数据,为 null 时表示 invalidate
+     */
+    private void updateHeaderLocked(String key, long hash, Entry metadata, boolean fullExpire) {
+        long indexedSize = mIndex.sizeOf(hash);
+        boolean indexed = indexedSize >= 0;
+        if (!indexed && mInitialized) {
+            return;
+        }
+        File file = getFileForHash(hash);
+        if (!file.exists()) {
+            // "rw" 会创建不存在的文件. 索引还在加载时,不在磁盘上的 key 不需要处理
+            if (indexed) {
+                dropIndexEntry(hash);
+            }
+            return;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            CacheHeader header = readHeaderInPlace(raf);
+            if (header != null && !key.equals(header.key)) {
+                // 文件属于哈希相同的另一个 key
+                if (indexed) {
+                    dropIndexEntry(hash);
+                }
+                return;
+            }
+            byte[] bytes = null;
+            if (header != null) {
+                applyMetadata(header, metadata, fullExpire);
+                bytes = header.encode(header.headerLength);
+            }
+            if (bytes == null) {
+                raf.close();
+                raf = null;
+                rewriteWithMetadataLocked(key, hash, metadata, fullExpire);
+                return;
+            }
+            // magic, 头部长度,CRC 和实体长度不变,一次写入整个头部
+            raf.seek(0);
+            raf.write(bytes);
+            mStats.recordBytesWritten(bytes.length);
+
+            recordPut(hash, indexed ? indexedSize : diskSize(raf.length()), header.ttl, header.softTtl);
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            removeCorruptLocked(hash);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取并重写整个文件 (第一版格式或者头部变长时). 需要持有读锁和 key 的锁
+     */
+    private void rewriteWithMetadataLocked(String key, long hash, Entry metadata, boolean fullExpire) {
+        Entry entry = getLocked(key, hash);
+        if (entry == null) {
+            return;
+        }
+        if (metadata != null) {
+            entry = CacheEntries.withMetadata(entry, metadata);
+        } else {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+        }
+        putLocked(key, hash, entry, entry.getData());
+    }
+
+    private void applyMetadata(CacheHeader header, Entry metadata, boolean fullExpire) {
+        if (metadata == null) {
+            header.softTtl = 0;
+            if (fullExpire) {
+                header.ttl = 0;
+            }
+            return;
+        }
+        header.etag = metadata.etag;
+        header.serverDate = metadata.serverDate;
+        header.lastModified = metadata.lastModified;
+        header.ttl = metadata.ttl;
+        header.softTtl = metadata.softTtl;
+        header.responseHeaders = persistedHeaders(metadata.responseHeaders);
+    }
+
+    /**
+     * 读取第二版或第三版格式的头部 (可以在原位置重写),第一版格式返回 null
+     */
+    private static CacheHeader readHeaderInPlace(RandomAccessFile raf) throws IOException {
+        byte[] prefix = new byte[8];
+        raf.readFully(prefix);
+        int headerLength = CacheHeader.headerLength(prefix);
+        if (headerLength < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[headerLength];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        raf.readFully(bytes, prefix.length, headerLength - prefix.length);
+        return CacheHeader.decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * 将缓存文件写入磁盘
+     */
+    @Override
+    public void put(String key, Entry entry) {
+//        VolleyLog.e("写入磁盘");
+        // 映射自缓存文件的实体,先复制出来,下面会删除旧文件
+        byte[] data = entry.getData();
+        long hash = hashKey(key);
+        // 压缩和编码头部不需要持有锁,之后按实际写入的长度腾出空间
+        EncodedEntry encoded;
+        try {
+            encoded = encode(key, entry, data);
+        } catch (IOException e) {
+            VolleyLog.d("Failed to encode %s: %s", key, e.toString());
+            return;
+        }
+        mStateLock.readLock().lock();
+        try {
+            // 放入前先检查是否有剩余空间缓存,没有的话,需要清理 (不持有 key 的锁)
+            makeRoomFor(diskSize(encoded.length()));
+            synchronized (lockFor(hash)) {
+                writeLocked(hash, encoded);
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 写入前腾出空间: 超过高水位时唤醒后台线程提前清理,只有写入后会超出容量时才在当前线程清理.
+     * 需要持有读锁,不能持有任何 key 的锁
+     *
+     * @param size 写入的文件占用的磁盘空间
+     */
+    private void makeRoomFor(long size) {
+        if (mBackgroundSpaceManager && mSweeper != null
+                && mIndex.totalSize() + size >= highWatermark()) {
+            requestSweep();
+        }
+        pruneIfNeeded(size);
+    }
+
+    private long highWatermark() {
+        return (long) (mMaxCacheSizeInBytes * HIGH_WATERMARK_FACTOR);
+    }
+
+    /**
+     * 以流的方式写入: 实体直接写入临时文件,不需要在内存中保存整个实体.
+     * 文本类型的实体一边写入一边压缩 (见 {@link #shouldCompress(Entry, long)})
+     */
+    @Override
+    public EntryWriter openForWrite(String key, Entry metadata) {
+        try {
+            return new DiskEntryWriter(key, hashKey(key), metadata);
+        } catch (IOException e) {
+            VolleyLog.d("Could not open %s for writing: %s", key, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * 需要持有读锁和 key 的锁
+     */
+    private void putLocked(String key, long hash, Entry entry, byte[] data) {
+        try {
+            writeLocked(hash, encode(key, entry, data));
+        } catch (IOException e) {
+            VolleyLog.d("Failed to encode %s: %s", key, e.toString());
+        }
+    }
+
+    /**
+     * 按写入的格式编码条目: 文本类型的实体先压缩 (见 {@link #shouldCompress(Entry, long)}),
+     * 头部中填入存储的实体长度和 CRC32
+     */
+    private EncodedEntry encode(String key, Entry entry, byte[] data) throws IOException {
+        CacheHeader e = newHeader(key, entry);
+        byte[] body = data;
+        if (shouldCompress(entry, data.length)) {
+            byte[] compressed = deflate(data);
+            if (compressed.length < data.length) {
+                body = compressed;
+                e.flags |= FLAG_DEFLATE;
+                e.uncompressedLength = data.length;
+            }
+        }
+        e.bodyLength = body.length;
+        e.bodyCrc = crc32(body);
+        return new EncodedEntry(e, e.encode(0), body);
+    }
+
+    /**
+     * 需要持有读锁和 key 的锁
+     */
+    private void writeLocked(long hash, EncodedEntry encoded) {
+        File file = getFileForHash(hash);
+        // 先写入临时文件,再重命名覆盖旧文件. 崩溃时旧文件保持完整;
+        // 其他线程持有的旧文件映射也仍然有效(旧文件的内容不会被截断)
+        File tmp = newTempFile(hash);
+        try {
+            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                // 写入cache头部和实体数据
+                fos.write(encoded.header);
+                fos.write(encoded.body);
+            } finally {
+                fos.close();
+            }
+            long length = tmp.length();
+            mStats.recordBytesWritten(length);
+            recordDirty(hash);
+            moveIntoPlace(tmp, file);
+            // 将文件占用的空间和 ttl 放入内存中的索引
+            recordPut(hash, diskSize(length), encoded.cacheHeader.ttl, encoded.cacheHeader.softTtl);
+            return;
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+        }
+        // 旧文件(如果有)和索引保持不变
+        if (tmp.exists() && !tmp.delete()) {
+            VolleyLog.e("Could not clean up file %s", tmp.getAbsolutePath());
+        }
+    }
+
+    /**
+     * 将写好的临时文件重命名为缓存文件
+     */
+    private static void moveIntoPlace(File tmp, File file) throws IOException {
+        if (!tmp.renameTo(file)) {
+            // 第一次写入该分目录时需要先创建目录
+            file.getParentFile().mkdirs();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * 根据cache key 获取内存中的缓存数据(包含实体数据)
+     */
+    @Override
+    public Entry get(String key) {
+        long hash = hashKey(key);
+        mEvictionPolicy.onAccess(hash);
+        // 大部分未命中不需要加锁
+        if (mInitialized && !mIndex.contains(hash)) {
+            return null;
+        }
+        mStateLock.readLock().lock();
+        try {
+            synchronized (lockFor(hash)) {
+                return getLocked(key, hash);
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 只更新淘汰策略,索引中的访问顺序和日志中的 READ 记录 (批量写入),不打开文件
+     */
+    @Override
+    public void touch(String key) {
+        long hash = hashKey(key);
+        mEvictionPolicy.onAccess(hash);
+        if (!mInitialized) {
+            return;
+        }
+        mStateLock.readLock().lock();
+        try {
+            if (mIndex.touch(hash, mAccessClock.incrementAndGet())) {
+                recordPendingRead(hash);
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 只读取头部
+     */
+    @Override
+    public Entry getMetadata(String key) {
+        long hash = hashKey(key);
+        if (mInitialized && !mIndex.contains(hash)) {
+            return null;
+        }
+        mStateLock.readLock().lock();
+        try {
+            synchronized (lockFor(hash)) {
+                OpenedFile opened = null;
+                try {
+                    opened = openLocked(key, hash);
+                    return opened == null ? null : opened.header.toCacheEntry(null);
+                } catch (IOException e) {
+                    VolleyLog.d("%s: %s", filenameForHash(hash), e.toString());
+                    removeCorruptLocked(hash);
+                    return null;
+                } finally {
+                    if (opened != null) {
+                        opened.close();
+                    }
+                }
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 返回位于实体开始处的文件输入流 (压缩的实体边读边解压).
+     * 不校验实体的 CRC; 返回之后该 key 被覆盖或删除时,流仍然读取原来的文件
+     */
+    @Override
+    public EntryStream openForRead(String key) {
+        long hash = hashKey(key);
+        mEvictionPolicy.onAccess(hash);
+        if (mInitialized && !mIndex.contains(hash)) {
+            return null;
+        }
+        mStateLock.readLock().lock();
+        try {
+            synchronized (lockFor(hash)) {
+                OpenedFile opened = null;
+                try {
+                    opened = openLocked(key, hash);
+                    if (opened == null) {
+                        return null;
+                    }
+                    CacheHeader header = opened.header;
+                    InputStream body = opened.cis;
+                    long length = opened.bodyLength;
+                    if ((header.flags & FLAG_DEFLATE) != 0) {
+                        body = new InflaterInputStream(body);
+                        length = header.uncompressedLength;
+                    }
+                    recordReadLocked(hash, opened);
+                    // 流不一定被读完,按打开的文件长度记录
+                    mStats.recordBytesRead(opened.fileLength);
+                    EntryStream result = new EntryStream(header.toCacheEntry(null), body, length);
+                    // 流交给调用者关闭
+                    opened = null;
+                    return result;
+                } catch (IOException e) {
+                    VolleyLog.d("%s: %s", filenameForHash(hash), e.toString());
+                    removeCorruptLocked(hash);
+                    return null;
+                } catch (NegativeArraySizeException e) {
+                    VolleyLog.d("%s: %s", filenameForHash(hash), e.toString());
+                    removeCorruptLocked(hash);
+                    return null;
+                } finally {
+                    if (opened != null) {
+                        opened.close();
+                    }
+                }
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 需要持有读锁和 key 的锁
+     */
+    private Entry getLocked(String key, long hash) {
+        OpenedFile opened = null;
+        try {
+            opened = openLocked(key, hash);
+            if (opened == null) {
+                return null;
+            }
+            CacheHeader header = opened.header;
+            long bodyLength = opened.bodyLength;
+            // 读取实体: 大的实体直接映射,不复制到堆中
+            // (映射的实体不校验 CRC,否则需要读入全部页面,失去映射的意义)
+            byte[] data = null;
+            MappedByteBuffer buffer = null;
+            if ((header.flags & FLAG_DEFLATE) != 0) {
+                // 边读边解压,同时计算压缩数据的 CRC
+                data = inflate(opened.cis, header);
+            } else if (bodyLength >= mMappedReadThreshold) {
+                buffer = opened.fis.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        opened.cis.bytesRead, bodyLength);
+            } else {
+                data = streamToBytes(opened.cis, (int) bodyLength);
+                if (header.bodyLength >= 0 && crc32(data) != header.bodyCrc) {
+                    throw new IOException("cache body checksum mismatch");
+                }
+            }
+            recordReadLocked(hash, opened);
+            mStats.recordBytesRead(opened.fileLength);
+            // 返回entry
+            Entry result = header.toCacheEntry(data);
+            result.buffer = buffer;
+            return result;
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", filenameForHash(hash), e.toString());
+            removeCorruptLocked(hash);
+            return null;
+        } catch (NegativeArraySizeException e) {
+            // 错误处理
+            VolleyLog.d("%s: %s", filenameForHash(hash), e.toString());
+            removeCorruptLocked(hash);
+            return null;
+        } finally {
+            if (opened != null) {
+                opened.close();
+            }
+        }
+    }
+
+    /**
+     * 打开缓存文件并读取头部,校验 key 和实体长度. 返回的流位于实体的开始处,由调用者关闭.
+     * 需要持有读锁和 key 的锁
+     *
+     * @return 未命中或者文件属于哈希相同的另一个 key 时返回 null
+     */
+    private OpenedFile openLocked(String key, long hash) throws IOException {
+        boolean indexed = mIndex.contains(hash);
+        File file = getFileForHash(hash);
+        // if the entry does not exist, return.
+        // 索引还在加载时,不在内存中的 key 直接到磁盘上查找
+        if (!indexed && (mInitialized || !file.exists())) {
+            return null;
+        }
+        FileInputStream fis = new FileInputStream(file);
+        CountingInputStream cis = new CountingInputStream(new BufferedInputStream(fis));
+        boolean opened = false;
+        try {
+            // 获取头部 (内存中的索引只有 ttl 等字段,etag 和响应头以文件中的为准)
+            CacheHeader header = CacheHeader.readHeader(cis);
+            if (!key.equals(header.key)) {
+                // 两个 key 的哈希相同,文件属于另一个 key. 不删除文件,只从索引中去掉这个 key
+                VolleyLog.d("%s: key mismatch, expected %s found %s",
+                        file.getAbsolutePath(), key, header.key);
+                if (indexed) {
+                    dropIndexEntry(hash);
+                }
+                return null;
+            }
+            long fileLength = file.length();
+            long bodyLength = fileLength - cis.bytesRead;
+            // 第二版格式记录了实体长度,不需要读取实体就能发现被截断的文件
+            if (header.bodyLength >= 0 && header.bodyLength != bodyLength) {
+                throw new IOException("expected body of " + header.bodyLength
+                        + " bytes, found " + bodyLength);
+            }
+            opened = true;
+            return new OpenedFile(fis, cis, header, fileLength, bodyLength, indexed);
+        } finally {
+            if (!opened) {
+                cis.close();
+            }
+        }
+    }
+
+    /**
+     * 记录一次命中. 需要持有读锁和 key 的锁
+     */
+    private void recordReadLocked(long hash, OpenedFile opened) {
+        if (opened.indexed) {
+            mIndex.touch(hash, mAccessClock.incrementAndGet());
+        }
+        if (mInitialized) {
+            recordPendingRead(hash);
+        } else if (!opened.indexed) {
+            mIndex.put(hash, diskSize(opened.fileLength), opened.header.ttl, opened.header.softTtl,
+                    mAccessClock.incrementAndGet());
+            mTouchedWhileLoading.add(hash);
+        }
+    }
+
+    /**
+     * 记录访问,保证重启后 LRU 顺序不变. 攒够一批后写入日志. 需要持有读锁
+     */
+    private void recordPendingRead(long hash) {
+        boolean full;
+        synchronized (mPendingReadsLock) {
+            mPendingReads[mPendingReadCount++] = hash;
+            full = mPendingReadCount == PENDING_READS;
+        }
+        if (full) {
+            synchronized (mJournal) {
+                drainPendingReads();
+                compactJournalIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * 编码后等待写入的条目
+     */
+    private static class EncodedEntry {
+        final CacheHeader cacheHeader;
+        final byte[] header;
+        /**
+         * 存储的实体 (可能是压缩后的)
+         */
+        final byte[] body;
+
+        EncodedEntry(CacheHeader cacheHeader, byte[] header, byte[] body) {
+            this.cacheHeader = cacheHeader;
+            this.header = header;
+            this.body = body;
+        }
+
+        /**
+         * 写入后的文件长度
+         */
+        long length() {
+            return header.length + body.length;
+        }
+    }
+
+    /**
+     * 已经读取了头部的缓存文件
+     */
+    private static class OpenedFile {
+        final FileInputStream fis;
+        final CountingInputStream cis;
+        final CacheHeader header;
+        final long fileLength;
+        final long bodyLength;
+
+        /**
+         * 打开时该 key 是否在索引中
+         */
+        final boolean indexed;
+
+        OpenedFile(FileInputStream fis, CountingInputStream cis, CacheHeader header,
+                   long fileLength, long bodyLength, boolean indexed) {
+            this.fis = fis;
+            this.cis = cis;
+            this.header = header;
+            this.fileLength = fileLength;
+            this.bodyLength = bodyLength;
+            this.indexed = indexed;
+        }
+
+        void close() {
+            try {
+                cis.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * {@link #openForWrite(String, Entry)} 返回的写入流: 先写入头部 (实体长度和 CRC 暂时为 0),
+     * 实体直接写入临时文件 (需要时边写边压缩),提交时回填头部 (位置固定,头部长度不变),再重命名为缓存文件
+     */
+    private class DiskEntryWriter extends EntryWriter {
+        private final String mKey;
+        private final long mHash;
+        private final CacheHeader mHeader;
+        private final int mHeaderLength;
+        private final File mTemp;
+        private final CheckedOutputStream mStored;
+        private final Deflater mDeflater;
+        private final OutputStream mOut;
+        private Entry mMetadata;
+        private long mLength = 0;
+        private boolean mDone = false;
+
+        DiskEntryWriter(String key, long hash, Entry metadata) throws IOException {
+            mKey = key;
+            mHash = hash;
+            mMetadata = metadata;
+            mHeader = newHeader(key, metadata);
+            // 长度未知,压缩后不一定更小,但文本类型一般都能压缩
+            mDeflater = shouldCompress(metadata, -1) ? new Deflater(Deflater.BEST_SPEED) : null;
+            if (mDeflater != null) {
+                mHeader.flags |= FLAG_DEFLATE;
+                // 占位,实际的长度不会比它的 varint 更长
+                mHeader.uncompressedLength = Long.MAX_VALUE;
+            }
+            byte[] header = mHeader.encode(0);
+            mHeaderLength = header.length;
+            mTemp = newTempFile(hash);
+            OutputStream file = new BufferedOutputStream(new FileOutputStream(mTemp), WRITER_BUFFER_BYTES);
+            mStored = new CheckedOutputStream(file, new CRC32());
+            mOut = mDeflater == null ? mStored : new DeflaterOutputStream(mStored, mDeflater);
+            try {
+                file.write(header);
+            } catch (IOException e) {
+                abort();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkOpen();
+            mOut.write(b);
+            mLength++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checkOpen();
+            mOut.write(b, off, len);
+            mLength += len;
+        }
+
+        @Override
+        public void setMetadata(Entry metadata) {
+            mMetadata = metadata;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            checkOpen();
+            mDone = true;
+            long stored;
+            CacheHeader header;
+            // 元数据在打开之后被替换,新的头部放不下时先提交旧的头部,再更新
+            boolean updateAfterCommit = false;
+            try {
+                mOut.close();
+                stored = mTemp.length() - mHeaderLength;
+                header = newHeader(mKey, mMetadata);
+                header.flags = mHeader.flags;
+                fillBody(header, stored);
+                byte[] encoded = header.encode(mHeaderLength);
+                if (encoded == null) {
+                    updateAfterCommit = true;
+                    header = mHeader;
+                    fillBody(header, stored);
+                    encoded = header.encode(mHeaderLength);
+                }
+                RandomAccessFile raf = new RandomAccessFile(mTemp, "rw");
+                try {
+                    raf.write(encoded);
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                mTemp.delete();
+                throw e;
+            } finally {
+                if (mDeflater != null) {
+                    mDeflater.end();
+                }
+            }
+            long size = diskSize(mHeaderLength + stored);
+            mStateLock.readLock().lock();
+            try {
+                makeRoomFor(size);
+                synchronized (lockFor(mHash)) {
+                    try {
+                        recordDirty(mHash);
+                        moveIntoPlace(mTemp, getFileForHash(mHash));
+                    } catch (IOException e) {
+                        mTemp.delete();
+                        throw e;
+                    }
+                    recordPut(mHash, size, header.ttl, header.softTtl);
+                }
+                mStats.recordBytesWritten(mHeaderLength + stored);
+            } finally {
+                mStateLock.readLock().unlock();
+            }
+            if (updateAfterCommit) {
+                updateMetadata(mKey, mMetadata);
+            }
+        }
+
+        private void fillBody(CacheHeader header, long stored) {
+            header.bodyLength = stored;
+            header.bodyCrc = (int) mStored.getChecksum().getValue();
+            if ((header.flags & FLAG_DEFLATE) != 0) {
+                header.uncompressedLength = mLength;
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+            if (mDeflater != null) {
+                mDeflater.end();
+            }
+            if (mTemp.exists() && !mTemp.delete()) {
+                VolleyLog.e("Could not clean up file %s", mTemp.getAbsolutePath());
+            }
+        }
+
+        @Override
+        public void close() {
+            abort();
+        }
+
+        private void checkOpen() throws IOException {
+            if (mDone) {
+                throw new IOException("writer for " + mKey + " already committed or aborted");
+            }
+        }
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public void remove(String key) {
+        long hash = hashKey(key);
+        mStateLock.readLock().lock();
+        try {
+            synchronized (lockFor(hash)) {
+                removeLocked(hash);
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 需要持有读锁和 key 的锁
+     */
+    private void removeLocked(long hash) {
+        boolean deleted = getFileForHash(hash).delete();
+        dropIndexEntry(hash);
+        if (!deleted) {
+            VolleyLog.d("Could not delete cache file %s", filenameForHash(hash));
+        }
+    }
+
+    /**
+     * 删除读写失败的条目,记为 {@link CacheStats.EvictionReason#CORRUPT}. 需要持有读锁和 key 的锁
+     */
+    private void removeCorruptLocked(long hash) {
+        mStats.recordEviction(CacheStats.EvictionReason.CORRUPT);
+        removeLocked(hash);
+    }
+
+    /**
+     * 将写入的条目放入索引并记录到日志. 需要持有读锁和 key 的锁
+     */
+    private void recordPut(long hash, long size, long ttl, long softTtl) {
+        mIndex.put(hash, size, ttl, softTtl, mAccessClock.incrementAndGet());
+        mEvictionPolicy.onPut(hash, size);
+        if (mInitialized) {
+            synchronized (mJournal) {
+                drainPendingReads();
+                mJournal.appendPut(hash, size, ttl, softTtl);
+                compactJournalIfNeeded();
+            }
+        } else {
+            mTouchedWhileLoading.add(hash);
+        }
+    }
+
+    /**
+     * 缓存文件重命名到位之前记录到日志,重命名和 {@link #recordPut} 之间崩溃时,
+     * 下次启动会删除这个文件. 需要持有读锁和 key 的锁
+     */
+    private void recordDirty(long hash) {
+        if (mInitialized) {
+            synchronized (mJournal) {
+                mJournal.appendDirty(hash);
+            }
+        }
+    }
+
+    /**
+     * 从索引中去掉 key,不删除文件. 需要持有读锁和 key 的锁
+     */
+    private void dropIndexEntry(long hash) {
+        mEvictionPolicy.onRemove(hash);
+        if (!mInitialized) {
+            mIndex.remove(hash);
+            mTouchedWhileLoading.add(hash);
+        } else if (mIndex.remove(hash)) {
+            synchronized (mJournal) {
+                drainPendingReads();
+                mJournal.appendRemove(hash);
+            }
+        }
+    }
 
     /**
-     * 用于缓存格式化的字符串
+     * 从磁盘中清除缓存
      */
-    private static final int CACHE_MAGIC = 0x20150306;
+    @Override
+    public void clear() {
+        mStateLock.writeLock().lock();
+        try {
+            File[] files = mRootDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    String name = file.getName();
+                    if (isShardName(name)) {
+                        // 保留分目录,只删除其中的文件
+                        File[] shards = file.listFiles();
+                        if (shards != null) {
+                            for (File shard : shards) {
+                                deleteFiles(shard);
+                            }
+                        }
+                    } else if (!TEMP_DIR.equals(name)) {
+                        file.delete();
+                    }
+                }
+            }
+            mIndex.clear();
+            mEvictionPolicy.clear();
+            if (mInitialized) {
+                rebuildJournal();
+            } else {
+                mClearedWhileLoading = true;
+                mTouchedWhileLoading.clear();
+            }
+        } finally {
+            mStateLock.writeLock().unlock();
+        }
+        VolleyLog.d("Cache cleared.");
+    }
 
     /**
-     * @param rootDirectory       缓存根目录
-     * @param maxCacheSizeInBytes 最大的缓存数
+     * 写入都是同步完成的,只需要将缓冲的 READ 记录写入日志
      */
-    public DiskBasedCache(File rootDirectory, long maxCacheSizeInBytes) {
-        mRootDirectory = rootDirectory;
-        mMaxCacheSizeInBytes = maxCacheSizeInBytes;
-    }
-
-    public DiskBasedCache(File rootDirectory) {
-        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    @Override
+    public void flush() {
+        if (!mInitialized) {
+            return;
+        }
+        synchronized (mJournal) {
+            drainPendingReads();
+            mJournal.flush();
+        }
     }
 
     /**
-     * 扫描缓存目录,将缓存头部从磁盘中取到内存中
-     * (注意只是头部,真正的缓存消息,还需要从硬盘中获取)
+     * 停止后台清理线程,等待正在进行的清理完成. 之后的写入在当前线程清理,
+     * 再次调用 {@link #initialize()} 时重新启动
      */
     @Override
-    public synchronized void initialize() {
-        // 如果缓存目录不存在,就创建
-        if (!mRootDirectory.exists()) {
-            if (!mRootDirectory.mkdirs()) {
-                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
-            }
-            return;
+    public void shutdown() {
+        Thread sweeper;
+        synchronized (mSweepSignal) {
+            sweeper = mSweeper;
+            mSweeper = null;
+            mSweepSignal.notifyAll();
         }
+        joinQuietly(sweeper);
+    }
 
-        // 列出缓存列表中的所有数据
-        File[] files = mRootDirectory.listFiles();
-        if (files == null) {
+    /**
+     * 修剪已缓存的大小(释放缓存的空间,以适应最新的缓存进入)
+     * <p>
+     * 先按过期时间删除已经过期的条目,仍然不够时再按淘汰策略删除.
+     * 需要持有读锁,不能持有任何 key 的锁: 清理时会逐个获取被淘汰的 key 的锁
+     *
+     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     */
+    private void pruneIfNeeded(long neededSpace) {
+        // 如果占用的大小 < 最大缓存数,则直接返回
+        // 索引还在加载时不知道真正的占用大小,等加载完成后再清理
+        if (!mInitialized || (mIndex.totalSize() + neededSpace) < mMaxCacheSizeInBytes) {
             return;
         }
-        for (File file : files) {
-            BufferedInputStream fis = null;
-            try {
-                fis = new BufferedInputStream(new FileInputStream(file));
-                // 将输入流 转化为 CacheHeader
-                CacheHeader entry = CacheHeader.readHeader(fis);
-                // 单个缓存文本的大小为文件的大小
-                entry.size = file.length();
-                // 将缓存的头部字段放入内存中
-                putEntry(entry.key, entry);
-            } catch (IOException e) {
-                file.delete();
-            } finally {
-                try {
-                    if (fis != null) {
-                        fis.close();
+        mPruneLock.lock();
+        try {
+            // 等待锁的过程中,其他线程可能已经清理过了
+            if ((mIndex.totalSize() + neededSpace) < mMaxCacheSizeInBytes) {
+                return;
+            }
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Pruning old cache entries.");
+            }
+
+            long before = mIndex.totalSize();
+            int prunedFiles = 0;
+            long startTime = SystemClock.elapsedRealtime();
+
+            // 先删除已经过期的条目,最早过期的在前
+            long target = (long) (mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) - neededSpace;
+            prunedFiles += evictExpired(System.currentTimeMillis(), target);
+
+            // 快照按访问顺序排列 (最久未使用的在前),由淘汰策略决定淘汰顺序
+            if (mIndex.totalSize() >= target) {
+                CacheIndex.Snapshot entries = mIndex.snapshot();
+                int[] order = mEvictionPolicy.order(entries.hashes, entries.sizes, entries.count);
+                for (int i : order) {
+                    if (evict(entries.hashes[i], entries.accesses[i])) {
+                        prunedFiles++;
+                    }
+                    if (mIndex.totalSize() < target) {
+                        break;
                     }
-                } catch (IOException ignored) {
                 }
             }
+
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("pruned %d files, %d bytes, %d ms", prunedFiles,
+                        (mIndex.totalSize() - before), SystemClock.elapsedRealtime() - startTime);
+            }
+        } finally {
+            mPruneLock.unlock();
         }
     }
 
     /**
-     * 让这个entry无效
+     * 淘汰一个条目. 如果在取得快照之后该 key 已经被访问,重新写入或删除,则跳过
      *
-     * @param key        Cache key
-     * @param fullExpire True to fully expire the entry, false to soft expire
+     * @param access 快照中该条目的访问序号
      */
-    @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    private boolean evict(long hash, long access) {
+        synchronized (lockFor(hash)) {
+            if (!mIndex.removeIfUnchanged(hash, access)) {
+                return false;
             }
-            put(key, entry);
+            deleteEvictedLocked(hash);
+            mStats.recordEviction(CacheStats.EvictionReason.SIZE);
+            return true;
         }
     }
 
     /**
-     * 将缓存文件写入磁盘
+     * 按过期时间删除条目,直到占用的大小低于 targetSize 或者没有更多过期的条目.
+     * 需要持有读锁,不能持有任何 key 的锁
+     *
+     * @param expiredBefore 删除 ttl 早于该时间的条目
+     * @return 删除的条目数
      */
-    @Override
-    public synchronized void put(String key, Entry entry) {
-//        VolleyLog.e("写入磁盘");
-        // 放入前先检查是否有剩余空间缓存,没有的话,需要清理
-        pruneIfNeeded(entry.data.length);
-        // 获取缓存文件,没有则新建空文件
-        File file = getFileForKey(key);
-        try {
-            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
-            // 向fos中写入cache头部
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
-            // 写入失败处理
-            if (!success) {
-                fos.close();
-                VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
-                throw new IOException();
+    private int evictExpired(long expiredBefore, long targetSize) {
+        long[] hashes = new long[EXPIRED_BATCH];
+        int evicted = 0;
+        while (mIndex.totalSize() >= targetSize) {
+            int n = mIndex.pollExpired(expiredBefore, hashes);
+            if (n == 0) {
+                break;
+            }
+            // 取出的条目不再在堆中,即使已经低于目标大小也全部删除
+            for (int i = 0; i < n; i++) {
+                synchronized (lockFor(hashes[i])) {
+                    if (mIndex.removeIfExpired(hashes[i], expiredBefore)) {
+                        deleteEvictedLocked(hashes[i]);
+                        mStats.recordEviction(CacheStats.EvictionReason.EXPIRED);
+                        evicted++;
+                    }
+                }
             }
-            // 写入实体数据
-            fos.write(entry.data);
-            fos.close();
-            // 将缓存的头部信息放入内存
-            putEntry(key, e);
-            return;
-        } catch (IOException e) {
-        }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.e("Could not clean up file %s", file.getAbsolutePath());
         }
+        return evicted;
     }
 
     /**
-     * 根据cache key 获取内存中的缓存数据(包含实体数据)
+     * 删除已经从索引中去掉的条目的文件,并记录到日志. 需要持有 key 的锁
      */
-    @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
+    private void deleteEvictedLocked(long hash) {
+        mEvictionPolicy.onRemove(hash);
+        boolean deleted = getFileForHash(hash).delete();
+        if (!deleted) {
+            VolleyLog.d("Could not delete cache file %s", filenameForHash(hash));
+        }
+        synchronized (mJournal) {
+            drainPendingReads();
+            mJournal.appendRemove(hash);
         }
+    }
 
-        File file = getFileForKey(key);
-        CountingInputStream cis = null;
-        try {
-            // 创建输入流
-            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
-            // 获取头部
-            CacheHeader.readHeader(cis); // eat header
-            // 读取实体
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            // 返回entry
-            return entry.toCacheEntry(data);
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
-        } catch (NegativeArraySizeException e) {
-            // 错误处理
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
-        } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException ioe) {
-                }
+    private void startSweeper() {
+        synchronized (mSweepSignal) {
+            if (mSweeper != null) {
+                return;
             }
+            Thread sweeper = new Thread("bees-cache-sweeper") {
+                @Override
+                public void run() {
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    sweepForever();
+                }
+            };
+            sweeper.setDaemon(true);
+            sweeper.start();
+            mSweeper = sweeper;
         }
     }
 
     /**
-     * Removes the specified key from the cache if it exists.
+     * 唤醒后台清理线程
      */
-    @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted) {
-            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
+    private void requestSweep() {
+        synchronized (mSweepSignal) {
+            mSweepRequested = true;
+            mSweepSignal.notifyAll();
         }
     }
 
     /**
-     * 从磁盘中清除缓存
+     * 定期 (或者被写入唤醒时) 删除过期较久的条目,超出容量时清理空间.
+     * {@link #shutdown()} 之后不再是 mSweeper 时退出
      */
-    @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+    private void sweepForever() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            synchronized (mSweepSignal) {
+                if (!mSweepRequested && mSweeper == self) {
+                    try {
+                        mSweepSignal.wait(SWEEP_INTERVAL_MS);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                if (mSweeper != self) {
+                    return;
+                }
+                mSweepRequested = false;
+            }
+            if (!mInitialized) {
+                continue;
+            }
+            try {
+                if (mBackgroundSweep) {
+                    sweepExpired();
+                }
+                if (mBackgroundSpaceManager) {
+                    trimToLowWatermark();
+                }
+            } catch (RuntimeException e) {
+                VolleyLog.e(e, "Cache sweep failed");
             }
         }
-        mEntries.clear();
-        mTotalSize = 0;
-        VolleyLog.d("Cache cleared.");
+    }
+
+    private void sweepExpired() {
+        mStateLock.readLock().lock();
+        try {
+            int swept = evictExpired(System.currentTimeMillis() - mExpiredRetentionMs, 0);
+            if (swept > 0 && VolleyLog.DEBUG) {
+                VolleyLog.v("swept %d expired entries", swept);
+            }
+        } finally {
+            mStateLock.readLock().unlock();
+        }
     }
 
     /**
-     * 修剪已缓存的大小(释放缓存的空间,以适应最新的缓存进入)
-     *
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * 占用超过高水位时,先删除过期的条目,再按淘汰策略删除,直到低于低水位.
+     * 分批持有读锁和清理锁 (顺序和写入线程相同),批次之间写入和 {@link #clear()} 都可以进行
      */
-    private void pruneIfNeeded(int neededSpace) {
-        // 如果占用的大小 < 最大缓存数,则直接返回
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+    private void trimToLowWatermark() {
+        if (mIndex.totalSize() < highWatermark()) {
             return;
         }
-        //
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
-        }
-
-        long before = mTotalSize;
-        int prunedFiles = 0;
+        long target = (long) (mMaxCacheSizeInBytes * LOW_WATERMARK_FACTOR);
+        long before = mIndex.totalSize();
         long startTime = SystemClock.elapsedRealtime();
-
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-            } else {
-                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                        e.key, getFilenameForKey(e.key));
+        int trimmed = 0;
+        CacheIndex.Snapshot entries;
+        int[] order;
+        mStateLock.readLock().lock();
+        mPruneLock.lock();
+        try {
+            trimmed += evictExpired(System.currentTimeMillis(), target);
+            if (mIndex.totalSize() < target) {
+                return;
             }
-            iterator.remove();
-            prunedFiles++;
-
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
+            entries = mIndex.snapshot();
+            order = mEvictionPolicy.order(entries.hashes, entries.sizes, entries.count);
+        } finally {
+            mPruneLock.unlock();
+            mStateLock.readLock().unlock();
+        }
+        int next = 0;
+        while (next < order.length && mIndex.totalSize() >= target) {
+            mStateLock.readLock().lock();
+            mPruneLock.lock();
+            try {
+                int end = Math.min(order.length, next + TRIM_BATCH);
+                for (; next < end && mIndex.totalSize() >= target; next++) {
+                    int i = order[next];
+                    // 批次之间被访问或者重新写入的条目会被跳过
+                    if (evict(entries.hashes[i], entries.accesses[i])) {
+                        trimmed++;
+                    }
+                }
+            } finally {
+                mPruneLock.unlock();
+                mStateLock.readLock().unlock();
             }
         }
-
         if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+            VolleyLog.v("trimmed %d files, %d bytes, %d ms", trimmed,
+                    (before - mIndex.totalSize()), SystemClock.elapsedRealtime() - startTime);
         }
     }
 
     /**
-     * 将缓存放入内存中
+     * 根据内存中的索引重写日志. 快照在日志锁内获取,之后的操作一定会追加在新日志之后
      */
-    private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            // 如果内存中没有,直接加上文件的大小
-            mTotalSize += entry.size;
-        } else {
-            // 如果内存中有,则丢弃久的保存新的
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
+    private void rebuildJournal() {
+        synchronized (mJournal) {
+            discardPendingReads();
+            mJournal.rebuild(mIndex.snapshot());
+        }
+    }
+
+    /**
+     * 冗余记录过多时,根据内存中的索引重写日志
+     */
+    private void compactJournalIfNeeded() {
+        synchronized (mJournal) {
+            if (mJournal.needsCompaction(mIndex.count())) {
+                discardPendingReads();
+                mJournal.rebuild(mIndex.snapshot());
+            }
         }
-        mEntries.put(key, entry);
     }
 
     /**
-     * Removes the entry identified by 'key' from the cache.
+     * 将缓冲的 READ 记录写入日志 (不 flush). 需要持有日志锁
      */
-    private void removeEntry(String key) {
-        CacheHeader entry = mEntries.get(key);
-        if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(key);
+    private void drainPendingReads() {
+        long[] reads;
+        int count;
+        synchronized (mPendingReadsLock) {
+            if (mPendingReadCount == 0) {
+                return;
+            }
+            reads = mPendingReads;
+            count = mPendingReadCount;
+            mPendingReads = mDrainingReads;
+            mPendingReadCount = 0;
+        }
+        mJournal.appendReads(reads, count);
+        mDrainingReads = reads;
+    }
+
+    /**
+     * 重写日志之前丢弃缓冲的 READ 记录,访问顺序已经在索引快照中. 需要持有日志锁
+     */
+    private void discardPendingReads() {
+        synchronized (mPendingReadsLock) {
+            mPendingReadCount = 0;
         }
     }
 
+    private Object lockFor(long hash) {
+        return mKeyLocks[(int) hash & (LOCK_STRIPES - 1)];
+    }
+
 
     /**
      * Handles holding onto the cache headers for an entry.
@@ -353,12 +2059,37 @@ public class DiskBasedCache implements Cache {
 
         public Map<String, String> responseHeaders;
 
-        private CacheHeader() {
+        /**
+         * 第二版格式的标志位,见 {@link #FLAG_DEFLATE}
+         */
+        int flags;
+
+        /**
+         * 压缩前的实体长度,只在实体经过压缩时有效
+         */
+        long uncompressedLength = -1;
+
+        /**
+         * 实体的长度,第一版格式的文件为 -1 (未知)
+         */
+        long bodyLength = -1;
+
+        /**
+         * 实体的 CRC32 (第二版格式)
+         */
+        int bodyCrc;
+
+        /**
+         * 头部长度,包括预留的空间 (第二版格式,从文件中读取时设置)
+         */
+        int headerLength;
+
+        CacheHeader() {
         }
 
         public CacheHeader(String key, Entry entry) {
             this.key = key;
-            this.size = entry.data.length;
+            this.size = entry.data == null ? 0 : entry.data.length;
             this.etag = entry.etag;
             this.serverDate = entry.serverDate;
             this.lastModified = entry.lastModified;
@@ -367,14 +2098,54 @@ public class DiskBasedCache implements Cache {
             this.responseHeaders = entry.responseHeaders;
         }
 
-        // 从输入流中读取头部信息
+        // 从输入流中读取头部信息,读取完后输入流位于实体的开始处
         public static CacheHeader readHeader(InputStream is) throws IOException {
-            CacheHeader entry = new CacheHeader();
-            int magic = readInt(is);
-            if (magic != CACHE_MAGIC) {
+            byte[] prefix = streamToBytes(is, 8);
+            int headerLength = headerLength(prefix);
+            if (headerLength < 0) {
+                // 第一版格式没有头部长度,只能逐个字段读取
+                return readHeaderV1(new SequenceInputStream(
+                        new ByteArrayInputStream(prefix), is));
+            }
+            // 一次读入整个头部,在内存中解码
+            byte[] bytes = new byte[headerLength];
+            System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+            int pos = prefix.length;
+            while (pos < headerLength) {
+                int count = is.read(bytes, pos, headerLength - pos);
+                if (count == -1) {
+                    throw new EOFException();
+                }
+                pos += count;
+            }
+            return decode(ByteBuffer.wrap(bytes));
+        }
+
+        /**
+         * 根据头部的前 8 个字节 (magic 和头部长度) 返回头部长度,第一版格式返回 -1
+         */
+        static int headerLength(byte[] prefix) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(prefix).order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buf.getInt();
+            if (magic == CACHE_MAGIC) {
+                return -1;
+            }
+            if (magic != CACHE_MAGIC_V2 && magic != CACHE_MAGIC_V3) {
                 // don't bother deleting, it'll get pruned eventually
+                throw new IOException("bad magic " + Integer.toHexString(magic));
+            }
+            int headerLength = buf.getInt();
+            if (headerLength < FIXED_HEADER_BYTES_V2 || headerLength > MAX_HEADER_BYTES) {
+                throw new IOException("bad header length " + headerLength);
+            }
+            return headerLength;
+        }
+
+        private static CacheHeader readHeaderV1(InputStream is) throws IOException {
+            if (readInt(is) != CACHE_MAGIC) {
                 throw new IOException();
             }
+            CacheHeader entry = new CacheHeader();
             entry.key = readString(is);
             entry.etag = readString(is);
             if (entry.etag.equals("")) {
@@ -384,11 +2155,60 @@ public class DiskBasedCache implements Cache {
             entry.lastModified = readLong(is);
             entry.ttl = readLong(is);
             entry.softTtl = readLong(is);
-            entry.responseHeaders = readStringStringMap(is);
+            entry.responseHeaders = readStringStringMap(is, KNOWN_HEADER_NAMES);
 
             return entry;
         }
 
+        /**
+         * 从 buffer 中解码第二版或第三版头部,buffer 包含从 magic 开始的整个头部
+         */
+        static CacheHeader decode(ByteBuffer buf) throws IOException {
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                int magic = buf.getInt();
+                boolean compact = magic == CACHE_MAGIC_V3;
+                if (!compact && magic != CACHE_MAGIC_V2) {
+                    throw new IOException("bad magic " + Integer.toHexString(magic));
+                }
+                CacheHeader entry = new CacheHeader();
+                entry.headerLength = buf.getInt();
+                if (entry.headerLength > buf.limit()) {
+                    throw new EOFException();
+                }
+                // 不读取头部之后的实体
+                buf.limit(entry.headerLength);
+                entry.ttl = buf.getLong();
+                entry.softTtl = buf.getLong();
+                entry.flags = buf.getInt();
+                entry.bodyCrc = buf.getInt();
+                entry.bodyLength = buf.getLong();
+                entry.serverDate = buf.getLong();
+                entry.lastModified = buf.getLong();
+                if (compact) {
+                    entry.key = readVarString(buf);
+                    entry.etag = readVarString(buf);
+                    entry.responseHeaders = readVarStringMap(buf, KNOWN_HEADER_NAMES);
+                    if ((entry.flags & FLAG_DEFLATE) != 0) {
+                        entry.uncompressedLength = readVarint(buf);
+                    }
+                } else {
+                    entry.key = readLongString(buf);
+                    entry.etag = readLongString(buf);
+                    entry.responseHeaders = readLongStringMap(buf, KNOWN_HEADER_NAMES);
+                    if ((entry.flags & FLAG_DEFLATE) != 0) {
+                        entry.uncompressedLength = buf.getLong();
+                    }
+                }
+                if (entry.etag.equals("")) {
+                    entry.etag = null;
+                }
+                return entry;
+            } catch (BufferUnderflowException e) {
+                throw new EOFException();
+            }
+        }
+
         /**
          * 根据实体数据,转化为entry
          */
@@ -407,18 +2227,28 @@ public class DiskBasedCache implements Cache {
 
 
         /**
-         * 将cache的头部信息写入输入流
+         * 将cache的头部信息写入输入流 (第三版格式):
+         * <pre>
+         *     int    CACHE_MAGIC_V3
+         *     int    headerLength (包括 magic,实体从该偏移开始)
+         *     long   ttl
+         *     long   softTtl
+         *     int    flags
+         *     int    实体的 CRC32
+         *     long   实体长度
+         *     long   serverDate
+         *     long   lastModified
+         *     string key, string etag (varint 长度 + UTF-8)
+         *     varint 响应头个数, 每个响应头为 string name, string value
+         *     [varint 压缩前的实体长度, 只在 flags 包含 FLAG_DEFLATE 时存在]
+         *     预留空间 (填充 0)
+         * </pre>
+         * ttl 等定长字段的位置固定,更新元数据时可以在原位置重写头部.
+         * 需要先设置 {@link #bodyLength} 和 {@link #bodyCrc}
          */
         public boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, lastModified);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeStringStringMap(responseHeaders, os);
+                os.write(encode(0));
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -427,6 +2257,41 @@ public class DiskBasedCache implements Cache {
             }
         }
 
+        /**
+         * 序列化第三版头部
+         *
+         * @param headerLength 头部的总长度,不足的部分填充 0; 为 0 时使用默认的预留空间
+         * @return 头部数据,超出 headerLength 时返回 null
+         */
+        byte[] encode(int headerLength) throws IOException {
+            ByteArrayOutputStream variable = new ByteArrayOutputStream();
+            writeVarString(variable, key);
+            writeVarString(variable, etag == null ? "" : etag);
+            writeVarStringMap(responseHeaders, variable);
+            if ((flags & FLAG_DEFLATE) != 0) {
+                writeVarint(variable, uncompressedLength);
+            }
+
+            int length = FIXED_HEADER_BYTES_V2 + variable.size();
+            if (headerLength == 0) {
+                headerLength = length + HEADER_SLACK_BYTES;
+            } else if (length > headerLength) {
+                return null;
+            }
+            ByteArrayOutputStream os = new ByteArrayOutputStream(headerLength);
+            writeInt(os, CACHE_MAGIC_V3);
+            writeInt(os, headerLength);
+            writeLong(os, ttl);
+            writeLong(os, softTtl);
+            writeInt(os, flags);
+            writeInt(os, bodyCrc);
+            writeLong(os, bodyLength);
+            writeLong(os, serverDate);
+            writeLong(os, lastModified);
+            variable.writeTo(os);
+            os.write(new byte[headerLength - length]);
+            return os.toByteArray();
+        }
     }
 
     private static class CountingInputStream extends FilterInputStream {
@@ -457,131 +2322,169 @@ public class DiskBasedCache implements Cache {
 
     /**
      * Creates a pseudo-unique filename for the specified cache key.
-     * 根据cache key 生成一个伪加密的可以
+     * 文件名为 key 的 64 位哈希 (16 个十六进制字符), 见 {@link #hashKey(String)}
      */
-    private String getFilenameForKey(String key) {
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+    private static String filenameForHash(long hash) {
+        char[] name = new char[16];
+        for (int i = 15; i >= 0; i--) {
+            name[i] = HEX_DIGITS[(int) (hash & 0xF)];
+            hash >>>= 4;
+        }
+        return new String(name);
     }
 
     /**
-     * 根据cache key 返回对应的文件
+     * 根据cache key 返回对应的文件.
+     * 按文件名的前两个字符分两级目录存放 (例如 a/3/a3f0...),每个目录中的文件数保持在较小的范围
      */
-    private File getFileForKey(String key) {
-        return new File(mRootDirectory, getFilenameForKey(key));
+    private File getFileForHash(long hash) {
+        String name = filenameForHash(hash);
+        File shard = new File(new File(mRootDirectory, name.substring(0, 1)), name.substring(1, 2));
+        return new File(shard, name);
     }
 
-    /*
-     * Homebrewed simple serialization system used for reading and writing cache
-     * headers on disk. Once upon a time, this used the standard Java
-     * Object{Input,Output}Stream, but the default implementation relies heavily
-     * on reflection (even for standard types) and generates a ton of garbage.
-     */
-
     /**
-     * Simple wrapper around {@link InputStream#read()} that throws EOFException
-     * instead of returning -1.
+     * key 的 64 位哈希 (FNV-1a, 再经过 MurmurHash3 的 fmix64 打散). 不会返回 0 (索引中表示空槽)
      */
-    private static int read(InputStream is) throws IOException {
-        int b = is.read();
-        if (b == -1) {
-            throw new EOFException();
+    static long hashKey(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
         }
-        return b;
-    }
-
-    private static int readInt(InputStream is) throws IOException {
-        int n = 0;
-        n |= (read(is) << 0);
-        n |= (read(is) << 8);
-        n |= (read(is) << 16);
-        n |= (read(is) << 24);
-        return n;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
     }
 
-    private static long readLong(InputStream is) throws IOException {
-        long n = 0;
-        n |= ((read(is) & 0xFFL) << 0);
-        n |= ((read(is) & 0xFFL) << 8);
-        n |= ((read(is) & 0xFFL) << 16);
-        n |= ((read(is) & 0xFFL) << 24);
-        n |= ((read(is) & 0xFFL) << 32);
-        n |= ((read(is) & 0xFFL) << 40);
-        n |= ((read(is) & 0xFFL) << 48);
-        n |= ((read(is) & 0xFFL) << 56);
-        return n;
+    /**
+     * 等待后台线程退出,被中断时不再等待. thread 为 null 或者是当前线程时直接返回
+     */
+    static void joinQuietly(Thread thread) {
+        if (thread == null || thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private static String readString(InputStream is) throws IOException {
-        int n = (int) readLong(is);
-        byte[] b = streamToBytes(is, n);
-        return new String(b, "UTF-8");
+    /**
+     * 是否是第一级分目录的名字 (一个十六进制字符)
+     */
+    private static boolean isShardName(String name) {
+        return name.length() == 1 && Character.digit(name.charAt(0), 16) >= 0;
     }
 
-    private static Map<String, String> readStringStringMap(InputStream is) throws IOException {
-        int size = readInt(is);
-        Map<String, String> result = (size == 0)
-                ? Collections.<String, String>emptyMap()
-                : new HashMap<String, String>(size);
-        for (int i = 0; i < size; i++) {
-            String key = readString(is).intern();
-            String value = readString(is).intern();
-            result.put(key, value);
+    /**
+     * 删除目录中的文件 (不递归)
+     */
+    private static void deleteFiles(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
         }
-        return result;
-    }
-
-    private static void writeInt(OutputStream os, int n) throws IOException {
-        os.write((n >> 0) & 0xff);
-        os.write((n >> 8) & 0xff);
-        os.write((n >> 16) & 0xff);
-        os.write((n >> 24) & 0xff);
     }
 
-    private static void writeLong(OutputStream os, long n) throws IOException {
-        os.write((byte) (n >>> 0));
-        os.write((byte) (n >>> 8));
-        os.write((byte) (n >>> 16));
-        os.write((byte) (n >>> 24));
-        os.write((byte) (n >>> 32));
-        os.write((byte) (n >>> 40));
-        os.write((byte) (n >>> 48));
-        os.write((byte) (n >>> 56));
+    /**
+     * 是否压缩该实体: 已开启压缩,实体足够大,是文本类型,并且没有经过 Content-Encoding 编码
+     *
+     * @param length 实体长度,-1 表示未知 (以流的方式写入),此时按 Content-Length 判断
+     */
+    private boolean shouldCompress(Entry entry, long length) {
+        if (!mCompressionEnabled || entry.responseHeaders == null) {
+            return false;
+        }
+        if (length < 0) {
+            String declared = headerValue(entry.responseHeaders, HTTP.CONTENT_LEN);
+            if (declared != null) {
+                try {
+                    length = Long.parseLong(declared.trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        if (length >= 0 && length < mCompressionMinBytes) {
+            return false;
+        }
+        if (headerValue(entry.responseHeaders, HTTP.CONTENT_ENCODING) != null) {
+            return false;
+        }
+        String contentType = headerValue(entry.responseHeaders, HTTP.CONTENT_TYPE);
+        if (contentType == null) {
+            return false;
+        }
+        contentType = contentType.toLowerCase(Locale.US);
+        return contentType.startsWith("text/")
+                || contentType.contains("json")
+                || contentType.contains("xml")
+                || contentType.contains("javascript");
     }
 
-    private static void writeString(OutputStream os, String s) throws IOException {
-        byte[] b = s.getBytes("UTF-8");
-        writeLong(os, b.length);
-        os.write(b, 0, b.length);
+    /**
+     * 忽略大小写查找响应头
+     */
+    private static String headerValue(Map<String, String> headers, String name) {
+        String value = headers.get(name);
+        if (value != null) {
+            return value;
+        }
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey())) {
+                return header.getValue();
+            }
+        }
+        return null;
     }
 
-    private static void writeStringStringMap(Map<String, String> map, OutputStream os) throws IOException {
-        if (map != null) {
-            writeInt(os, map.size());
-            for (Map.Entry<String, String> entry : map.entrySet()) {
-                writeString(os, entry.getKey());
-                writeString(os, entry.getValue());
-            }
-        } else {
-            writeInt(os, 0);
+    private static byte[] deflate(byte[] data) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+            DeflaterOutputStream dos = new DeflaterOutputStream(bytes, deflater);
+            dos.write(data);
+            dos.finish();
+            return bytes.toByteArray();
+        } finally {
+            deflater.end();
         }
     }
 
     /**
-     * Reads the contents of an InputStream into a byte[].
+     * 从输入流中解压实体,并校验压缩数据的长度和 CRC
      */
-    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
-        byte[] bytes = new byte[length];
-        int count;
-        int pos = 0;
-        while (pos < length && ((count = in.read(bytes, pos, length - pos)) != -1)) {
-            pos += count;
+    private static byte[] inflate(InputStream is, CacheHeader header) throws IOException {
+        if (header.uncompressedLength < 0 || header.uncompressedLength > Integer.MAX_VALUE) {
+            throw new IOException("bad uncompressed length " + header.uncompressedLength);
         }
-        if (pos != length) {
-            throw new IOException("Expected " + length + " bytes, read " + pos + " bytes");
+        CheckedInputStream checked = new CheckedInputStream(is, new CRC32());
+        InflaterInputStream inflater = new InflaterInputStream(checked);
+        try {
+            byte[] data = streamToBytes(inflater, (int) header.uncompressedLength);
+            // 实体在文件末尾 (长度已经校验过),读完剩余的压缩数据,CRC 覆盖全部压缩数据
+            byte[] skip = new byte[512];
+            while (checked.read(skip) != -1) {
+                // drain
+            }
+            if ((int) checked.getChecksum().getValue() != header.bodyCrc) {
+                throw new IOException("cache body checksum mismatch");
+            }
+            return data;
+        } finally {
+            inflater.close();
         }
-        return bytes;
+    }
+
+    static int crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
     }
 }
@@ -0,0 +1,46 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+/**
+ * {@link DiskBasedCache} 的淘汰策略: 决定缓存超出容量时按什么顺序删除条目.
+ * <p>
+ * 条目以 key 的 64 位哈希表示 (见 {@link DiskBasedCache#hashKey(String)}).
+ * 回调可能在多个线程中同时调用,实现需要自己保证线程安全.
+ *
+ * @see LruPolicy
+ * @see TinyLfuPolicy
+ * @see GdsfPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * 查找一个 key,无论是否命中
+     */
+    void onAccess(long hash);
+
+    /**
+     * 写入 (或覆盖) 一个条目
+     *
+     * @param size 条目在磁盘上的大小
+     */
+    void onPut(long hash, long size);
+
+    /**
+     * 条目被删除或淘汰
+     */
+    void onRemove(long hash);
+
+    /**
+     * 缓存被清空
+     */
+    void clear();
+
+    /**
+     * 返回淘汰顺序. 缓存从返回的第一个下标开始依次删除,直到腾出足够的空间
+     *
+     * @param hashes 所有条目,按最久未使用的在前排列
+     * @param sizes  与 hashes 对应的大小
+     * @param count  条目数 (数组可能更长)
+     * @return 0 ~ count-1 的一个排列
+     */
+    int[] order(long[] hashes, long[] sizes, int count);
+}
@@ -0,0 +1,171 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 在内存中回放访问记录,比较不同 {@link EvictionPolicy} 的命中率,不读写磁盘.
+ * <p>
+ * 模拟 {@link DiskBasedCache} 的行为: 每次请求先查找,未命中时写入 (大小为记录中的大小);
+ * 写入前超出容量时按策略给出的顺序淘汰,直到低于容量的 {@link DiskBasedCache#HYSTERESIS_FACTOR}.
+ * <p>
+ * 记录文件每行一个请求: {@code <key> <size>},以空白分隔,# 开头的行被忽略.
+ */
+public final class EvictionSimulator {
+
+    private EvictionSimulator() {
+    }
+
+    /**
+     * 访问记录
+     */
+    public static final class Trace {
+        final long[] hashes;
+        final long[] sizes;
+        final int count;
+
+        /**
+         * @param keys  请求的 key
+         * @param sizes 每个请求的响应大小
+         */
+        public Trace(List<String> keys, List<Long> sizes) {
+            count = keys.size();
+            hashes = new long[count];
+            this.sizes = new long[count];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = DiskBasedCache.hashKey(keys.get(i));
+                this.sizes[i] = sizes.get(i);
+            }
+        }
+
+        public int size() {
+            return count;
+        }
+    }
+
+    /**
+     * 一次回放的结果
+     */
+    public static final class Result {
+        public final String policy;
+        public final long requests;
+        public final long hits;
+        public final long requestBytes;
+        public final long hitBytes;
+        public final long evictions;
+
+        Result(String policy, long requests, long hits, long requestBytes, long hitBytes, long evictions) {
+            this.policy = policy;
+            this.requests = requests;
+            this.hits = hits;
+            this.requestBytes = requestBytes;
+            this.hitBytes = hitBytes;
+            this.evictions = evictions;
+        }
+
+        /**
+         * 按请求数计算的命中率
+         */
+        public double hitRatio() {
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        /**
+         * 按字节数计算的命中率
+         */
+        public double byteHitRatio() {
+            return requestBytes == 0 ? 0 : (double) hitBytes / requestBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: hit %.2f%%, byte hit %.2f%%, %d evictions",
+                    policy, hitRatio() * 100, byteHitRatio() * 100, evictions);
+        }
+    }
+
+    /**
+     * 读取记录文件
+     */
+    public static Trace readTrace(File file) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2) {
+                    throw new IOException("bad trace line: " + line);
+                }
+                keys.add(fields[0]);
+                sizes.add(Long.parseLong(fields[1]));
+            }
+        } finally {
+            reader.close();
+        }
+        return new Trace(keys, sizes);
+    }
+
+    /**
+     * 用每个策略分别回放一遍记录
+     */
+    public static List<Result> replayAll(Trace trace, long maxCacheSizeInBytes, EvictionPolicy... policies) {
+        List<Result> results = new ArrayList<>();
+        for (EvictionPolicy policy : policies) {
+            results.add(replay(trace, maxCacheSizeInBytes, policy));
+        }
+        return results;
+    }
+
+    /**
+     * 用一个策略回放记录. 策略会被清空后使用
+     */
+    public static Result replay(Trace trace, long maxCacheSizeInBytes, EvictionPolicy policy) {
+        policy.clear();
+        CacheIndex index = new CacheIndex();
+        long clock = 0;
+        long hits = 0;
+        long requestBytes = 0;
+        long hitBytes = 0;
+        long evictions = 0;
+        for (int i = 0; i < trace.count; i++) {
+            long hash = trace.hashes[i];
+            long size = trace.sizes[i];
+            requestBytes += size;
+            policy.onAccess(hash);
+            if (index.touch(hash, ++clock)) {
+                hits++;
+                hitBytes += size;
+                continue;
+            }
+            if (size >= maxCacheSizeInBytes) {
+                continue;
+            }
+            // 与 DiskBasedCache#pruneIfNeeded 相同
+            if (index.totalSize() + size >= maxCacheSizeInBytes) {
+                CacheIndex.Snapshot entries = index.snapshot();
+                int[] order = policy.order(entries.hashes, entries.sizes, entries.count);
+                for (int j : order) {
+                    index.remove(entries.hashes[j]);
+                    policy.onRemove(entries.hashes[j]);
+                    evictions++;
+                    if (index.totalSize() + size < maxCacheSizeInBytes * DiskBasedCache.HYSTERESIS_FACTOR) {
+                        break;
+                    }
+                }
+            }
+            index.put(hash, size, 0, 0, ++clock);
+            policy.onPut(hash, size);
+        }
+        return new Result(policy.getClass().getSimpleName(), trace.count, hits, requestBytes, hitBytes, evictions);
+    }
+}
@@ -0,0 +1,98 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.util.Arrays;
+
+/**
+ * 估算 key 最近被访问次数的 Count-Min Sketch (TinyLFU).
+ * <p>
+ * 每个计数器 4 位 (最大 15),一个 long 存放 16 个计数器,每个 key 对应 4 个计数器,取最小值.
+ * 累计增加的次数达到表宽的 10 倍时,所有计数器减半,较早的访问逐渐失去影响.
+ * 不是线程安全的,由调用者同步.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MAX_COUNT = 15;
+
+    private final long[] mTable;
+
+    private final int mMask;
+
+    private final int mSampleSize;
+
+    private int mAdditions;
+
+    /**
+     * @param expectedEntries 预计的条目数,决定表的宽度
+     */
+    FrequencySketch(int expectedEntries) {
+        int width = 16;
+        while (width < expectedEntries && width < (1 << 24)) {
+            width <<= 1;
+        }
+        mTable = new long[width];
+        mMask = width - 1;
+        mSampleSize = 10 * width;
+    }
+
+    /**
+     * 估算的访问次数 (0 ~ 15)
+     */
+    int frequency(long hash) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < SEEDS.length; row++) {
+            long h = spread(hash, row);
+            int count = (int) ((mTable[index(h)] >>> offset(h)) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(long hash) {
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            long h = spread(hash, row);
+            int index = index(h);
+            int offset = offset(h);
+            if (((mTable[index] >>> offset) & 0xF) < MAX_COUNT) {
+                mTable[index] += 1L << offset;
+                added = true;
+            }
+        }
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    void clear() {
+        Arrays.fill(mTable, 0L);
+        mAdditions = 0;
+    }
+
+    /**
+     * 所有计数器减半
+     */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mAdditions /= 2;
+    }
+
+    private int index(long h) {
+        return (int) h & mMask;
+    }
+
+    private static int offset(long h) {
+        return (int) (h >>> 60) << 2;
+    }
+
+    private static long spread(long hash, int row) {
+        long h = (hash ^ SEEDS[row]) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,71 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * 考虑大小的淘汰策略 (Greedy-Dual-Size-Frequency): 优先级为 访问频率 / 大小,优先级低的先淘汰.
+ * <p>
+ * 同样的空间可以放下更多的小条目,所以很少访问的大条目 (例如大图片) 会比频繁访问的小接口数据先被淘汰,
+ * 以条目数计算的命中率更高. 优先级相同的条目按 LRU 淘汰.
+ * <p>
+ * 访问频率来自 {@link FrequencySketch},它会定期把所有计数减半,代替 GDSF 中随淘汰增长的老化值 L,
+ * 不需要为每个条目保存优先级.
+ */
+public class GdsfPolicy implements EvictionPolicy {
+
+    private static final int DEFAULT_EXPECTED_ENTRIES = 8192;
+
+    private final FrequencySketch mSketch;
+
+    public GdsfPolicy() {
+        this(DEFAULT_EXPECTED_ENTRIES);
+    }
+
+    /**
+     * @param expectedEntries 预计的条目数,决定频率统计表的大小 (每个条目约 1 字节)
+     */
+    public GdsfPolicy(int expectedEntries) {
+        mSketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public synchronized void onAccess(long hash) {
+        mSketch.increment(hash);
+    }
+
+    @Override
+    public void onPut(long hash, long size) {
+    }
+
+    @Override
+    public void onRemove(long hash) {
+    }
+
+    @Override
+    public synchronized void clear() {
+        mSketch.clear();
+    }
+
+    @Override
+    public synchronized int[] order(long[] hashes, long[] sizes, int count) {
+        final double[] priorities = new double[count];
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            priorities[i] = Math.max(1, mSketch.frequency(hashes[i])) / (double) Math.max(1, sizes[i]);
+            order[i] = i;
+        }
+        // 稳定排序,优先级相同时保持 LRU 顺序
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Double.compare(priorities[lhs], priorities[rhs]);
+            }
+        });
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+}
@@ -30,6 +30,11 @@ import qian.jimmie.cn.volley.volley.utils.DateUtils;
  */
 public class HttpHeaderParser {
 
+    /**
+     * {@link #parseLong(String, int, int)} 解析失败时的返回值
+     */
+    private static final long NOT_A_NUMBER = Long.MIN_VALUE;
+
     /**
      * 缓存处理. 两种过期机制
      * 1. 不需要经过请求,由(Cache-Control,Expires控制)
@@ -67,26 +72,31 @@ public class HttpHeaderParser {
         headerValue = headers.get("Cache-Control");
         if (headerValue != null) {
             hasCacheControl = true;
-            String[] tokens = headerValue.split(",");
-            for (int i = 0; i < tokens.length; i++) {
-                String token = tokens[i].trim();
-                if (token.equals("no-cache") || token.equals("no-store")) {
+            // 按下标逐个取出以逗号分隔的指令,不创建子串
+            int length = headerValue.length();
+            int next = 0;
+            while (next <= length) {
+                int end = directiveEnd(headerValue, next, length);
+                int start = skipSpace(headerValue, next, end);
+                int stop = trimEnd(headerValue, start, end);
+                next = end + 1;
+                if (is(headerValue, start, stop, "no-cache") || is(headerValue, start, stop, "no-store")) {
                     // 如果值为 no-cache 或 no-store,表示该请求不支持缓存,直接返回空
                     return null;
-                } else if (token.startsWith("max-age=")) {
-                    // 值为 max-age= 开始,则表示接受缓存
-                    try {
-                        // 获取缓存的生存时间
-                        maxAge = Long.parseLong(token.substring(8));
-                    } catch (Exception e) {
+                } else if (startsWith(headerValue, start, stop, "max-age=")) {
+                    // 值为 max-age= 开始,则表示接受缓存,获取缓存的生存时间
+                    long value = parseLong(headerValue, start + 8, stop);
+                    if (value != NOT_A_NUMBER) {
+                        maxAge = value;
                     }
-                } else if (token.startsWith("stale-while-revalidate=")) {
+                } else if (startsWith(headerValue, start, stop, "stale-while-revalidate=")) {
                     // stale-while-revalidate 表示即使过期了,也先将缓存展现给用户,然后再向服务端请求更新缓存
-                    try {
-                        staleWhileRevalidate = Long.parseLong(token.substring(23));
-                    } catch (Exception e) {
+                    long value = parseLong(headerValue, start + 23, stop);
+                    if (value != NOT_A_NUMBER) {
+                        staleWhileRevalidate = value;
                     }
-                } else if (token.equals("must-revalidate") || token.equals("proxy-revalidate")) {
+                } else if (is(headerValue, start, stop, "must-revalidate")
+                        || is(headerValue, start, stop, "proxy-revalidate")) {
                     // 如果缓存的内容失效，请求必须发送到服务器/代理以进行重新验证
                     mustRevalidate = true;
                 }
@@ -122,6 +132,7 @@ public class HttpHeaderParser {
 
         Cache.Entry entry = new Cache.Entry();
         entry.data = response.data;
+        entry.buffer = response.buffer;
         entry.etag = serverEtag;
         entry.softTtl = softExpire;
         entry.ttl = finalExpire;
@@ -134,9 +145,11 @@ public class HttpHeaderParser {
 
     /**
      * Parse date in RFC1123 format, and return its value as epoch
+     * 无法解析时返回 0 (和没有该头部一样)
      */
     public static long parseDateAsEpoch(String dateStr) {
-        return DateUtils.parseDate(dateStr).getTime();
+        long time = DateUtils.parseHttpDate(dateStr);
+        return time == DateUtils.INVALID_DATE ? 0 : time;
     }
 
     /**
@@ -149,18 +162,34 @@ public class HttpHeaderParser {
      */
     public static String parseCharset(Map<String, String> headers, String defaultCharset) {
         String contentType = headers.get(HTTP.CONTENT_TYPE);
-        if (contentType != null) {
-            String[] params = contentType.split(";");
-            for (int i = 1; i < params.length; i++) {
-                String[] pair = params[i].trim().split("=");
-                if (pair.length == 2) {
-                    if (pair[0].equals("charset")) {
-                        return pair[1];
-                    }
-                }
+        if (contentType == null) {
+            return defaultCharset;
+        }
+        // 跳过媒体类型,逐个检查 ; 分隔的参数
+        int length = contentType.length();
+        int next = contentType.indexOf(';');
+        while (next >= 0 && next < length) {
+            int end = contentType.indexOf(';', next + 1);
+            if (end < 0) {
+                end = length;
+            }
+            int start = skipSpace(contentType, next + 1, end);
+            int stop = trimEnd(contentType, start, end);
+            next = end;
+            int eq = contentType.indexOf('=', start);
+            if (eq < 0 || eq >= stop || !is(contentType, start, trimEnd(contentType, start, eq), "charset")) {
+                continue;
+            }
+            int valueStart = skipSpace(contentType, eq + 1, stop);
+            if (stop - valueStart >= 2 && contentType.charAt(valueStart) == '"'
+                    && contentType.charAt(stop - 1) == '"') {
+                valueStart++;
+                stop--;
+            }
+            if (valueStart < stop) {
+                return contentType.substring(valueStart, stop);
             }
         }
-
         return defaultCharset;
     }
 
@@ -171,4 +200,88 @@ public class HttpHeaderParser {
     public static String parseCharset(Map<String, String> headers) {
         return parseCharset(headers, HTTP.DEFAULT_CONTENT_CHARSET);
     }
+
+    /**
+     * 返回从 from 开始的指令结束的位置 (逗号或者 end). 引号中的逗号不是分隔符
+     */
+    private static int directiveEnd(String s, int from, int end) {
+        boolean quoted = false;
+        for (int i = from; i < end; i++) {
+            char c = s.charAt(i);
+            if (quoted) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * 跳过开头的空白 (和 {@link String#trim()} 一样,不大于空格的字符)
+     */
+    private static int skipSpace(String s, int from, int end) {
+        while (from < end && s.charAt(from) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * 去掉结尾的空白,返回新的结束位置
+     */
+    private static int trimEnd(String s, int from, int end) {
+        while (end > from && s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * [from, end) 是否等于 token (忽略大小写,指令和参数名不区分大小写)
+     */
+    private static boolean is(String s, int from, int end, String token) {
+        return end - from == token.length() && s.regionMatches(true, from, token, 0, token.length());
+    }
+
+    private static boolean startsWith(String s, int from, int end, String prefix) {
+        return end - from >= prefix.length() && s.regionMatches(true, from, prefix, 0, prefix.length());
+    }
+
+    /**
+     * 按 {@link Long#parseLong(String)} 的规则解析 [from, end),格式错误或者溢出时返回 {@link #NOT_A_NUMBER}
+     */
+    private static long parseLong(String s, int from, int end) {
+        if (from >= end) {
+            return NOT_A_NUMBER;
+        }
+        boolean negative = false;
+        char first = s.charAt(from);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++from == end) {
+                return NOT_A_NUMBER;
+            }
+        }
+        // 按负数累加,和 Long.parseLong 一样可以表示 Long.MIN_VALUE 以外的所有值
+        long result = 0;
+        for (int i = from; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || result < (Long.MIN_VALUE + digit) / 10) {
+                return NOT_A_NUMBER;
+            }
+            result = result * 10 - digit;
+        }
+        if (!negative) {
+            return -result;
+        }
+        // Long.MIN_VALUE 与失败的返回值相同,当作溢出处理
+        return result;
+    }
 }
@@ -0,0 +1,32 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+/**
+ * 最久未使用的条目先淘汰 ({@link DiskBasedCache} 的默认策略)
+ */
+public class LruPolicy implements EvictionPolicy {
+
+    @Override
+    public void onAccess(long hash) {
+    }
+
+    @Override
+    public void onPut(long hash, long size) {
+    }
+
+    @Override
+    public void onRemove(long hash) {
+    }
+
+    @Override
+    public void clear() {
+    }
+
+    @Override
+    public int[] order(long[] hashes, long[] sizes, int count) {
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        return order;
+    }
+}
@@ -36,6 +36,25 @@ public class NoCache implements Cache {
     public void put(String key, Entry entry) {
     }
 
+    @Override
+    public Entry getMetadata(String key) {
+        return null;
+    }
+
+    @Override
+    public EntryStream openForRead(String key) {
+        return null;
+    }
+
+    @Override
+    public EntryWriter openForWrite(String key, Entry metadata) {
+        return null;
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry metadata) {
+    }
+
     @Override
     public void invalidate(String key, boolean fullExpire) {
     }
@@ -47,4 +66,16 @@ public class NoCache implements Cache {
     @Override
     public void initialize() {
     }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public void touch(String key) {
+    }
 }
@@ -0,0 +1,1000 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+import qian.jimmie.cn.volley.volley.exception.VolleyLog;
+import qian.jimmie.cn.volley.volley.utils.IOUtils;
+
+/**
+ * 日志结构的缓存: 小的条目依次追加到段文件(segment)中,内存中只保存 key 的哈希到 (段,偏移,长度) 的索引.
+ * <p>
+ * 与 {@link DiskBasedCache} 每个条目一个文件相比,写入只是一次追加,读取只是一次定位读,
+ * 不需要创建,打开,删除文件. 适合大量 1 ~ 4 KB 的接口数据.
+ * 超过 {@link #getLargeEntryThreshold()} 的实体仍然交给每个条目一个文件的 {@link DiskBasedCache}.
+ * <p>
+ * 被覆盖,删除的条目在段文件中成为垃圾. 后台整理线程把垃圾较多的段中仍然有效的条目复制到当前段,然后删除整个段文件.
+ * 超出容量时淘汰最旧的段: 写入后被读过的条目复制到当前段(second chance),其余的随段一起删除.
+ * <p>
+ * 段文件中的每条记录:
+ * <pre>
+ *     int    RECORD_MAGIC
+ *     int    记录内容的长度
+ *     int    记录内容的 CRC32
+ *     byte   类型 (TYPE_PUT / TYPE_REMOVE)
+ *     string key
+ *     [TYPE_PUT: long ttl, long softTtl, long serverDate, long lastModified,
+ *                string etag, map responseHeaders, int 实体长度, 实体]
+ * </pre>
+ * 启动时按顺序扫描所有段重建索引,同一个 key 以最后一条记录为准.
+ */
+public class SegmentCache implements Cache {
+
+    /**
+     * 默认最多使用的字节数 (段文件和大条目各一半)
+     */
+    private static final long DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
+
+    /**
+     * 段文件的最大长度
+     */
+    private static final int MAX_SEGMENT_BYTES = 1024 * 1024;
+
+    /**
+     * 段文件的最小长度
+     */
+    private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+
+    /**
+     * 默认的大条目阈值,更大的实体放在单独的文件中
+     */
+    private static final int DEFAULT_LARGE_ENTRY_THRESHOLD = 64 * 1024;
+
+    /**
+     * 段中垃圾超过该比例时整理
+     */
+    private static final float COMPACT_GARBAGE_RATIO = 0.5f;
+
+    /**
+     * 超出容量该数量的段时,写入线程自己淘汰,不再等待整理线程
+     */
+    private static final int MAX_SEGMENTS_OVER_BUDGET = 2;
+
+    private static final int RECORD_MAGIC = 0x5345474d;
+
+    private static final int RECORD_HEADER_BYTES = 12;
+
+    private static final byte TYPE_PUT = 1;
+
+    private static final byte TYPE_REMOVE = 2;
+
+    private static final String SEGMENT_DIR = "segments";
+
+    private static final String LARGE_DIR = "large";
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private final File mSegmentDirectory;
+
+    /**
+     * 段文件最多使用的字节数
+     */
+    private final long mMaxSegmentBytes;
+
+    /**
+     * 单个段文件的长度
+     */
+    private final int mSegmentBytes;
+
+    private final int mLargeEntryThreshold;
+
+    /**
+     * 存放大条目
+     */
+    private final DiskBasedCache mLarge;
+
+    /**
+     * 保护索引,段列表和当前段 (整理线程在 mLock 上等待)
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * 整理或者淘汰一个段时持有,同时只处理一个段. 需要在 mLock 之前获取
+     */
+    private final Object mCompactLock = new Object();
+
+    /**
+     * key 的哈希到记录位置的索引
+     */
+    private final HashMap<Long, Slot> mIndex = new HashMap<>();
+
+    /**
+     * 所有段,按编号(写入顺序)排列,最后一个可能是当前段
+     */
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    /**
+     * 正在追加的段,为 null 时下一次写入创建新段
+     */
+    private Segment mActive;
+
+    private int mNextSegmentId = 0;
+
+    /**
+     * 所有段文件的总长度
+     */
+    private long mTotalBytes = 0;
+
+    private boolean mInitialized = false;
+
+    private Thread mCompactor;
+
+    /**
+     * @param rootDirectory       缓存根目录
+     * @param maxCacheSizeInBytes 最多使用的字节数,段文件和大条目各一半
+     */
+    public SegmentCache(File rootDirectory, long maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes / 2, maxCacheSizeInBytes / 2, DEFAULT_LARGE_ENTRY_THRESHOLD);
+    }
+
+    public SegmentCache(File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
+    }
+
+    /**
+     * @param rootDirectory       缓存根目录
+     * @param maxSegmentBytes     段文件最多使用的字节数
+     * @param maxLargeBytes       大条目最多使用的字节数
+     * @param largeEntryThreshold 实体超过该大小时放在单独的文件中
+     */
+    public SegmentCache(File rootDirectory, long maxSegmentBytes, long maxLargeBytes, int largeEntryThreshold) {
+        mSegmentDirectory = new File(rootDirectory, SEGMENT_DIR);
+        mMaxSegmentBytes = maxSegmentBytes;
+        // 至少分成 8 个段,淘汰一个段只影响一小部分条目
+        mSegmentBytes = (int) Math.max(MIN_SEGMENT_BYTES, Math.min(MAX_SEGMENT_BYTES, maxSegmentBytes / 8));
+        mLargeEntryThreshold = Math.min(largeEntryThreshold, mSegmentBytes / 4);
+        mLarge = new DiskBasedCache(new File(rootDirectory, LARGE_DIR), maxLargeBytes);
+    }
+
+    public int getLargeEntryThreshold() {
+        return mLargeEntryThreshold;
+    }
+
+    /**
+     * 段文件的个数
+     */
+    public int getSegmentCount() {
+        synchronized (mLock) {
+            return mSegments.size();
+        }
+    }
+
+    /**
+     * 段文件的总长度 (包括还没有整理的垃圾)
+     */
+    public long getSegmentBytes() {
+        synchronized (mLock) {
+            return mTotalBytes;
+        }
+    }
+
+    /**
+     * 段文件中有效记录的总长度
+     */
+    public long getLiveBytes() {
+        synchronized (mLock) {
+            long live = 0;
+            for (Segment segment : mSegments) {
+                live += segment.liveBytes;
+            }
+            return live;
+        }
+    }
+
+    /**
+     * 按编号顺序扫描所有段文件,重建索引. {@link #shutdown()} 之后再次调用只重新启动整理线程
+     */
+    @Override
+    public void initialize() {
+        synchronized (mCompactLock) {
+            synchronized (mLock) {
+                if (!mInitialized) {
+                    if (!mSegmentDirectory.exists() && !mSegmentDirectory.mkdirs()) {
+                        VolleyLog.e("Unable to create segment directory %s", mSegmentDirectory.getAbsolutePath());
+                    }
+                    loadSegmentsLocked();
+                    mInitialized = true;
+                }
+                startCompactorLocked();
+            }
+        }
+        mLarge.initialize();
+    }
+
+    @Override
+    public Entry get(String key) {
+        long hash = DiskBasedCache.hashKey(key);
+        // 读取期间记录可能被整理线程移走,这时按新的位置再读一次
+        for (int attempt = 0; attempt < 2; attempt++) {
+            Slot slot;
+            synchronized (mLock) {
+                slot = mIndex.get(hash);
+                if (slot == null) {
+                    break;
+                }
+                slot.accessed = true;
+            }
+            try {
+                Record record = decode(slot.segment.read(slot.offset, slot.length), 0);
+                if (!key.equals(record.key)) {
+                    // 哈希相同的另一个 key
+                    return null;
+                }
+                return record.entry;
+            } catch (ClosedChannelException e) {
+                // 段已经被整理删除,或者当前线程被中断
+                if (slot.segment.deleted) {
+                    continue;
+                }
+                return null;
+            } catch (IOException e) {
+                VolleyLog.d("%s@%d: %s", slot.segment.file.getAbsolutePath(), slot.offset, e.toString());
+                synchronized (mLock) {
+                    if (mIndex.get(hash) == slot) {
+                        mIndex.remove(hash);
+                        releaseLocked(slot);
+                    }
+                }
+                return null;
+            }
+        }
+        if (!mLarge.contains(key)) {
+            return null;
+        }
+        return mLarge.get(key);
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        byte[] data = entry.getData();
+        long hash = DiskBasedCache.hashKey(key);
+        if (data.length > mLargeEntryThreshold) {
+            mLarge.put(key, entry);
+            removeSmall(key, hash);
+            return;
+        }
+        byte[] record;
+        try {
+            record = encodePut(key, entry, data);
+        } catch (IOException e) {
+            VolleyLog.d("Could not encode %s: %s", key, e.toString());
+            return;
+        }
+        synchronized (mLock) {
+            try {
+                Slot slot = appendLocked(record);
+                slot.segment.liveBytes += slot.length;
+                Slot old = mIndex.put(hash, slot);
+                if (old != null) {
+                    releaseLocked(old);
+                }
+            } catch (IOException e) {
+                VolleyLog.d("Could not append %s: %s", key, e.toString());
+                return;
+            }
+        }
+        if (mLarge.contains(key)) {
+            mLarge.remove(key);
+        }
+        evictIfFarOverBudget();
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        Entry entry = containsSmall(key) ? get(key) : mLarge.getMetadata(key);
+        return entry == null ? null : CacheEntries.metadataOf(entry);
+    }
+
+    /**
+     * 段文件中的小条目读入内存后返回,大条目以流的方式从单独的文件中读取
+     */
+    /**
+     * 段按写入顺序整理和淘汰,与访问无关. 只有大条目需要记录访问
+     */
+    @Override
+    public void touch(String key) {
+        if (!containsSmall(key)) {
+            mLarge.touch(key);
+        }
+    }
+
+    @Override
+    public EntryStream openForRead(String key) {
+        if (!containsSmall(key)) {
+            return mLarge.openForRead(key);
+        }
+        Entry entry = get(key);
+        return entry == null ? null : CacheEntries.streamOf(entry);
+    }
+
+    /**
+     * 实体在内存中缓冲,提交时按大小写入段文件或者单独的文件
+     */
+    @Override
+    public EntryWriter openForWrite(String key, Entry metadata) {
+        return CacheEntries.bufferingWriter(this, key, metadata);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        if (!containsSmall(key)) {
+            mLarge.invalidate(key, fullExpire);
+            return;
+        }
+        Entry entry = get(key);
+        if (entry == null) {
+            return;
+        }
+        entry.softTtl = 0;
+        if (fullExpire) {
+            entry.ttl = 0;
+        }
+        put(key, entry);
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry metadata) {
+        if (!containsSmall(key)) {
+            mLarge.updateMetadata(key, metadata);
+            return;
+        }
+        Entry entry = get(key);
+        if (entry == null) {
+            return;
+        }
+        put(key, CacheEntries.withMetadata(entry, metadata));
+    }
+
+    @Override
+    public void remove(String key) {
+        removeSmall(key, DiskBasedCache.hashKey(key));
+        if (mLarge.contains(key)) {
+            mLarge.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mCompactLock) {
+            synchronized (mLock) {
+                for (Segment segment : mSegments) {
+                    segment.delete();
+                }
+                mSegments.clear();
+                mIndex.clear();
+                mActive = null;
+                mTotalBytes = 0;
+            }
+        }
+        mLarge.clear();
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * 记录在 put 返回前已经写入段文件,不需要额外处理
+     */
+    @Override
+    public void flush() {
+        mLarge.flush();
+    }
+
+    /**
+     * 停止整理线程 (等待正在整理的段完成),关闭所有段文件,关闭存放大条目的缓存.
+     * 之后的读写按需重新打开段文件
+     */
+    @Override
+    public void shutdown() {
+        Thread compactor;
+        synchronized (mLock) {
+            compactor = mCompactor;
+            mCompactor = null;
+            mLock.notifyAll();
+        }
+        DiskBasedCache.joinQuietly(compactor);
+        synchronized (mCompactLock) {
+            synchronized (mLock) {
+                for (Segment segment : mSegments) {
+                    segment.close();
+                }
+            }
+        }
+        mLarge.shutdown();
+    }
+
+    private boolean containsSmall(String key) {
+        synchronized (mLock) {
+            return mIndex.containsKey(DiskBasedCache.hashKey(key));
+        }
+    }
+
+    /**
+     * 删除段文件中的条目: 从索引中去掉,并追加一条删除记录 (否则重启后会从旧的记录中恢复)
+     */
+    private void removeSmall(String key, long hash) {
+        synchronized (mLock) {
+            Slot old = mIndex.remove(hash);
+            if (old == null) {
+                return;
+            }
+            releaseLocked(old);
+            try {
+                // 删除记录本身就是垃圾,不计入有效字节数
+                appendLocked(encodeRemove(key));
+            } catch (IOException e) {
+                VolleyLog.d("Could not append removal of %s: %s", key, e.toString());
+            }
+        }
+    }
+
+    /**
+     * 追加一条记录,必要时换到新的段. 需要在 mLock 上同步
+     */
+    private Slot appendLocked(byte[] record) throws IOException {
+        if (mActive == null || mActive.size + record.length > mSegmentBytes) {
+            rollLocked();
+        }
+        Segment segment = mActive;
+        long offset = segment.size;
+        try {
+            segment.write(record, offset);
+        } catch (IOException e) {
+            // 可能只写入了一部分,不再向该段追加. 扫描时会丢弃末尾不完整的记录
+            mActive = null;
+            throw e;
+        }
+        segment.size += record.length;
+        mTotalBytes += record.length;
+        if (mTotalBytes > mMaxSegmentBytes) {
+            mLock.notifyAll();
+        }
+        return new Slot(segment, (int) offset, record.length);
+    }
+
+    /**
+     * 创建新的当前段. 需要在 mLock 上同步
+     */
+    private void rollLocked() throws IOException {
+        if (mActive != null) {
+            mActive.sealed = true;
+            // 封存之前产生的垃圾也可能需要整理
+            mLock.notifyAll();
+        }
+        mActive = null;
+        Segment segment = new Segment(mNextSegmentId++, mSegmentDirectory);
+        if (!mSegmentDirectory.exists()) {
+            mSegmentDirectory.mkdirs();
+        }
+        segment.channel();
+        mSegments.add(segment);
+        mActive = segment;
+    }
+
+    /**
+     * 记录不再有效. 需要在 mLock 上同步
+     */
+    private void releaseLocked(Slot slot) {
+        Segment segment = slot.segment;
+        segment.liveBytes -= slot.length;
+        if (segment.sealed && needsCompaction(segment)) {
+            mLock.notifyAll();
+        }
+    }
+
+    private static boolean needsCompaction(Segment segment) {
+        return segment.size - segment.liveBytes >= segment.size * COMPACT_GARBAGE_RATIO;
+    }
+
+    /**
+     * 选择下一个需要处理的段: 超出容量时为最旧的段,否则为垃圾最多并且超过阈值的段. 需要在 mLock 上同步
+     */
+    private Segment pickVictimLocked() {
+        Segment oldest = null;
+        Segment sparsest = null;
+        for (Segment segment : mSegments) {
+            if (!segment.sealed) {
+                continue;
+            }
+            if (oldest == null) {
+                oldest = segment;
+            }
+            if (needsCompaction(segment) && (sparsest == null
+                    || segment.size - segment.liveBytes > sparsest.size - sparsest.liveBytes)) {
+                sparsest = segment;
+            }
+        }
+        return mTotalBytes > mMaxSegmentBytes ? oldest : sparsest;
+    }
+
+    /**
+     * 需要在 mLock 上同步
+     */
+    private void startCompactorLocked() {
+        if (mCompactor != null) {
+            return;
+        }
+        mCompactor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                compactForever();
+            }
+        }, "bees-cache-compactor");
+        mCompactor.setDaemon(true);
+        mCompactor.start();
+    }
+
+    /**
+     * {@link #shutdown()} 之后不再是 mCompactor 时退出
+     */
+    private void compactForever() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            synchronized (mLock) {
+                while (mCompactor == self && pickVictimLocked() == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                if (mCompactor != self) {
+                    return;
+                }
+            }
+            synchronized (mCompactLock) {
+                // 等待 mCompactLock 期间写入线程可能已经处理过
+                Segment victim;
+                boolean evicting;
+                synchronized (mLock) {
+                    victim = pickVictimLocked();
+                    evicting = mTotalBytes > mMaxSegmentBytes;
+                }
+                if (victim != null) {
+                    rewriteSegment(victim, evicting);
+                }
+            }
+        }
+    }
+
+    /**
+     * 写入速度超过整理线程时,由写入线程自己淘汰最旧的段
+     */
+    private void evictIfFarOverBudget() {
+        synchronized (mLock) {
+            if (mTotalBytes <= mMaxSegmentBytes + (long) MAX_SEGMENTS_OVER_BUDGET * mSegmentBytes) {
+                return;
+            }
+        }
+        synchronized (mCompactLock) {
+            Segment victim;
+            synchronized (mLock) {
+                if (mTotalBytes <= mMaxSegmentBytes) {
+                    return;
+                }
+                victim = pickVictimLocked();
+            }
+            if (victim != null) {
+                rewriteSegment(victim, true);
+            }
+        }
+    }
+
+    /**
+     * 把段中仍然有效的记录复制到当前段,然后删除该段. 需要持有 mCompactLock.
+     * <p>
+     * 淘汰时只复制写入后被读过的记录,并且最多复制半个段,其余的记录随段一起删除.
+     * 删除记录只有在存在更旧的段并且该 key 没有更新的记录时才需要复制.
+     */
+    private void rewriteSegment(Segment segment, boolean evicting) {
+        byte[] contents;
+        try {
+            contents = segment.read(0, (int) segment.size);
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", segment.file.getAbsolutePath(), e.toString());
+            contents = new byte[0];
+        }
+        long copied = 0;
+        int offset = 0;
+        while (offset < contents.length) {
+            int length = recordLength(contents, offset);
+            if (length < 0) {
+                break;
+            }
+            Record record;
+            try {
+                record = decode(contents, offset);
+            } catch (IOException e) {
+                offset += length;
+                continue;
+            }
+            long hash = DiskBasedCache.hashKey(record.key);
+            synchronized (mLock) {
+                Slot slot = mIndex.get(hash);
+                try {
+                    if (record.entry == null) {
+                        if (slot == null && mSegments.get(0) != segment) {
+                            appendLocked(Arrays.copyOfRange(contents, offset, offset + length));
+                        }
+                    } else if (slot != null && slot.segment == segment && slot.offset == offset) {
+                        if (evicting && (!slot.accessed || copied + length > segment.size / 2)) {
+                            mIndex.remove(hash);
+                            releaseLocked(slot);
+                        } else {
+                            Slot moved = appendLocked(Arrays.copyOfRange(contents, offset, offset + length));
+                            moved.segment.liveBytes += length;
+                            mIndex.put(hash, moved);
+                            releaseLocked(slot);
+                            copied += length;
+                        }
+                    }
+                } catch (IOException e) {
+                    // 无法写入当前段,放弃该记录
+                    if (slot != null && mIndex.get(hash) == slot && slot.segment == segment) {
+                        mIndex.remove(hash);
+                        releaseLocked(slot);
+                    }
+                }
+            }
+            offset += length;
+        }
+        synchronized (mLock) {
+            // 无法解析的记录已经不在索引中 (读取失败时删除),这里去掉剩余指向该段的条目
+            if (segment.liveBytes > 0) {
+                dropSlotsLocked(segment);
+            }
+            mSegments.remove(segment);
+            mTotalBytes -= segment.size;
+            segment.delete();
+        }
+    }
+
+    /**
+     * 从索引中去掉所有指向该段的条目. 需要在 mLock 上同步
+     */
+    private void dropSlotsLocked(Segment segment) {
+        Iterator<Map.Entry<Long, Slot>> iterator = mIndex.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getValue().segment == segment) {
+                iterator.remove();
+            }
+        }
+        segment.liveBytes = 0;
+    }
+
+    /**
+     * 按编号顺序读取所有段,重建索引. 末尾不完整或者损坏的部分被截掉,之后的写入从新的段开始.
+     * 需要在 mLock 上同步
+     */
+    private void loadSegmentsLocked() {
+        File[] files = mSegmentDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<Segment> segments = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                segments.add(new Segment(id, mSegmentDirectory));
+            } catch (NumberFormatException e) {
+                file.delete();
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment lhs, Segment rhs) {
+                return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+            }
+        });
+        for (Segment segment : segments) {
+            loadSegmentLocked(segment);
+            mNextSegmentId = segment.id + 1;
+        }
+    }
+
+    private void loadSegmentLocked(Segment segment) {
+        byte[] contents;
+        try {
+            contents = segment.read(0, (int) segment.file.length());
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", segment.file.getAbsolutePath(), e.toString());
+            segment.delete();
+            return;
+        }
+        int offset = 0;
+        while (offset < contents.length) {
+            int length = recordLength(contents, offset);
+            if (length < 0) {
+                break;
+            }
+            try {
+                Record record = decode(contents, offset);
+                long hash = DiskBasedCache.hashKey(record.key);
+                Slot old;
+                if (record.entry == null) {
+                    old = mIndex.remove(hash);
+                } else {
+                    Slot slot = new Slot(segment, offset, length);
+                    segment.liveBytes += length;
+                    old = mIndex.put(hash, slot);
+                }
+                if (old != null) {
+                    old.segment.liveBytes -= old.length;
+                }
+            } catch (IOException e) {
+                // 内容损坏但长度完整的记录,跳过
+                VolleyLog.d("%s@%d: %s", segment.file.getAbsolutePath(), offset, e.toString());
+            }
+            offset += length;
+        }
+        if (offset < contents.length) {
+            VolleyLog.d("%s: truncating at %d of %d", segment.file.getAbsolutePath(), offset, contents.length);
+            try {
+                segment.channel().truncate(offset);
+            } catch (IOException ignored) {
+            }
+        }
+        segment.size = offset;
+        segment.sealed = true;
+        mSegments.add(segment);
+        mTotalBytes += offset;
+        segment.close();
+    }
+
+    /**
+     * 返回 offset 处记录的总长度; 不是完整的记录时返回 -1
+     */
+    private static int recordLength(byte[] contents, int offset) {
+        if (contents.length - offset < RECORD_HEADER_BYTES) {
+            return -1;
+        }
+        if (intAt(contents, offset) != RECORD_MAGIC) {
+            return -1;
+        }
+        int length = intAt(contents, offset + 4);
+        if (length <= 0 || length > contents.length - offset - RECORD_HEADER_BYTES) {
+            return -1;
+        }
+        return RECORD_HEADER_BYTES + length;
+    }
+
+    private static int intAt(byte[] b, int offset) {
+        return (b[offset] & 0xff)
+                | (b[offset + 1] & 0xff) << 8
+                | (b[offset + 2] & 0xff) << 16
+                | (b[offset + 3] & 0xff) << 24;
+    }
+
+    private static byte[] encodePut(String key, Entry entry, byte[] data) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(data.length + 256);
+        payload.write(TYPE_PUT);
+        IOUtils.writeString(payload, key);
+        IOUtils.writeLong(payload, entry.ttl);
+        IOUtils.writeLong(payload, entry.softTtl);
+        IOUtils.writeLong(payload, entry.serverDate);
+        IOUtils.writeLong(payload, entry.lastModified);
+        IOUtils.writeString(payload, entry.etag == null ? "" : entry.etag);
+        IOUtils.writeStringStringMap(entry.responseHeaders, payload);
+        IOUtils.writeInt(payload, data.length);
+        payload.write(data);
+        return frame(payload);
+    }
+
+    private static byte[] encodeRemove(String key) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(TYPE_REMOVE);
+        IOUtils.writeString(payload, key);
+        return frame(payload);
+    }
+
+    /**
+     * 加上 magic,长度和 CRC
+     */
+    private static byte[] frame(ByteArrayOutputStream payload) throws IOException {
+        byte[] body = payload.toByteArray();
+        ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_BYTES + body.length);
+        IOUtils.writeInt(record, RECORD_MAGIC);
+        IOUtils.writeInt(record, body.length);
+        IOUtils.writeInt(record, DiskBasedCache.crc32(body));
+        record.write(body);
+        return record.toByteArray();
+    }
+
+    /**
+     * 解析 offset 处的记录,校验长度和 CRC
+     */
+    private static Record decode(byte[] contents, int offset) throws IOException {
+        int length = recordLength(contents, offset);
+        if (length < 0) {
+            throw new IOException("bad record header");
+        }
+        int start = offset + RECORD_HEADER_BYTES;
+        int end = offset + length;
+        CRC32 crc = new CRC32();
+        crc.update(contents, start, end - start);
+        if ((int) crc.getValue() != intAt(contents, offset + 8)) {
+            throw new IOException("record checksum mismatch");
+        }
+        InputStream is = new ByteArrayInputStream(contents, start, end - start);
+        Record record = new Record();
+        int type = is.read();
+        record.key = IOUtils.readString(is);
+        if (type == TYPE_REMOVE) {
+            return record;
+        }
+        if (type != TYPE_PUT) {
+            throw new IOException("unknown record type " + type);
+        }
+        Entry entry = new Entry();
+        entry.ttl = IOUtils.readLong(is);
+        entry.softTtl = IOUtils.readLong(is);
+        entry.serverDate = IOUtils.readLong(is);
+        entry.lastModified = IOUtils.readLong(is);
+        entry.etag = IOUtils.readString(is);
+        if (entry.etag.equals("")) {
+            entry.etag = null;
+        }
+        entry.responseHeaders = IOUtils.readStringStringMap(is, null);
+        entry.data = IOUtils.streamToBytes(is, IOUtils.readInt(is));
+        record.entry = entry;
+        return record;
+    }
+
+    /**
+     * 解析出的记录,entry 为 null 表示删除记录
+     */
+    private static class Record {
+        String key;
+        Entry entry;
+    }
+
+    /**
+     * 记录在段文件中的位置. 位置不变,记录被移动时索引换成新的对象
+     */
+    private static class Slot {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        /**
+         * 写入(或移动)后是否被读过,淘汰时用于 second chance. 在 mLock 上同步
+         */
+        boolean accessed;
+
+        Slot(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * 一个段文件. size,liveBytes 和 sealed 在 mLock 上同步
+     */
+    private static class Segment {
+        final int id;
+        final File file;
+
+        /**
+         * 已写入的长度
+         */
+        long size;
+
+        /**
+         * 仍在索引中的记录的总长度
+         */
+        long liveBytes;
+
+        /**
+         * 不再追加
+         */
+        boolean sealed;
+
+        /**
+         * 已经删除,读取失败时按索引中的新位置重试
+         */
+        volatile boolean deleted;
+
+        private RandomAccessFile mFile;
+        private FileChannel mChannel;
+
+        Segment(int id, File directory) {
+            this.id = id;
+            this.file = new File(directory, String.format("%08d", id) + SEGMENT_SUFFIX);
+        }
+
+        /**
+         * 打开的文件通道. 读写线程被中断时通道会被关闭,这里重新打开
+         */
+        synchronized FileChannel channel() throws IOException {
+            if (deleted) {
+                throw new ClosedChannelException();
+            }
+            if (mChannel == null || !mChannel.isOpen()) {
+                mFile = new RandomAccessFile(file, "rw");
+                mChannel = mFile.getChannel();
+            }
+            return mChannel;
+        }
+
+        /**
+         * 定位读取,不移动文件位置,多个线程可以同时读取
+         */
+        byte[] read(long position, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    FileChannel channel = channel();
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new IOException("unexpected end of " + file.getName());
+                        }
+                    }
+                    return bytes;
+                } catch (ClosedChannelException e) {
+                    // 被其他线程的中断关闭时重试一次
+                    if (deleted || attempt > 0) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        void write(byte[] record, long position) throws IOException {
+            FileChannel channel = channel();
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        }
+
+        synchronized void close() {
+            if (mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException ignored) {
+                }
+            }
+            mFile = null;
+            mChannel = null;
+        }
+
+        void delete() {
+            deleted = true;
+            close();
+            if (!file.delete()) {
+                VolleyLog.d("Could not delete segment %s", file.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+
+/**
+ * 两级缓存: 按字节数限制大小的内存 LRU 缓存,放在任意一个 {@link Cache} (一般是 {@link DiskBasedCache}) 前面.
+ * <p>
+ * 反复请求的小接口(例如配置)命中内存时不需要读磁盘.
+ * put 同时写入内存和下一级缓存(write-through),invalidate / remove / clear 同时作用于两级.
+ * 映射自缓存文件的实体({@link Entry#buffer})以及过大的实体不放入内存.
+ */
+public class TieredCache implements Cache {
+
+    /**
+     * 单个实体最多占内存预算的比例,避免一张大图片把其他条目都挤出去
+     */
+    private static final int MAX_ENTRY_FRACTION = 4;
+
+    /**
+     * 估算每个条目除实体外占用的内存(对象头,字段,map 节点)
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    /**
+     * 写入版本号的分段数 (2 的幂)
+     */
+    private static final int VERSION_STRIPES = 64;
+
+    /**
+     * 下一级缓存
+     */
+    private final Cache mBacking;
+
+    /**
+     * 内存缓存的最大字节数
+     */
+    private final long mMaxMemoryBytes;
+
+    /**
+     * 内存中的条目,按访问顺序排列(在自身上同步)
+     */
+    private final LinkedHashMap<String, Entry> mMemory = new LinkedHashMap<>(16, .75f, true);
+
+    /**
+     * 内存中条目占用的字节数(估算)
+     */
+    private long mMemoryBytes = 0;
+
+    /**
+     * 按 key 的哈希分段的版本号,每次写入,删除都会增加该 key 所在分段的版本号 (clear 增加所有分段).
+     * 从下一级缓存读取期间如果版本号变化,读到的条目可能已经过时,不放入内存.
+     * 只有同一分段的写入才会影响其他 key 放入内存
+     */
+    private final AtomicLongArray mWriteVersions = new AtomicLongArray(VERSION_STRIPES);
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * @param backing        下一级缓存
+     * @param maxMemoryBytes 内存缓存的最大字节数
+     */
+    public TieredCache(Cache backing, long maxMemoryBytes) {
+        mBacking = backing;
+        mMaxMemoryBytes = maxMemoryBytes;
+    }
+
+    public Cache getBackingCache() {
+        return mBacking;
+    }
+
+    @Override
+    public Entry get(String key) {
+        Entry hit = null;
+        synchronized (mMemory) {
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                mHitCount.incrementAndGet();
+                hit = CacheEntries.copyOf(entry);
+            }
+        }
+        if (hit != null) {
+            // 内存命中不会读取下一级缓存,单独通知它的淘汰策略,热点的 key 才不会先从磁盘上被淘汰
+            mBacking.touch(key);
+            return hit;
+        }
+        mMissCount.incrementAndGet();
+
+        long version = mWriteVersions.get(stripeFor(key));
+        Entry entry = mBacking.get(key);
+        if (entry != null) {
+            putInMemory(key, entry, version);
+        }
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        // 这次写入的版本号,之后有其他写入时不放入内存
+        long version = bumpVersion(key);
+        mBacking.put(key, entry);
+        synchronized (mMemory) {
+            removeFromMemory(key);
+        }
+        putInMemory(key, entry, version);
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        synchronized (mMemory) {
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                return CacheEntries.metadataOf(entry);
+            }
+        }
+        return mBacking.getMetadata(key);
+    }
+
+    /**
+     * 内存命中时从内存中读取,否则直接读取下一级缓存 (以流的方式读取的一般是大的实体,不放入内存)
+     */
+    @Override
+    public EntryStream openForRead(String key) {
+        EntryStream hit = null;
+        synchronized (mMemory) {
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                mHitCount.incrementAndGet();
+                hit = CacheEntries.streamOf(entry);
+            }
+        }
+        if (hit != null) {
+            mBacking.touch(key);
+            return hit;
+        }
+        mMissCount.incrementAndGet();
+        return mBacking.openForRead(key);
+    }
+
+    @Override
+    public void touch(String key) {
+        synchronized (mMemory) {
+            // 按访问顺序排列,get 会把条目移到最后
+            mMemory.get(key);
+        }
+        mBacking.touch(key);
+    }
+
+    /**
+     * 直接写入下一级缓存,提交时从内存中删除旧的条目
+     */
+    @Override
+    public EntryWriter openForWrite(final String key, Entry metadata) {
+        final EntryWriter backing = mBacking.openForWrite(key, metadata);
+        if (backing == null) {
+            return null;
+        }
+        return new EntryWriter() {
+            @Override
+            public void write(int b) throws IOException {
+                backing.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                backing.write(b, off, len);
+            }
+
+            @Override
+            public void setMetadata(Entry metadata) {
+                backing.setMetadata(metadata);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                bumpVersion(key);
+                backing.commit();
+                synchronized (mMemory) {
+                    removeFromMemory(key);
+                }
+            }
+
+            @Override
+            public void abort() {
+                backing.abort();
+            }
+
+            @Override
+            public void close() throws IOException {
+                backing.close();
+            }
+        };
+    }
+
+    @Override
+    public void initialize() {
+        mBacking.initialize();
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry metadata) {
+        bumpVersion(key);
+        synchronized (mMemory) {
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                // 实体大小不变,占用的内存不需要重新计算
+                mMemory.put(key, CacheEntries.withMetadata(entry, metadata));
+            }
+        }
+        mBacking.updateMetadata(key, metadata);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        bumpVersion(key);
+        synchronized (mMemory) {
+            Entry entry = mMemory.get(key);
+            if (entry != null) {
+                // 内存中存放的是副本,可以直接修改
+                entry.softTtl = 0;
+                if (fullExpire) {
+                    entry.ttl = 0;
+                }
+            }
+        }
+        mBacking.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void remove(String key) {
+        bumpVersion(key);
+        synchronized (mMemory) {
+            removeFromMemory(key);
+        }
+        mBacking.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < VERSION_STRIPES; i++) {
+            mWriteVersions.incrementAndGet(i);
+        }
+        synchronized (mMemory) {
+            mMemory.clear();
+            mMemoryBytes = 0;
+        }
+        mBacking.clear();
+    }
+
+    @Override
+    public void flush() {
+        mBacking.flush();
+    }
+
+    @Override
+    public void shutdown() {
+        mBacking.shutdown();
+    }
+
+    /**
+     * 内存命中的次数
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * 内存未命中(交给下一级缓存)的次数
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * 内存缓存当前占用的字节数(估算)
+     */
+    public long getMemorySize() {
+        synchronized (mMemory) {
+            return mMemoryBytes;
+        }
+    }
+
+    /**
+     * 将条目的副本放入内存
+     *
+     * @param version 读取或写入该条目之前 key 所在分段的版本号,期间该分段有其他写入时放弃
+     */
+    private void putInMemory(String key, Entry entry, long version) {
+        if (entry.data == null) {
+            // 映射自缓存文件的大实体,留在磁盘上
+            return;
+        }
+        long size = sizeOf(key, entry);
+        if (size > mMaxMemoryBytes / MAX_ENTRY_FRACTION) {
+            return;
+        }
+        Entry copy = CacheEntries.copyOf(entry);
+        synchronized (mMemory) {
+            if (mWriteVersions.get(stripeFor(key)) != version) {
+                return;
+            }
+            removeFromMemory(key);
+            mMemory.put(key, copy);
+            mMemoryBytes += size;
+            trimToSize();
+        }
+    }
+
+    /**
+     * 增加 key 所在分段的版本号
+     *
+     * @return 新的版本号
+     */
+    private long bumpVersion(String key) {
+        return mWriteVersions.incrementAndGet(stripeFor(key));
+    }
+
+    static int stripeFor(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * 需要在 mMemory 上同步
+     */
+    private void removeFromMemory(String key) {
+        Entry old = mMemory.remove(key);
+        if (old != null) {
+            mMemoryBytes -= sizeOf(key, old);
+        }
+    }
+
+    /**
+     * 淘汰最久未使用的条目,直到不超过内存预算. 需要在 mMemory 上同步
+     */
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Entry>> iterator = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            mMemoryBytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            iterator.remove();
+        }
+    }
+
+    private static long sizeOf(String key, Entry entry) {
+        return entry.data.length + key.length() * 2 + ENTRY_OVERHEAD_BYTES;
+    }
+}
@@ -0,0 +1,137 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * W-TinyLFU: 新写入的条目先进入一个很小的窗口 (按 LRU),窗口溢出的条目要与主区中最久未使用的条目比较
+ * 最近的访问频率 (见 {@link FrequencySketch}),频率更高的一方留下.
+ * <p>
+ * 一次性的请求 (例如一批只看一次的大图片) 频率很低,只能挤掉窗口中的其他新条目,
+ * 不会把反复访问的接口数据冲出缓存. 新的热点在窗口中积累频率后可以进入主区.
+ * <p>
+ * {@link DiskBasedCache} 在缓存满时成批淘汰,这里在每次淘汰时按上面的规则排出顺序:
+ * 窗口的大小为当前总大小的 {@link #WINDOW_FRACTION}.
+ * 缓存只会淘汰顺序的一个前缀,所以输掉的条目留在窗口中直到被删除,
+ * 赢得比较的条目在它挤掉的主区条目真正被删除 ({@link #onRemove(long)}) 时才进入主区.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+
+    /**
+     * 窗口占缓存总大小的比例
+     */
+    private static final float WINDOW_FRACTION = 0.01f;
+
+    private static final int DEFAULT_EXPECTED_ENTRIES = 8192;
+
+    private final FrequencySketch mSketch;
+
+    /**
+     * 窗口中的条目 (上一次淘汰之后写入,还没有与主区比较过的条目)
+     */
+    private final Set<Long> mWindow = new HashSet<>();
+
+    /**
+     * 上一次排序中主区条目到挤掉它的窗口条目,主区条目被删除时窗口条目进入主区
+     */
+    private final Map<Long, Long> mAdmissions = new HashMap<>();
+
+    public TinyLfuPolicy() {
+        this(DEFAULT_EXPECTED_ENTRIES);
+    }
+
+    /**
+     * @param expectedEntries 预计的条目数,决定频率统计表的大小 (每个条目约 1 字节)
+     */
+    public TinyLfuPolicy(int expectedEntries) {
+        mSketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public synchronized void onAccess(long hash) {
+        mSketch.increment(hash);
+    }
+
+    @Override
+    public synchronized void onPut(long hash, long size) {
+        mWindow.add(hash);
+    }
+
+    @Override
+    public synchronized void onRemove(long hash) {
+        mWindow.remove(hash);
+        Long winner = mAdmissions.remove(hash);
+        if (winner != null) {
+            mWindow.remove(winner);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        mSketch.clear();
+        mWindow.clear();
+        mAdmissions.clear();
+    }
+
+    /**
+     * 窗口中最久未使用的条目依次与主区中最久未使用的条目比较,输掉的先淘汰,直到窗口不超过限制.
+     * 之后是主区剩余的条目 (LRU),赢得比较的条目,最后是窗口中剩余的条目.
+     * 只记下每个赢得比较的条目挤掉了哪个主区条目 (替换上一次排序的记录),
+     * 除了没有可以比较的主区条目的候选,不改变窗口中的条目
+     */
+    @Override
+    public synchronized int[] order(long[] hashes, long[] sizes, int count) {
+        int[] window = new int[count];
+        int[] main = new int[count];
+        int windowCount = 0;
+        int mainCount = 0;
+        long totalBytes = 0;
+        long windowBytes = 0;
+        for (int i = 0; i < count; i++) {
+            totalBytes += sizes[i];
+            if (mWindow.contains(hashes[i])) {
+                window[windowCount++] = i;
+                windowBytes += sizes[i];
+            } else {
+                main[mainCount++] = i;
+            }
+        }
+        long windowMaxBytes = (long) (totalBytes * WINDOW_FRACTION);
+
+        int[] order = new int[count];
+        int[] admitted = new int[count];
+        int n = 0;
+        int admittedCount = 0;
+        int w = 0;
+        int m = 0;
+        mAdmissions.clear();
+        while (w < windowCount && windowBytes > windowMaxBytes) {
+            int candidate = window[w++];
+            windowBytes -= sizes[candidate];
+            if (m < mainCount && mSketch.frequency(hashes[candidate]) > mSketch.frequency(hashes[main[m]])) {
+                mAdmissions.put(hashes[main[m]], hashes[candidate]);
+                order[n++] = main[m++];
+                admitted[admittedCount++] = candidate;
+            } else {
+                if (m == mainCount) {
+                    // 主区中已经没有可以比较的条目 (例如刚开始时主区为空): 没有被淘汰就直接进入主区.
+                    // 被淘汰时 onRemove 会删除它,所以现在移出窗口与淘汰后再移出的结果相同
+                    mWindow.remove(hashes[candidate]);
+                }
+                order[n++] = candidate;
+            }
+        }
+        while (m < mainCount) {
+            order[n++] = main[m++];
+        }
+        for (int i = 0; i < admittedCount; i++) {
+            order[n++] = admitted[i];
+        }
+        while (w < windowCount) {
+            order[n++] = window[w++];
+        }
+        return order;
+    }
+}
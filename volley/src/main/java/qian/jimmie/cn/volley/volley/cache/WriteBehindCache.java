@@ -0,0 +1,341 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+import qian.jimmie.cn.volley.volley.exception.VolleyLog;
+
+/**
+ * 延迟写入的缓存: put / remove 先放入内存中的待写队列,由单独的写线程写入下一级缓存 (一般是 {@link DiskBasedCache}).
+ * <p>
+ * 网络分发线程不再等待写文件和 prune,响应可以更早地分发给调用者.
+ * 同一个 key 在写入之前被多次 put 时只有最后一次会写入磁盘.
+ * get 会先查看待写队列,因此总能读到最近一次写入.
+ * 待写队列有条目数和字节数上限,超出时 put 会等待写线程腾出空间.
+ * <p>
+ * 待写的条目在写入完成后才从队列中删除,写入过程中读到的仍是队列中的值.
+ */
+public class WriteBehindCache implements Cache {
+
+    /**
+     * 默认待写队列最多条目数
+     */
+    private static final int DEFAULT_MAX_PENDING_ENTRIES = 64;
+
+    /**
+     * 默认待写队列最多字节数
+     */
+    private static final long DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * 待写队列中表示删除的标记
+     */
+    private static final Entry REMOVED = new Entry();
+
+    /**
+     * 下一级缓存
+     */
+    private final Cache mBacking;
+
+    private final int mMaxPendingEntries;
+    private final long mMaxPendingBytes;
+
+    /**
+     * 待写队列,按第一次写入的顺序排列. 值为 {@link #REMOVED} 表示待删除 (在自身上同步)
+     */
+    private final LinkedHashMap<String, Entry> mPending = new LinkedHashMap<>();
+
+    /**
+     * 待写队列中实体的字节数
+     */
+    private long mPendingBytes = 0;
+
+    /**
+     * 写线程写入下一级缓存时持有,clear 需要等待正在进行的写入完成
+     */
+    private final Object mWriteLock = new Object();
+
+    private Thread mWriter;
+
+    public WriteBehindCache(Cache backing) {
+        this(backing, DEFAULT_MAX_PENDING_ENTRIES, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param backing           下一级缓存
+     * @param maxPendingEntries 待写队列最多条目数
+     * @param maxPendingBytes   待写队列最多字节数
+     */
+    public WriteBehindCache(Cache backing, int maxPendingEntries, long maxPendingBytes) {
+        mBacking = backing;
+        mMaxPendingEntries = maxPendingEntries;
+        mMaxPendingBytes = maxPendingBytes;
+    }
+
+    public Cache getBackingCache() {
+        return mBacking;
+    }
+
+    @Override
+    public Entry get(String key) {
+        synchronized (mPending) {
+            Entry pending = mPending.get(key);
+            if (pending == REMOVED) {
+                return null;
+            }
+            if (pending != null) {
+                return CacheEntries.copyOf(pending);
+            }
+        }
+        return mBacking.get(key);
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        enqueue(key, entry);
+    }
+
+    @Override
+    public Entry getMetadata(String key) {
+        synchronized (mPending) {
+            Entry pending = mPending.get(key);
+            if (pending == REMOVED) {
+                return null;
+            }
+            if (pending != null) {
+                return CacheEntries.metadataOf(pending);
+            }
+        }
+        return mBacking.getMetadata(key);
+    }
+
+    @Override
+    public void touch(String key) {
+        mBacking.touch(key);
+    }
+
+    @Override
+    public EntryStream openForRead(String key) {
+        synchronized (mPending) {
+            Entry pending = mPending.get(key);
+            if (pending == REMOVED) {
+                return null;
+            }
+            if (pending != null) {
+                return CacheEntries.streamOf(pending);
+            }
+        }
+        return mBacking.openForRead(key);
+    }
+
+    /**
+     * 实体在内存中缓冲,提交时放入待写队列,与 {@link #put(String, Entry)} 保持顺序
+     */
+    @Override
+    public EntryWriter openForWrite(String key, Entry metadata) {
+        return CacheEntries.bufferingWriter(this, key, metadata);
+    }
+
+    @Override
+    public void initialize() {
+        mBacking.initialize();
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry metadata) {
+        synchronized (mPending) {
+            Entry pending = mPending.get(key);
+            if (pending == REMOVED) {
+                return;
+            }
+            if (pending != null) {
+                // 同 invalidate,换成新的对象
+                mPending.put(key, CacheEntries.withMetadata(pending, metadata));
+                return;
+            }
+        }
+        // 只修改头部,开销很小,直接写入下一级缓存
+        mBacking.updateMetadata(key, metadata);
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        synchronized (mPending) {
+            Entry pending = mPending.get(key);
+            if (pending == REMOVED) {
+                return;
+            }
+            if (pending != null) {
+                // 换成新的对象,写线程正在写入旧对象时,写完后不会把它当作已完成从队列中删除
+                Entry copy = CacheEntries.copyOf(pending);
+                copy.softTtl = 0;
+                if (fullExpire) {
+                    copy.ttl = 0;
+                }
+                mPending.put(key, copy);
+                return;
+            }
+        }
+        // 队列中没有该 key 时写线程也不会写入它,可以直接修改下一级缓存
+        mBacking.invalidate(key, fullExpire);
+    }
+
+    @Override
+    public void remove(String key) {
+        enqueue(key, REMOVED);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (mWriteLock) {
+            synchronized (mPending) {
+                mPending.clear();
+                mPendingBytes = 0;
+                mPending.notifyAll();
+            }
+            mBacking.clear();
+        }
+    }
+
+    /**
+     * 阻塞直到待写队列中的所有条目都写入下一级缓存
+     */
+    @Override
+    public void flush() {
+        synchronized (mPending) {
+            while (!mPending.isEmpty()) {
+                try {
+                    mPending.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        mBacking.flush();
+    }
+
+    /**
+     * 写线程写完待写队列后退出,然后关闭下一级缓存. 之后的写入重新启动写线程
+     */
+    @Override
+    public void shutdown() {
+        Thread writer;
+        synchronized (mPending) {
+            writer = mWriter;
+            mWriter = null;
+            mPending.notifyAll();
+        }
+        DiskBasedCache.joinQuietly(writer);
+        mBacking.shutdown();
+    }
+
+    /**
+     * 待写队列中的条目数
+     */
+    public int getPendingCount() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    private void enqueue(String key, Entry entry) {
+        long size = sizeOf(entry);
+        synchronized (mPending) {
+            Entry old = mPending.get(key);
+            if (old == null) {
+                // 队列已满时等待写线程腾出空间,同一个 key 的覆盖写不受限制
+                while (!mPending.isEmpty() && (mPending.size() >= mMaxPendingEntries
+                        || mPendingBytes + size > mMaxPendingBytes)) {
+                    try {
+                        mPending.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                old = mPending.get(key);
+            }
+            if (old != null) {
+                mPendingBytes -= sizeOf(old);
+            }
+            mPending.put(key, entry);
+            mPendingBytes += size;
+            startWriterIfNeeded();
+            mPending.notifyAll();
+        }
+    }
+
+    /**
+     * 需要在 mPending 上同步
+     */
+    private void startWriterIfNeeded() {
+        if (mWriter != null) {
+            return;
+        }
+        mWriter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                drainForever();
+            }
+        }, "bees-cache-writer");
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    private void drainForever() {
+        Thread self = Thread.currentThread();
+        while (true) {
+            String key;
+            Entry entry;
+            synchronized (mPending) {
+                while (mPending.isEmpty()) {
+                    if (mWriter != self) {
+                        // shutdown 之后写完队列再退出
+                        return;
+                    }
+                    try {
+                        mPending.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+                Map.Entry<String, Entry> eldest = mPending.entrySet().iterator().next();
+                key = eldest.getKey();
+                entry = eldest.getValue();
+            }
+
+            synchronized (mWriteLock) {
+                // clear 之后队列可能已经变化
+                synchronized (mPending) {
+                    if (mPending.get(key) != entry) {
+                        continue;
+                    }
+                }
+                try {
+                    if (entry == REMOVED) {
+                        mBacking.remove(key);
+                    } else {
+                        mBacking.put(key, entry);
+                    }
+                } catch (RuntimeException e) {
+                    VolleyLog.e(e, "Write-behind failed for %s", key);
+                }
+            }
+
+            synchronized (mPending) {
+                // 写入期间被覆盖的条目留在队列中,下一轮写入新值
+                if (mPending.get(key) == entry) {
+                    mPending.remove(key);
+                    mPendingBytes -= sizeOf(entry);
+                }
+                mPending.notifyAll();
+            }
+        }
+    }
+
+    private static long sizeOf(Entry entry) {
+        return entry.data == null ? 0 : entry.data.length;
+    }
+}
@@ -0,0 +1,160 @@
+package qian.jimmie.cn.volley.volley.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import qian.jimmie.cn.volley.volley.request.Request;
+
+/**
+ * 预取请求的调度: 同时最多有 maxConcurrent 个预取请求交给 {@link RequestQueue},其余的在这里排队,
+ * 不会占满分发线程,也不会排在用户发起的请求前面.
+ * <p>
+ * 状态在自身上同步; 调用 {@link RequestQueue} 的方法时不持有锁
+ */
+class Prefetcher {
+
+    private final RequestQueue mQueue;
+
+    /**
+     * 还没有交给请求队列的预取请求,按 cache key (GET 参数已经拼接到 url 上) 去重,先进先出
+     */
+    private final LinkedHashMap<String, Request<?>> mPending = new LinkedHashMap<String, Request<?>>();
+
+    /**
+     * 已经交给请求队列,还没有结束的预取请求 (不超过 maxConcurrent 个,按 key 线性查找)
+     */
+    private final List<Request<?>> mInFlight = new ArrayList<Request<?>>();
+
+    private int mMaxConcurrent;
+
+    Prefetcher(RequestQueue queue, int maxConcurrent) {
+        mQueue = queue;
+        mMaxConcurrent = maxConcurrent;
+    }
+
+    void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent < 1");
+        }
+        synchronized (this) {
+            mMaxConcurrent = maxConcurrent;
+        }
+        submitReady();
+    }
+
+    void enqueue(Collection<? extends Request<?>> requests) {
+        synchronized (this) {
+            for (Request<?> request : requests) {
+                // 预取只是为了写入缓存
+                if (!request.shouldCache()) {
+                    continue;
+                }
+                request.setPrefetch(true);
+                request.setPriority(Request.Priority.PREFETCH);
+                String key = request.getCacheKey();
+                if (!mPending.containsKey(key) && findInFlight(key) == null) {
+                    mPending.put(key, request);
+                }
+            }
+        }
+        submitReady();
+    }
+
+    /**
+     * 有相同 cache key 的普通请求加入队列: 还没有提交的预取请求直接去掉,
+     * 已经提交的提升到该请求的优先级 (普通请求会等待它结束后从缓存中读取)
+     */
+    void promote(String cacheKey, Request.Priority priority) {
+        Request<?> inFlight;
+        synchronized (this) {
+            mPending.remove(cacheKey);
+            inFlight = findInFlight(cacheKey);
+        }
+        if (inFlight != null) {
+            mQueue.reprioritize(inFlight, priority);
+        }
+    }
+
+    /**
+     * 预取请求结束 (完成,失败,取消或者缓存仍然新鲜),提交下一个
+     */
+    void onFinished(Request<?> request) {
+        synchronized (this) {
+            removeInFlight(request);
+        }
+        submitReady();
+    }
+
+    /**
+     * 去掉满足条件的还没有提交的预取请求. 已经提交的由 {@link RequestQueue#cancelAll(RequestQueue.RequestFilter)} 取消
+     */
+    synchronized void cancelPending(RequestQueue.RequestFilter filter) {
+        Iterator<Request<?>> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            Request<?> request = it.next();
+            if (filter.apply(request)) {
+                request.cancel();
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int pendingCount() {
+        return mPending.size();
+    }
+
+    synchronized int inFlightCount() {
+        return mInFlight.size();
+    }
+
+    private void submitReady() {
+        while (true) {
+            List<Request<?>> batch = takeReady();
+            if (batch.isEmpty()) {
+                return;
+            }
+            for (Request<?> request : batch) {
+                if (!mQueue.submitPrefetch(request)) {
+                    // 相同的 key 已经有请求在处理,不需要预取
+                    synchronized (this) {
+                        removeInFlight(request);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized List<Request<?>> takeReady() {
+        List<Request<?>> batch = new ArrayList<Request<?>>();
+        Iterator<Map.Entry<String, Request<?>>> it = mPending.entrySet().iterator();
+        while (mInFlight.size() < mMaxConcurrent && it.hasNext()) {
+            Map.Entry<String, Request<?>> next = it.next();
+            it.remove();
+            mInFlight.add(next.getValue());
+            batch.add(next.getValue());
+        }
+        return batch;
+    }
+
+    private Request<?> findInFlight(String cacheKey) {
+        for (Request<?> request : mInFlight) {
+            if (request.getCacheKey().equals(cacheKey)) {
+                return request;
+            }
+        }
+        return null;
+    }
+
+    private void removeInFlight(Request<?> request) {
+        for (int i = 0; i < mInFlight.size(); i++) {
+            if (mInFlight.get(i) == request) {
+                mInFlight.remove(i);
+                return;
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -31,9 +32,12 @@ import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import qian.jimmie.cn.volley.volley.Bees;
+import qian.jimmie.cn.volley.volley.cache.CacheStats;
+import qian.jimmie.cn.volley.volley.core.interfaces.AsyncNetwork;
 import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
 import qian.jimmie.cn.volley.volley.core.interfaces.Network;
 import qian.jimmie.cn.volley.volley.core.interfaces.ResponseDelivery;
+import qian.jimmie.cn.volley.volley.dispatcher.AsyncNetworkDispatcher;
 import qian.jimmie.cn.volley.volley.dispatcher.CacheDispatcher;
 import qian.jimmie.cn.volley.volley.dispatcher.ExecutorDelivery;
 import qian.jimmie.cn.volley.volley.dispatcher.NetworkDispatcher;
@@ -97,6 +101,21 @@ public class RequestQueue {
      */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /**
+     * 默认同时进行的预取请求数,保证总有网络分发线程留给用户发起的请求
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_PREFETCHES = 2;
+
+    /**
+     * 异步网络默认的解析线程数
+     */
+    private static final int DEFAULT_PARSE_THREAD_POOL_SIZE = 2;
+
+    /**
+     * 异步网络默认同时进行的最大请求数
+     */
+    private static final int DEFAULT_MAX_ASYNC_REQUESTS = 64;
+
     /**
      * 缓存接口,为了检索和存储响应
      */
@@ -107,6 +126,22 @@ public class RequestQueue {
      */
     private final Network mNetwork;
 
+    /**
+     * 异步处理请求的接口,不为 null 时代替 {@link #mNetwork}
+     */
+    private final AsyncNetwork mAsyncNetwork;
+
+    /**
+     * 异步网络的解析线程数和同时进行的最大请求数
+     */
+    private final int mParseThreads;
+    private final int mMaxAsyncRequests;
+
+    /**
+     * 异步网络的分发线程
+     */
+    private AsyncNetworkDispatcher mAsyncDispatcher;
+
     /**
      * 响应分发机制
      */
@@ -122,6 +157,21 @@ public class RequestQueue {
      */
     private CacheDispatcher mCacheDispatcher;
 
+    /**
+     * 网络分发线程是否在下载时同时写入缓存,见 {@link NetworkDispatcher#setTeeToCache(boolean)}
+     */
+    private volatile boolean mTeeToCache = false;
+
+    /**
+     * 缓存的统计,由缓存分发和网络分发线程记录
+     */
+    private final CacheStats mCacheStats = new CacheStats();
+
+    /**
+     * 预取请求的调度,见 {@link #prefetch(Collection)}
+     */
+    private final Prefetcher mPrefetcher = new Prefetcher(this, DEFAULT_MAX_CONCURRENT_PREFETCHES);
+
     /**
      * 响应回调队列
      */
@@ -131,11 +181,36 @@ public class RequestQueue {
                         ResponseDelivery delivery) {
         mCache = cache;
         mNetwork = network;
+        mAsyncNetwork = null;
+        mParseThreads = 0;
+        mMaxAsyncRequests = 0;
         // 网络分发器
         mDispatchers = new NetworkDispatcher[threadPoolSize];
         mDelivery = delivery;
     }
 
+    /**
+     * 使用异步网络: 一个分发线程发出所有请求,响应在 parseThreads 个线程中解析,
+     * 慢的请求不会占住分发线程
+     *
+     * @param maxInFlight 同时进行的最大请求数,超过时请求按优先级排队
+     */
+    public RequestQueue(Cache cache, AsyncNetwork network, int parseThreads, int maxInFlight,
+                        ResponseDelivery delivery) {
+        mCache = cache;
+        mNetwork = null;
+        mAsyncNetwork = network;
+        mParseThreads = parseThreads;
+        mMaxAsyncRequests = maxInFlight;
+        mDispatchers = new NetworkDispatcher[0];
+        mDelivery = delivery;
+    }
+
+    public RequestQueue(Cache cache, AsyncNetwork network) {
+        this(cache, network, DEFAULT_PARSE_THREAD_POOL_SIZE, DEFAULT_MAX_ASYNC_REQUESTS,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
+
     public RequestQueue(Cache cache, Network network, int threadPoolSize) {
         this(cache, network, threadPoolSize,
                 // 传入持有mainLooper的handler,进行相应分发
@@ -155,13 +230,22 @@ public class RequestQueue {
         stop();
 
         // 缓存分发
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
+        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery,
+                mCacheStats);
         mCacheDispatcher.start();
 
+        if (mAsyncNetwork != null) {
+            mAsyncDispatcher = new AsyncNetworkDispatcher(mNetworkQueue, mAsyncNetwork, mCache,
+                    mDelivery, mCacheStats, mParseThreads, mMaxAsyncRequests);
+            mAsyncDispatcher.setTeeToCache(mTeeToCache);
+            mAsyncDispatcher.start();
+        }
+
         // 网络分发
         for (int i = 0; i < mDispatchers.length; i++) {
             NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
+                    mCache, mDelivery, mCacheStats);
+            networkDispatcher.setTeeToCache(mTeeToCache);
             mDispatchers[i] = networkDispatcher;
             networkDispatcher.start();
         }
@@ -169,6 +253,9 @@ public class RequestQueue {
 
     /**
      * Stops the cache and network dispatchers.
+     * 异步网络的连接被关闭,没有完成的请求以错误结束.
+     * 停止后等待缓存中尚未写入的数据写入完成 (见 {@link Cache#flush()}),
+     * 然后停止缓存的后台线程 (见 {@link Cache#shutdown()}),再次 {@link #start()} 时由缓存分发线程重新初始化
      */
     public void stop() {
         if (mCacheDispatcher != null) {
@@ -179,6 +266,30 @@ public class RequestQueue {
                 mDispatchers[i].quit();
             }
         }
+        if (mAsyncDispatcher != null) {
+            mAsyncDispatcher.quit();
+            mAsyncDispatcher = null;
+            mAsyncNetwork.shutdown();
+        }
+        mCache.flush();
+        mCache.shutdown();
+    }
+
+    /**
+     * 开启后实体一边下载一边写入缓存文件,解析成功后提交,省去解析后再写一遍缓存.
+     * 对已经启动的分发线程同样生效
+     */
+    public void setTeeToCache(boolean teeToCache) {
+        mTeeToCache = teeToCache;
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            if (dispatcher != null) {
+                dispatcher.setTeeToCache(teeToCache);
+            }
+        }
+        AsyncNetworkDispatcher asyncDispatcher = mAsyncDispatcher;
+        if (asyncDispatcher != null) {
+            asyncDispatcher.setTeeToCache(teeToCache);
+        }
     }
 
     /**
@@ -193,11 +304,75 @@ public class RequestQueue {
         return mCache;
     }
 
+    /**
+     * 缓存的命中,重新验证和读写耗时等统计,可以在队列运行时调用 {@link CacheStats#snapshot()}.
+     * 淘汰和读写的字节数需要把它传给 {@link qian.jimmie.cn.volley.volley.cache.DiskBasedCache#setStats(CacheStats)}
+     */
+    public CacheStats getCacheStats() {
+        return mCacheStats;
+    }
+
+    /**
+     * 返回缓存初始化阻塞缓存分发线程的时间(毫秒),队列未开始或初始化未完成时返回 -1
+     */
+    public long getCacheInitializeBlockedMs() {
+        CacheDispatcher dispatcher = mCacheDispatcher;
+        return dispatcher == null ? -1 : dispatcher.getInitializeBlockedMs();
+    }
+
+    /**
+     * 预取一组请求,只把响应写入缓存 (不解析,也不回调监听器):
+     * <ul>
+     * <li>以最低的优先级 {@link Request.Priority#PREFETCH} 排在所有普通请求后面,
+     * 同时最多 {@link #setMaxConcurrentPrefetches(int)} 个,其余的在队列外等待</li>
+     * <li>缓存仍然新鲜时直接丢弃,需要刷新时带上 etag 等,返回 304 时只更新头部</li>
+     * <li>相同 cache key 的普通请求加入时,还没有开始的预取被去掉,已经开始的提升到该请求的优先级,
+     * 普通请求等它结束后从缓存中读取</li>
+     * </ul>
+     * 不需要缓存的请求被忽略. 可以用 {@link #cancelPrefetches()} 或者 {@link #cancelAll(Object)} 取消
+     */
+    public void prefetch(Collection<? extends Request<?>> requests) {
+        for (Request<?> request : requests) {
+            if (request.shouldCache()) {
+                // 先拼接 GET 参数,预取请求按最终的 cache key 去重,提升和取消
+                addQuaryParams(request);
+            }
+        }
+        mPrefetcher.enqueue(requests);
+    }
+
+    /**
+     * 同时进行的预取请求数,默认 {@value #DEFAULT_MAX_CONCURRENT_PREFETCHES}
+     */
+    public void setMaxConcurrentPrefetches(int maxConcurrent) {
+        mPrefetcher.setMaxConcurrent(maxConcurrent);
+    }
+
+    /**
+     * 取消所有预取请求,包括还在等待的
+     */
+    public void cancelPrefetches() {
+        cancelAll(new RequestFilter() {
+            @Override
+            public boolean apply(Request<?> request) {
+                return request.isPrefetch();
+            }
+        });
+    }
+
+    /**
+     * 还没有开始的预取请求数
+     */
+    public int getPendingPrefetchCount() {
+        return mPrefetcher.pendingCount();
+    }
+
     public interface RequestFilter {
         boolean apply(Request<?> request);
     }
 
     public void cancelAll(RequestFilter filter) {
+        mPrefetcher.cancelPending(filter);
         synchronized (mCurrentRequests) {
             for (Request<?> request : mCurrentRequests) {
                 if (filter.apply(request)) {
@@ -220,9 +395,52 @@ public class RequestQueue {
     }
 
     public <T> Request<T> add(Request<T> request) {
+        addQuaryParams(request);
+        enqueue(request);
+        return request;
+    }
+
+    /**
+     * 由 {@link Prefetcher} 提交预取请求
+     *
+     * @return false: 已经取消,或者相同的 cache key 已经有请求在处理,没有加入队列
+     */
+    boolean submitPrefetch(Request<?> request) {
+        return !request.isCanceled() && enqueue(request);
+    }
+
+    /**
+     * 提升已经提交的预取请求的优先级. 优先级队列中的元素不能直接修改,需要取出后重新加入
+     */
+    void reprioritize(Request<?> prefetch, Request.Priority priority) {
+        if (priority.ordinal() <= prefetch.getPriority().ordinal()) {
+            return;
+        }
+        if (mCacheQueue.remove(prefetch)) {
+            prefetch.setPriority(priority);
+            mCacheQueue.add(prefetch);
+            return;
+        }
+        // 不在缓存队列中: 在网络队列中,或者正在被分发线程处理
+        prefetch.setPriority(priority);
+        // 修改之前可能已经以原来的优先级放入了网络队列
+        if (mNetworkQueue.remove(prefetch)) {
+            mNetworkQueue.add(prefetch);
+        }
+    }
+
+    /**
+     * GET 参数已经拼接到 url 上
+     *
+     * @return 只有预取请求会返回 false,见 {@link #submitPrefetch(Request)}
+     */
+    private boolean enqueue(Request<?> request) {
         // 设置请求队列,并且将请求添加到请求列表中
         request.setRequestQueue(this);
-        addQuaryParams(request);
+        if (!request.isPrefetch() && request.shouldCache()) {
+            // 相同 key 的预取请求让位或者提升优先级
+            mPrefetcher.promote(request.getCacheKey(), request.getPriority());
+        }
         synchronized (mCurrentRequests) {
             mCurrentRequests.add(request);
         }
@@ -234,12 +452,19 @@ public class RequestQueue {
         // 如果是不可缓存的,则加入网络请求队列
         if (!request.shouldCache()) {
             mNetworkQueue.add(request);
-            return request;
+            return true;
         }
 
         // Insert request into stage if there's already a request with the same cache key in flight.
         synchronized (mWaitingRequests) {
             String cacheKey = request.getCacheKey();
+            if (mWaitingRequests.containsKey(cacheKey) && request.isPrefetch()) {
+                // 已经有请求在处理,结束后缓存就是新的
+                synchronized (mCurrentRequests) {
+                    mCurrentRequests.remove(request);
+                }
+                return false;
+            }
             if (mWaitingRequests.containsKey(cacheKey)) {
                 // 等待队列中已经有该请求
                 // There is already a request in flight. Queue up.
@@ -258,7 +483,7 @@ public class RequestQueue {
                 mWaitingRequests.put(cacheKey, null);
                 mCacheQueue.add(request);
             }
-            return request;
+            return true;
         }
     }
 
@@ -301,6 +526,10 @@ public class RequestQueue {
                 }
             }
         }
+
+        if (request.isPrefetch()) {
+            mPrefetcher.onFinished(request);
+        }
     }
 
 //    public <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
@@ -0,0 +1,44 @@
+package qian.jimmie.cn.volley.volley.core.interfaces;
+
+import java.io.IOException;
+import java.util.Map;
+
+import qian.jimmie.cn.volley.volley.exception.AuthFailureError;
+import qian.jimmie.cn.volley.volley.request.Request;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+
+/**
+ * 异步的 {@link HttpStack}: 发出请求后立即返回,响应或错误通过回调通知,
+ * 少量线程就可以同时处理大量请求
+ */
+public interface AsyncHttpStack {
+
+    /**
+     * 请求完成的回调. 在 stack 的 IO 线程上调用,不能阻塞
+     */
+    interface OnRequestComplete {
+        /**
+         * 收到完整的响应 (包括非 2xx 的响应)
+         */
+        void onSuccess(NetworkResponse response);
+
+        /**
+         * 连接,读写失败或超时 ({@link java.net.SocketTimeoutException}),请求取消等
+         */
+        void onError(IOException e);
+    }
+
+    /**
+     * 发出请求. 请求的头部和实体在调用线程上获取
+     *
+     * @param additionalHeaders 和 {@link Request#getHeaders()} 一起发送的头部
+     * @throws AuthFailureError 获取头部或实体失败
+     */
+    void performRequest(Request<?> request, Map<String, String> additionalHeaders,
+                        OnRequestComplete callback) throws AuthFailureError;
+
+    /**
+     * 关闭所有连接并停止 IO 线程,没有完成的请求以 IOException 失败
+     */
+    void shutdown();
+}
@@ -0,0 +1,36 @@
+package qian.jimmie.cn.volley.volley.core.interfaces;
+
+import qian.jimmie.cn.volley.volley.exception.GreeError;
+import qian.jimmie.cn.volley.volley.request.Request;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+
+/**
+ * 异步的 {@link Network}: 处理缓存验证和重试,结果通过回调通知
+ */
+public interface AsyncNetwork {
+
+    /**
+     * 请求的结果. 在网络的 IO 线程或者回调线程上调用,不能阻塞
+     */
+    interface OnRequestComplete {
+        /**
+         * 和 {@link Network#performRequest(Request)} 的返回值相同
+         */
+        void onSuccess(NetworkResponse response);
+
+        /**
+         * 重试后仍然失败
+         */
+        void onError(GreeError error);
+    }
+
+    /**
+     * 发出请求,立即返回
+     */
+    void performRequest(Request<?> request, OnRequestComplete callback);
+
+    /**
+     * 关闭连接并停止网络的线程,没有完成的请求以错误结束
+     */
+    void shutdown();
+}
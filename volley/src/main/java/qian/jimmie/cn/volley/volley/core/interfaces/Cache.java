@@ -16,6 +16,11 @@
 
 package qian.jimmie.cn.volley.volley.core.interfaces;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 
@@ -39,12 +44,55 @@ public interface Cache {
      */
     public void put(String key, Entry entry);
 
+    /**
+     * 只读取条目的元数据,不读取实体. 返回的 Entry 中 data 和 buffer 都为 null
+     *
+     * @param key Cache key
+     * @return 元数据,未命中时返回 null
+     */
+    public Entry getMetadata(String key);
+
+    /**
+     * 记录一次访问但不读取条目,由前面一级缓存 (例如内存缓存) 命中时调用,
+     * 使淘汰策略仍然能看到热点的 key. 条目不存在时什么都不做
+     *
+     * @param key Cache key
+     */
+    public void touch(String key);
+
+    /**
+     * 以流的方式读取条目,实体不会一次性读入堆中. 调用者必须关闭返回的 {@link EntryStream}
+     *
+     * @param key Cache key
+     * @return 未命中时返回 null
+     */
+    public EntryStream openForRead(String key);
+
+    /**
+     * 以流的方式写入条目: 写入实体后调用 {@link EntryWriter#commit()} 才会替换旧的条目,
+     * 没有提交就关闭则放弃写入
+     *
+     * @param key      Cache key
+     * @param metadata 元数据,其中的实体数据会被忽略
+     * @return 不能写入时返回 null
+     */
+    public EntryWriter openForWrite(String key, Entry metadata);
+
     /**
      * Performs any potentially long-running actions needed to initialize the cache;
      * will be called from a worker thread.
      */
     public void initialize();
 
+    /**
+     * 只更新已有条目的元数据 (ttl,softTtl,etag,serverDate,lastModified,响应头),保留实体数据.
+     * 用于 304 重新验证,不需要重写整个实体. 条目不存在时什么都不做.
+     *
+     * @param key      Cache key
+     * @param metadata 新的元数据,其中的实体数据会被忽略
+     */
+    public void updateMetadata(String key, Entry metadata);
+
     /**
      * Invalidates an entry in the cache.
      *
@@ -65,6 +113,73 @@ public interface Cache {
      */
     public void clear();
 
+    /**
+     * 阻塞直到之前所有的写入都已经持久化,用于 {@code RequestQueue.stop()}.
+     * 同步写入的缓存不需要做任何事情.
+     */
+    public void flush();
+
+    /**
+     * 停止后台线程 (清理,写入,整理),关闭打开的文件,用于 {@code RequestQueue.stop()}.
+     * 之后仍然可以读写,再次调用 {@link #initialize()} 会重新启动后台线程
+     */
+    public void shutdown();
+
+    /**
+     * {@link #openForRead(String)} 返回的条目: 元数据和实体的输入流
+     */
+    public static class EntryStream implements Closeable {
+        /**
+         * 条目的元数据,data 和 buffer 为 null
+         */
+        public final Entry entry;
+
+        /**
+         * 实体的输入流
+         */
+        public final InputStream stream;
+
+        /**
+         * 实体的长度
+         */
+        public final long length;
+
+        public EntryStream(Entry entry, InputStream stream, long length) {
+            this.entry = entry;
+            this.stream = stream;
+            this.length = length;
+        }
+
+        @Override
+        public void close() {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * {@link #openForWrite(String, Entry)} 返回的输出流. 写完实体后调用 {@link #commit()},
+     * 没有提交就 {@link #close()} 时放弃写入
+     */
+    public static abstract class EntryWriter extends OutputStream {
+        /**
+         * 提交写入的实体,替换旧的条目. 提交后再关闭不会做任何事情
+         */
+        public abstract void commit() throws IOException;
+
+        /**
+         * 替换打开时传入的元数据,在提交时生效. 用于写入实体时还不能确定的元数据 (例如解析响应后得到的过期时间)
+         */
+        public abstract void setMetadata(Entry metadata);
+
+        /**
+         * 放弃写入,旧的条目保持不变
+         */
+        public abstract void abort();
+    }
+
     /**
      * Data and metadata for an entry returned by the cache.
      */
@@ -74,6 +189,12 @@ public interface Cache {
          */
         public byte[] data;
 
+        /**
+         * 较大的缓存实体直接映射自缓存文件(只读),此时 {@link #data} 为 null,
+         * 需要 byte[] 时使用 {@link #getData()}
+         */
+        public ByteBuffer buffer;
+
         /**
          * 在典型用法中，当一个URL被请求，Web服务器会返回资源和其相应的ETag值，它会被放置在HTTP的“ETag”字段中：
          * ETag: "686897696a7c876b7e"
@@ -111,6 +232,20 @@ public interface Cache {
          */
         public Map<String, String> responseHeaders = Collections.emptyMap();
 
+        /**
+         * 返回实体数据,如果实体是映射自缓存文件的,在第一次调用时复制到 byte[] 中
+         */
+        public byte[] getData() {
+            if (data == null && buffer != null) {
+                ByteBuffer source = buffer.duplicate();
+                source.rewind();
+                byte[] bytes = new byte[source.remaining()];
+                source.get(bytes);
+                data = bytes;
+            }
+            return data;
+        }
+
         /**
          * true: entry已过期
          */
@@ -0,0 +1,178 @@
+package qian.jimmie.cn.volley.volley.dispatcher;
+
+
+import android.os.SystemClock;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import qian.jimmie.cn.volley.volley.cache.CacheStats;
+import qian.jimmie.cn.volley.volley.core.interfaces.AsyncNetwork;
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+import qian.jimmie.cn.volley.volley.core.interfaces.ResponseDelivery;
+import qian.jimmie.cn.volley.volley.exception.GreeError;
+import qian.jimmie.cn.volley.volley.request.Request;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+
+/**
+ * {@link AsyncNetwork} 的网络分发线程: 从队列中取出请求后立即交给网络,不等待响应.
+ * 响应在解析线程池中处理 (解析,写入缓存,分发),和 {@link NetworkDispatcher} 相同.
+ * <p>
+ * 同时进行的请求数 (包括解析中的) 不超过 maxInFlight,超过时请求留在优先级队列中排队
+ */
+public class AsyncNetworkDispatcher extends Thread {
+    /**
+     * The queue of requests to service.
+     */
+    private final BlockingQueue<Request<?>> mQueue;
+    /**
+     * The network interface for processing requests.
+     */
+    private final AsyncNetwork mNetwork;
+    /**
+     * 响应的解析,缓存和分发
+     */
+    private final NetworkResponseHandler mHandler;
+    /**
+     * 解析线程池
+     */
+    private final ExecutorService mParseExecutor;
+    /**
+     * 同时进行的请求数
+     */
+    private final Semaphore mInFlight;
+    /**
+     * Used for telling us to die.
+     */
+    private volatile boolean mQuit = false;
+
+    private volatile boolean mTeeToCache = false;
+
+    /**
+     * @param parseThreads 解析线程数
+     * @param maxInFlight  同时进行的最大请求数
+     */
+    public AsyncNetworkDispatcher(BlockingQueue<Request<?>> queue, AsyncNetwork network,
+                                  Cache cache, ResponseDelivery delivery, CacheStats stats,
+                                  int parseThreads, int maxInFlight) {
+        super("bees-async-network");
+        mQueue = queue;
+        mNetwork = network;
+        mHandler = new NetworkResponseHandler(cache, delivery, stats);
+        mParseExecutor = Executors.newFixedThreadPool(parseThreads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bees-parse-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mInFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * 见 {@link NetworkDispatcher#setTeeToCache(boolean)}
+     */
+    public void setTeeToCache(boolean teeToCache) {
+        mTeeToCache = teeToCache;
+    }
+
+    /**
+     * 停止取出新的请求,已经发出的请求仍然会被处理
+     */
+    public void quit() {
+        mQuit = true;
+        interrupt();
+        mParseExecutor.shutdown();
+    }
+
+    @Override
+    public void run() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Request<?> request;
+            try {
+                // 先占一个位置再取出请求,满的时候请求按优先级留在队列中
+                mInFlight.acquire();
+                try {
+                    request = mQueue.take();
+                } catch (InterruptedException e) {
+                    mInFlight.release();
+                    throw e;
+                }
+            } catch (InterruptedException e) {
+                if (mQuit) {
+                    return;
+                }
+                continue;
+            }
+            dispatch(request);
+        }
+    }
+
+    private void dispatch(final Request<?> request) {
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        request.addMarker("network-queue-take");
+        if (request.isCanceled()) {
+            request.finish("network-discard-cancelled");
+            mInFlight.release();
+            return;
+        }
+        mHandler.prepare(request, mTeeToCache);
+        try {
+            mNetwork.performRequest(request, new AsyncNetwork.OnRequestComplete() {
+                @Override
+                public void onSuccess(final NetworkResponse response) {
+                    parse(new Runnable() {
+                        @Override
+                        public void run() {
+                            mHandler.onResponse(request, response, startTimeMs);
+                        }
+                    }, request, startTimeMs);
+                }
+
+                @Override
+                public void onError(final GreeError error) {
+                    parse(new Runnable() {
+                        @Override
+                        public void run() {
+                            mHandler.onError(request, error, startTimeMs);
+                        }
+                    }, request, startTimeMs);
+                }
+            });
+        } catch (RuntimeException e) {
+            mHandler.onUnhandled(request, e, startTimeMs);
+            mInFlight.release();
+        }
+    }
+
+    /**
+     * 在解析线程池中处理结果,结束后释放位置. 在网络的 IO 线程或者回调线程上调用
+     */
+    private void parse(final Runnable task, final Request<?> request, final long startTimeMs) {
+        try {
+            mParseExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        mInFlight.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已经停止
+            mHandler.onUnhandled(request, e, startTimeMs);
+            mInFlight.release();
+        }
+    }
+}
@@ -17,8 +17,11 @@
 package qian.jimmie.cn.volley.volley.dispatcher;
 
 
+import android.os.SystemClock;
+
 import java.util.concurrent.BlockingQueue;
 
+import qian.jimmie.cn.volley.volley.cache.CacheStats;
 import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
 import qian.jimmie.cn.volley.volley.core.interfaces.ResponseDelivery;
 import qian.jimmie.cn.volley.volley.exception.VolleyLog;
@@ -58,11 +61,21 @@ public class CacheDispatcher extends Thread {
      */
     private final ResponseDelivery mDelivery;
 
+    /**
+     * 命中,未命中和读取耗时的统计
+     */
+    private final CacheStats mStats;
+
     /**
      * 是否退出缓存分发线程
      */
     private volatile boolean mQuit = false;
 
+    /**
+     * 缓存初始化阻塞分发线程的时间(毫秒),初始化完成前为 -1
+     */
+    private volatile long mInitializeBlockedMs = -1;
+
     /**
      * @param cacheQueue   Queue of incoming requests for triage
      * @param networkQueue Queue to post requests that require network to
@@ -72,10 +85,27 @@ public class CacheDispatcher extends Thread {
     public CacheDispatcher(
             BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
             Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, new CacheStats());
+    }
+
+    /**
+     * @param stats 记录命中,未命中和读取缓存的耗时
+     */
+    public CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
+            Cache cache, ResponseDelivery delivery, CacheStats stats) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mStats = stats;
+    }
+
+    /**
+     * 返回缓存初始化阻塞分发线程的时间(毫秒),初始化完成前返回 -1
+     */
+    public long getInitializeBlockedMs() {
+        return mInitializeBlockedMs;
     }
 
     /**
@@ -92,8 +122,11 @@ public class CacheDispatcher extends Thread {
         // 设置线程优先级 10
         android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
 
-        // 缓存初始化
+        // 缓存初始化 (异步加载索引的缓存会立即返回)
+        long initializeStart = SystemClock.elapsedRealtime();
         mCache.initialize();
+        mInitializeBlockedMs = SystemClock.elapsedRealtime() - initializeStart;
+        if (DEBUG) VolleyLog.v("cache initialize blocked %d ms", mInitializeBlockedMs);
 
         Request<?> request;
         while (true) {
@@ -122,13 +155,23 @@ public class CacheDispatcher extends Thread {
                     continue;
                 }
 
+                // 预取请求只需要知道缓存是否新鲜,不读取实体
+                if (request.isPrefetch()) {
+                    dispatchPrefetch(request);
+                    continue;
+                }
+
+                // 能够处理流的请求直接从缓存文件中读取实体
+                if (request.acceptsStream()) {
+                    dispatchFromStream(request);
+                    continue;
+                }
+
                 // 试着从缓存中检索请求
-                Cache.Entry entry = mCache.get(request.getCacheKey());
+                Cache.Entry entry = timedGet(request.getCacheKey());
                 // 如果检索不到,则将请求添加到网络请求队列
                 if (entry == null) {
-                    request.addMarker("cache-miss");
-                    // Cache miss; send off to the network dispatcher.
-                    mNetworkQueue.put(request);
+                    cache_miss(request);
                     continue;
                 }
 
@@ -146,13 +189,90 @@ public class CacheDispatcher extends Thread {
         }
     }
 
+    /**
+     * 以流的方式读取缓存,解析过程中实体不需要整个读入内存
+     */
+    private void dispatchFromStream(Request<?> request) throws InterruptedException {
+        long start = System.nanoTime();
+        Cache.EntryStream cached = mCache.openForRead(request.getCacheKey());
+        // 过期时还要重新完整读取一次,两次读取一起记为一次 get 的耗时
+        long openNanos = System.nanoTime() - start;
+        if (cached == null) {
+            mStats.recordGetLatency(openNanos);
+            cache_miss(request);
+            return;
+        }
+        Cache.Entry entry = cached.entry;
+        try {
+            if (!entry.refreshNeeded()) {
+                mStats.recordGetLatency(openNanos);
+                request.addMarker("cache-hit");
+                mStats.recordHit();
+                Response<?> response = request.parseNetworkResponse(
+                        new NetworkResponse(cached.stream, entry.responseHeaders));
+                mDelivery.postResponse(request, response);
+                return;
+            }
+            if (!entry.isExpired()) {
+                mStats.recordGetLatency(openNanos);
+                // 刷新时返回 304 只更新头部,不需要实体
+                cache_need_refresh(request, entry,
+                        new NetworkResponse(cached.stream, entry.responseHeaders));
+                return;
+            }
+        } finally {
+            cached.close();
+        }
+        // 已过期: 服务器返回 304 时需要缓存中的实体,重新完整读取
+        start = System.nanoTime();
+        entry = mCache.get(request.getCacheKey());
+        mStats.recordGetLatency(openNanos + System.nanoTime() - start);
+        if (entry == null) {
+            cache_miss(request);
+            return;
+        }
+        cache_expired(request, entry);
+    }
+
+    /**
+     * 缓存仍然新鲜时结束预取请求,否则交给网络分发线程. 预取不计入命中统计
+     */
+    private void dispatchPrefetch(Request<?> request) throws InterruptedException {
+        Cache.Entry entry = mCache.getMetadata(request.getCacheKey());
+        if (entry != null && !entry.refreshNeeded()) {
+            request.finish("cache-prefetch-fresh");
+            return;
+        }
+        // 需要刷新时带上 etag 等,服务器返回 304 时只更新头部
+        request.setCacheEntry(entry);
+        request.addMarker(entry == null ? "cache-prefetch-miss" : "cache-prefetch-stale");
+        mNetworkQueue.put(request);
+    }
+
+    private Cache.Entry timedGet(String key) {
+        long start = System.nanoTime();
+        Cache.Entry entry = mCache.get(key);
+        mStats.recordGetLatency(System.nanoTime() - start);
+        return entry;
+    }
+
+    /**
+     * 缓存中没有,交给网络分发线程
+     */
+    private void cache_miss(Request<?> request) throws InterruptedException {
+        request.addMarker("cache-miss");
+        mStats.recordMiss();
+        // Cache miss; send off to the network dispatcher.
+        mNetworkQueue.put(request);
+    }
+
     /**
      * 如果没有到过期时间,直接分发
      */
     private void cache_hit(Request<?> request, Cache.Entry entry) {
         request.addMarker("cache-hit");
-        Response<?> response = request.parseNetworkResponse(
-                new NetworkResponse(entry.data, entry.responseHeaders));
+        mStats.recordHit();
+        Response<?> response = request.parseNetworkResponse(toNetworkResponse(request, entry));
         mDelivery.postResponse(request, response);
     }
 
@@ -161,10 +281,15 @@ public class CacheDispatcher extends Thread {
      * 直接分发缓存,但是还需要 去网络请求刷新缓存
      */
     private void cache_need_refresh(Request<?> request, Cache.Entry entry) {
+        cache_need_refresh(request, entry, toNetworkResponse(request, entry));
+    }
+
+    private void cache_need_refresh(Request<?> request, Cache.Entry entry,
+                                    NetworkResponse cached) {
         request.addMarker("cache-hit-refresh-needed");
+        mStats.recordSoftExpiredHit();
         request.setCacheEntry(entry);
-        Response<?> response = request.parseNetworkResponse(
-                new NetworkResponse(entry.data, entry.responseHeaders));
+        Response<?> response = request.parseNetworkResponse(cached);
         // 该值为true表示 在相应分发过程中,请求不能结束
         response.intermediate = true;
         // 为了能够修改 request,有新启一个request
@@ -182,8 +307,19 @@ public class CacheDispatcher extends Thread {
         });
     }
 
+    /**
+     * 映射自缓存文件的实体,如果请求能够处理 buffer,就直接交给请求,避免复制到堆中
+     */
+    private static NetworkResponse toNetworkResponse(Request<?> request, Cache.Entry entry) {
+        if (entry.data == null && entry.buffer != null && request.acceptsByteBuffer()) {
+            return new NetworkResponse(entry.buffer.duplicate(), entry.responseHeaders);
+        }
+        return new NetworkResponse(entry.getData(), entry.responseHeaders);
+    }
+
     private void cache_expired(Request<?> request, Cache.Entry entry) throws InterruptedException {
         request.addMarker("cache-hit-expired");
+        mStats.recordExpiredHit();
         request.setCacheEntry(entry);
         mNetworkQueue.put(request);
     }
@@ -24,14 +24,13 @@ import android.os.SystemClock;
 
 import java.util.concurrent.BlockingQueue;
 
+import qian.jimmie.cn.volley.volley.cache.CacheStats;
 import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
 import qian.jimmie.cn.volley.volley.core.interfaces.Network;
 import qian.jimmie.cn.volley.volley.core.interfaces.ResponseDelivery;
 import qian.jimmie.cn.volley.volley.exception.GreeError;
-import qian.jimmie.cn.volley.volley.exception.VolleyLog;
 import qian.jimmie.cn.volley.volley.request.Request;
 import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
-import qian.jimmie.cn.volley.volley.respone.Response;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -51,25 +50,41 @@ public class NetworkDispatcher extends Thread {
      */
     private final Network mNetwork;
     /**
-     * The cache to write to.
+     * 响应的解析,缓存和分发
      */
-    private final Cache mCache;
-    /**
-     * For posting responses and errors.
-     */
-    private final ResponseDelivery mDelivery;
+    private final NetworkResponseHandler mHandler;
     /**
      * Used for telling us to die.
      */
     private volatile boolean mQuit = false;
 
+    /**
+     * true: 下载实体时同时写入缓存文件,解析成功后提交 (见 {@link Request#setTeeCache(Cache)})
+     */
+    private volatile boolean mTeeToCache = false;
+
     public NetworkDispatcher(BlockingQueue<Request<?>> queue,
                              Network network, Cache cache,
                              ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, new CacheStats());
+    }
+
+    /**
+     * @param stats 记录重新验证的结果和写入缓存的耗时
+     */
+    public NetworkDispatcher(BlockingQueue<Request<?>> queue,
+                             Network network, Cache cache,
+                             ResponseDelivery delivery, CacheStats stats) {
         mQueue = queue;
         mNetwork = network;
-        mCache = cache;
-        mDelivery = delivery;
+        mHandler = new NetworkResponseHandler(cache, delivery, stats);
+    }
+
+    /**
+     * 开启后实体一边下载一边写入缓存文件,不需要在解析后再写一遍
+     */
+    public void setTeeToCache(boolean teeToCache) {
+        mTeeToCache = teeToCache;
     }
 
     public void quit() {
@@ -123,43 +138,14 @@ public class NetworkDispatcher extends Thread {
                 /**
                  * 分发网络请求 ==> netWork (负责处理相应) ==> stack (真正处理请求的类)
                  */
+                mHandler.prepare(request, mTeeToCache);
                 NetworkResponse networkResponse = mNetwork.performRequest(request);
-
-                request.addMarker("network-http-complete");
-
-                // 如果是304,并且已经处理了,就直接结束请求
-                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                    request.finish("not-modified");
-                    continue;
-                }
-
-                // 将networkRespone转化为response
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
-
-                // 如果需要缓存
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
-                }
-
-                // Post the response back.
-                request.markDelivered();
-                mDelivery.postResponse(request, response);
+                mHandler.onResponse(request, networkResponse, startTimeMs);
             } catch (GreeError volleyError) {
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                parseAndDeliverNetworkError(request, volleyError);
+                mHandler.onError(request, volleyError, startTimeMs);
             } catch (Exception e) {
-                VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                GreeError volleyError = new GreeError(e);
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                mDelivery.postError(request, volleyError);
+                mHandler.onUnhandled(request, e, startTimeMs);
             }
         }
     }
-
-    private void parseAndDeliverNetworkError(Request<?> request, GreeError error) {
-        error = request.parseNetworkError(error);
-        mDelivery.postError(request, error);
-    }
 }
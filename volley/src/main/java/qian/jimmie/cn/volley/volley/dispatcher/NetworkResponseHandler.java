@@ -0,0 +1,224 @@
+package qian.jimmie.cn.volley.volley.dispatcher;
+
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+
+import qian.jimmie.cn.volley.volley.cache.CacheStats;
+import qian.jimmie.cn.volley.volley.cache.HttpHeaderParser;
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+import qian.jimmie.cn.volley.volley.core.interfaces.ResponseDelivery;
+import qian.jimmie.cn.volley.volley.exception.GreeError;
+import qian.jimmie.cn.volley.volley.exception.VolleyLog;
+import qian.jimmie.cn.volley.volley.request.Request;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+import qian.jimmie.cn.volley.volley.respone.Response;
+
+/**
+ * 网络响应的处理: 304 更新缓存,解析,写入缓存,分发结果和错误.
+ * 由 {@link NetworkDispatcher} 在分发线程上调用,由 {@link AsyncNetworkDispatcher} 在解析线程池中调用,
+ * 可以同时在多个线程上使用
+ */
+class NetworkResponseHandler {
+    /**
+     * The cache to write to.
+     */
+    private final Cache mCache;
+    /**
+     * For posting responses and errors.
+     */
+    private final ResponseDelivery mDelivery;
+    /**
+     * 重新验证的结果和写入缓存的耗时
+     */
+    private final CacheStats mStats;
+
+    NetworkResponseHandler(Cache cache, ResponseDelivery delivery, CacheStats stats) {
+        mCache = cache;
+        mDelivery = delivery;
+        mStats = stats;
+    }
+
+    /**
+     * 发出请求前调用,设置下载时同时写入的缓存
+     */
+    void prepare(Request<?> request, boolean teeToCache) {
+        // 以流的方式解析的实体不会留在内存中,只能在读取时写入缓存
+        request.setTeeCache((teeToCache || request.acceptsStream()) && request.shouldCache()
+                ? mCache : null);
+    }
+
+    /**
+     * 处理网络返回的响应
+     *
+     * @param startTimeMs 从队列中取出请求的时间
+     */
+    void onResponse(Request<?> request, NetworkResponse networkResponse, long startTimeMs) {
+        try {
+            request.addMarker("network-http-complete");
+
+            // 带着缓存的条目发出的请求 (需要刷新或已经过期)
+            if (request.getCacheEntry() != null) {
+                mStats.recordRevalidation(networkResponse.notModified);
+            }
+
+            // 如果是304,并且已经处理了 (或者是预取),只刷新缓存的过期时间,然后结束请求
+            if (networkResponse.notModified
+                    && (request.hasHadResponseDelivered() || request.isPrefetch())) {
+                if (request.shouldCache()) {
+                    Cache.Entry metadata = HttpHeaderParser.parseCacheHeaders(networkResponse);
+                    if (metadata != null) {
+                        long start = System.nanoTime();
+                        mCache.updateMetadata(request.getCacheKey(), metadata);
+                        mStats.recordPutLatency(System.nanoTime() - start);
+                        request.addMarker("network-cache-metadata-updated");
+                    }
+                }
+                request.finish("not-modified");
+                return;
+            }
+
+            // 预取只写入缓存,不解析也不分发
+            if (request.isPrefetch()) {
+                cachePrefetched(request, networkResponse);
+                request.finish("prefetch-complete");
+                return;
+            }
+
+            // 将networkRespone转化为response
+            Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.addMarker("network-parse-complete");
+            // 先关闭流: 没有读完时放弃写入缓存
+            closeStream(networkResponse);
+
+            // 解析过程中被取消
+            if (request.isCanceled()) {
+                request.finish("network-discard-cancelled");
+                return;
+            }
+
+            // 如果需要缓存
+            if (request.shouldCache() && response.cacheEntry != null) {
+                long start = System.nanoTime();
+                if (networkResponse.notModified) {
+                    // 实体没有变化,只更新头部
+                    mCache.updateMetadata(request.getCacheKey(), response.cacheEntry);
+                    request.addMarker("network-cache-metadata-updated");
+                } else if (commitCacheWriter(request, networkResponse, response.cacheEntry)) {
+                    request.addMarker("network-cache-teed");
+                } else if (response.cacheEntry.data != null) {
+                    mCache.put(request.getCacheKey(), response.cacheEntry);
+                    request.addMarker("network-cache-written");
+                } else {
+                    // 流没有读完或者写入失败,实体不在内存中
+                    request.addMarker("network-cache-skipped");
+                }
+                mStats.recordPutLatency(System.nanoTime() - start);
+            }
+
+            // Post the response back.
+            request.markDelivered();
+            mDelivery.postResponse(request, response);
+        } catch (Exception e) {
+            onUnhandled(request, e, startTimeMs);
+        } finally {
+            closeStream(networkResponse);
+            // 没有提交的缓存写入 (不需要缓存,解析失败等) 在这里放弃
+            if (networkResponse.cacheWriter != null) {
+                networkResponse.cacheWriter.abort();
+                networkResponse.cacheWriter = null;
+            }
+        }
+    }
+
+    /**
+     * 网络请求失败 (重试后)
+     */
+    void onError(Request<?> request, GreeError volleyError, long startTimeMs) {
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        parseAndDeliverNetworkError(request, volleyError);
+    }
+
+    /**
+     * 处理过程中出现的其他异常
+     */
+    void onUnhandled(Request<?> request, Exception e, long startTimeMs) {
+        VolleyLog.e(e, "Unhandled exception %s", e.toString());
+        GreeError volleyError = new GreeError(e);
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        mDelivery.postError(request, volleyError);
+    }
+
+    /**
+     * 按响应头计算缓存的条目,和各个请求解析时 ({@link HttpHeaderParser#parseCacheHeaders(NetworkResponse)}) 一样
+     */
+    private void cachePrefetched(Request<?> request, NetworkResponse networkResponse) throws IOException {
+        Cache.Entry entry = HttpHeaderParser.parseCacheHeaders(networkResponse);
+        if (entry == null) {
+            request.addMarker("prefetch-not-cacheable");
+            return;
+        }
+        if (networkResponse.stream != null) {
+            // 读完实体,读取时写入缓存
+            byte[] buffer = new byte[4096];
+            while (networkResponse.stream.read(buffer) != -1) {
+                // 丢弃
+            }
+            closeStream(networkResponse);
+        }
+        long start = System.nanoTime();
+        if (commitCacheWriter(request, networkResponse, entry)) {
+            request.addMarker("network-cache-teed");
+        } else if (entry.data == null) {
+            request.addMarker("network-cache-skipped");
+        } else {
+            mCache.put(request.getCacheKey(), entry);
+            request.addMarker("network-cache-written");
+        }
+        mStats.recordPutLatency(System.nanoTime() - start);
+    }
+
+    /**
+     * 提交下载时已经写入缓存文件的实体. 解析后缓存的实体不是下载的原始数据时不能提交
+     *
+     * @return 提交失败或者不能提交时返回 false,由调用者通过 {@link Cache#put(String, Cache.Entry)} 写入
+     */
+    private static boolean commitCacheWriter(Request<?> request, NetworkResponse networkResponse,
+                                             Cache.Entry entry) {
+        Cache.EntryWriter writer = networkResponse.cacheWriter;
+        if (writer == null || entry.data != networkResponse.data) {
+            return false;
+        }
+        networkResponse.cacheWriter = null;
+        try {
+            writer.setMetadata(entry);
+            writer.commit();
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("cache tee commit failed for %s: %s", request.getCacheKey(), e.toString());
+            writer.abort();
+            return false;
+        }
+    }
+
+    /**
+     * 关闭以流的方式返回的实体,可以重复调用
+     */
+    private static void closeStream(NetworkResponse networkResponse) {
+        if (networkResponse.stream == null) {
+            return;
+        }
+        try {
+            networkResponse.stream.close();
+        } catch (IOException e) {
+            VolleyLog.d("close response stream failed: %s", e.toString());
+        }
+        networkResponse.stream = null;
+    }
+
+    private void parseAndDeliverNetworkError(Request<?> request, GreeError error) {
+        error = request.parseNetworkError(error);
+        mDelivery.postError(request, error);
+    }
+}
@@ -0,0 +1,167 @@
+package qian.jimmie.cn.volley.volley.network;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.AsyncHttpStack;
+import qian.jimmie.cn.volley.volley.core.interfaces.AsyncNetwork;
+import qian.jimmie.cn.volley.volley.exception.AuthFailureError;
+import qian.jimmie.cn.volley.volley.exception.GreeError;
+import qian.jimmie.cn.volley.volley.request.Request;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+
+/**
+ * 基于 {@link AsyncHttpStack} 的 {@link AsyncNetwork},缓存验证和重试与 {@link BasicNetwork} 相同.
+ * <p>
+ * 2xx 的响应直接在 stack 的 IO 线程上通知. 其他响应 (304 需要读取缓存的实体) 和错误交给回调线程处理,
+ * 重试时在回调线程上重新获取头部和实体并发出请求,不占用 IO 线程
+ */
+public class BasicAsyncNetwork implements AsyncNetwork {
+
+    /**
+     * 默认的回调线程数,空闲一段时间后线程退出
+     */
+    private static final int DEFAULT_CALLBACK_THREADS = 2;
+    private static final long CALLBACK_KEEP_ALIVE_SECONDS = 30;
+
+    private final AsyncHttpStack mHttpStack;
+
+    /**
+     * 检查非 2xx 的响应和重试
+     */
+    private final Executor mCallbackExecutor;
+
+    /**
+     * 每次 {@link #shutdown()} 加一,之前发出的请求失败后不再重试
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    public BasicAsyncNetwork(AsyncHttpStack httpStack) {
+        this(httpStack, newCallbackExecutor());
+    }
+
+    /**
+     * @param callbackExecutor 检查响应和重试的线程,不能是 stack 的 IO 线程
+     */
+    public BasicAsyncNetwork(AsyncHttpStack httpStack, Executor callbackExecutor) {
+        mHttpStack = httpStack;
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    @Override
+    public void performRequest(Request<?> request, OnRequestComplete callback) {
+        attempt(request, callback, SystemClock.elapsedRealtime(), mGeneration.get());
+    }
+
+    /**
+     * 关闭 stack,之后仍然可以发出新的请求
+     */
+    @Override
+    public void shutdown() {
+        mGeneration.incrementAndGet();
+        mHttpStack.shutdown();
+    }
+
+    private void attempt(final Request<?> request, final OnRequestComplete callback,
+                         final long requestStart, final int generation) {
+        Map<String, String> headers = new HashMap<String, String>();
+        BasicNetwork.addCacheHeaders(headers, request.getCacheEntry());
+        try {
+            mHttpStack.performRequest(request, headers, new AsyncHttpStack.OnRequestComplete() {
+                @Override
+                public void onSuccess(final NetworkResponse response) {
+                    if (response.statusCode >= 200 && response.statusCode <= 299) {
+                        onResponse(request, response, callback, requestStart, generation);
+                        return;
+                    }
+                    handOff(callback, new Runnable() {
+                        @Override
+                        public void run() {
+                            onResponse(request, response, callback, requestStart, generation);
+                        }
+                    });
+                }
+
+                @Override
+                public void onError(final IOException e) {
+                    handOff(callback, new Runnable() {
+                        @Override
+                        public void run() {
+                            retry(request, null, e, callback, requestStart, generation);
+                        }
+                    });
+                }
+            });
+        } catch (AuthFailureError e) {
+            callback.onError(e);
+        }
+    }
+
+    private void onResponse(Request<?> request, NetworkResponse response, OnRequestComplete callback,
+                            long requestStart, int generation) {
+        NetworkResponse checked;
+        try {
+            checked = BasicNetwork.checkResponse(request, response, requestStart);
+        } catch (IOException e) {
+            retry(request, response, e, callback, requestStart, generation);
+            return;
+        }
+        callback.onSuccess(checked);
+    }
+
+    /**
+     * 按重试策略重新发出请求,不能重试时通知错误. 在回调线程上调用
+     */
+    private void retry(Request<?> request, NetworkResponse response, IOException e,
+                       OnRequestComplete callback, long requestStart, int generation) {
+        if (request.isCanceled() || generation != mGeneration.get()) {
+            callback.onError(new GreeError(e));
+            return;
+        }
+        try {
+            BasicNetwork.retryOrThrow(request, response, e, requestStart);
+        } catch (GreeError error) {
+            callback.onError(error);
+            return;
+        } catch (RuntimeException re) {
+            callback.onError(new GreeError(re));
+            return;
+        }
+        attempt(request, callback, requestStart, generation);
+    }
+
+    private void handOff(OnRequestComplete callback, Runnable task) {
+        try {
+            mCallbackExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            callback.onError(new GreeError(e));
+        }
+    }
+
+    private static Executor newCallbackExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(DEFAULT_CALLBACK_THREADS,
+                DEFAULT_CALLBACK_THREADS, CALLBACK_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bees-async-retry-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -21,8 +21,6 @@ import android.os.SystemClock;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
-import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -74,7 +72,6 @@ public class BasicNetwork implements Network {
         NetworkResponse httpResponse = null;
         while (true) {
             httpResponse = null;
-            Map<String, String> responseHeaders = Collections.emptyMap();
             try {
                 Map<String, String> headers = new HashMap<String, String>();
                 // 获取的添加cache头部
@@ -83,84 +80,112 @@ public class BasicNetwork implements Network {
                 // 将请求和cache头部交给stack处理,返回响应
                 httpResponse = mHttpStack.performRequest(request, headers);
 
-                if (httpResponse == null) throw new IOException("get none response");
-
-                int statusCode = httpResponse.statusCode;
-
-                // 处理缓存验证(304 内容未修改)
-                if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
-                    httpResponse.notModified = true;
-                    httpResponse.networkTimeMs = SystemClock.elapsedRealtime() - requestStart;
-                    // 如果是304 通过cache分发,使用request.setCahceEntry.
-                    Cache.Entry entry = request.getCacheEntry();
-                    if (entry == null) {
-                        return httpResponse;
-                    }
-
-                    // 将头部信息传入cache中
-                    entry.responseHeaders.putAll(responseHeaders);
-                    httpResponse.data = entry.data;
-                    httpResponse.headers = entry.responseHeaders;
-                    // 从cache中得到的数据信息
-                    return httpResponse;
-                }
-
-//                // 处理重定向 301 | 302 / 无需处理重定向 交给 httpURLconnection处理
-//                if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY) {
-//                    // 从 Location 字段 获取新的URL
-//                    String newUrl = responseHeaders.get("Location");
-//                    // 设置重定向地址
-//                    request.setRedirectUrl(newUrl);
-//                }
-
-                httpResponse.data = httpResponse.data == null ? new byte[1] : httpResponse.data;
-
-                // 打log
-                long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
-                logSlowRequests(requestLifetime, request, httpResponse.data, statusCode);
-
-                // 如果是非 2XX, 302,301,304 的状态码,则抛出io异常
-                if (statusCode < 200 || statusCode > 299) {
-                    throw new IOException();
-                }
+                return checkResponse(request, httpResponse, requestStart);
+            } catch (IOException e) {
+                // 可以重试时继续循环,否则抛出异常
+                retryOrThrow(request, httpResponse, e, requestStart);
+            }
+        }
+    }
 
+    /**
+     * 处理 stack 返回的响应: 304 时合并缓存中的实体和头部,非 2xx 时抛出 IOException
+     * (由 {@link #retryOrThrow(Request, NetworkResponse, IOException, long)} 处理).
+     * 同步和异步 ({@link BasicAsyncNetwork}) 的请求共用
+     */
+    static NetworkResponse checkResponse(Request<?> request, NetworkResponse httpResponse,
+                                         long requestStart) throws IOException {
+        if (httpResponse == null) throw new IOException("get none response");
+
+        int statusCode = httpResponse.statusCode;
+
+        // 处理缓存验证(304 内容未修改)
+        if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+            httpResponse.notModified = true;
+            httpResponse.networkTimeMs = SystemClock.elapsedRealtime() - requestStart;
+            // 如果是304 通过cache分发,使用request.setCahceEntry.
+            Cache.Entry entry = request.getCacheEntry();
+            if (entry == null) {
                 return httpResponse;
-                /**
-                 * 异常处理
-                 */
-            } catch (SocketTimeoutException e) {
-                // 通信超时 . 尝试重试
-                attemptRetryOnException("socket", request, new TimeoutError());
-            } catch (MalformedURLException e) {
-                throw new RuntimeException("Bad URL " + request.getUrl(), e);
-            } catch (IOException e) {
-                if (httpResponse == null) {
-                    attemptRetryOnException("connection failed", request, new NoConnectionError());
-                    continue;
-                }
-                if (httpResponse.hasError) {
-                    attemptRetryOnException("get err data ...", request, new NoConnectionError());
-                    continue;
-                }
-                int statusCode = httpResponse.statusCode;
-                VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
-                // 如果实体不是空
-                httpResponse.networkTimeMs = SystemClock.elapsedRealtime() - requestStart;
-                // 401 402 权限问题,尝试重试
-                if (statusCode >= 400 || statusCode <= 499) {
-                    attemptRetryOnException("auth",
-                            request, new AuthFailureError(httpResponse));
-                    continue;
-                } else if (statusCode >= 500) {
-                    // 5xx 服务端问题
-                    throw new ServerError(httpResponse);
-                }
-                attemptRetryOnException("got unCatchException ...", request, new NetworkError());
             }
+
+            // 304 的响应头(新的 Date,Cache-Control 等)覆盖缓存中的响应头,
+            // 否则根据旧的响应头计算出的过期时间不会更新
+            Map<String, String> combinedHeaders = new HashMap<String, String>(entry.responseHeaders);
+            if (httpResponse.headers != null) {
+                combinedHeaders.putAll(httpResponse.headers);
+            }
+            httpResponse.data = entry.getData();
+            httpResponse.headers = combinedHeaders;
+            // 从cache中得到的数据信息
+            return httpResponse;
+        }
+
+//        // 处理重定向 301 | 302 / 无需处理重定向 交给 httpURLconnection处理
+//        if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY || statusCode == HttpStatus.SC_MOVED_TEMPORARILY) {
+//            // 从 Location 字段 获取新的URL
+//            String newUrl = responseHeaders.get("Location");
+//            // 设置重定向地址
+//            request.setRedirectUrl(newUrl);
+//        }
+
+        // 以流的方式返回的实体由请求解析时读取
+        if (httpResponse.stream == null) {
+            httpResponse.data = httpResponse.data == null ? new byte[1] : httpResponse.data;
+        }
+
+        // 打log
+        long requestLifetime = SystemClock.elapsedRealtime() - requestStart;
+        logSlowRequests(requestLifetime, request, httpResponse.data, statusCode);
+
+        // 如果是非 2XX, 302,301,304 的状态码,则抛出io异常
+        if (statusCode < 200 || statusCode > 299) {
+            throw new IOException();
+        }
+
+        return httpResponse;
+    }
+
+    /**
+     * 异常处理: 可以重试时按重试策略调整超时后返回,否则抛出对应的 {@link GreeError}
+     *
+     * @param httpResponse 已经收到的响应,连接失败时为 null
+     */
+    static void retryOrThrow(Request<?> request, NetworkResponse httpResponse, IOException e,
+                             long requestStart) throws GreeError {
+        if (e instanceof SocketTimeoutException) {
+            // 通信超时 . 尝试重试
+            attemptRetryOnException("socket", request, new TimeoutError());
+            return;
+        }
+        if (e instanceof MalformedURLException) {
+            throw new RuntimeException("Bad URL " + request.getUrl(), e);
+        }
+        if (httpResponse == null) {
+            attemptRetryOnException("connection failed", request, new NoConnectionError());
+            return;
+        }
+        if (httpResponse.hasError) {
+            attemptRetryOnException("get err data ...", request, new NoConnectionError());
+            return;
+        }
+        int statusCode = httpResponse.statusCode;
+        VolleyLog.e("Unexpected response code %d for %s", statusCode, request.getUrl());
+        // 如果实体不是空
+        httpResponse.networkTimeMs = SystemClock.elapsedRealtime() - requestStart;
+        // 401 402 权限问题,尝试重试
+        if (statusCode >= 400 || statusCode <= 499) {
+            attemptRetryOnException("auth",
+                    request, new AuthFailureError(httpResponse));
+            return;
+        } else if (statusCode >= 500) {
+            // 5xx 服务端问题
+            throw new ServerError(httpResponse);
         }
+        attemptRetryOnException("got unCatchException ...", request, new NetworkError());
     }
 
-    private void logSlowRequests(long requestLifetime, Request<?> request,
+    private static void logSlowRequests(long requestLifetime, Request<?> request,
                                  byte[] responseContents, int code) {
         if (DEBUG || requestLifetime > SLOW_REQUEST_THRESHOLD_MS) {
             VolleyLog.d("HTTP response for request=<%s> [lifetime=%d], [size=%s], " +
@@ -196,7 +221,7 @@ public class BasicNetwork implements Network {
      * @param headers .
      * @param entry   .
      */
-    private void addCacheHeaders(Map<String, String> headers, Cache.Entry entry) {
+    static void addCacheHeaders(Map<String, String> headers, Cache.Entry entry) {
         // 找不到缓存实体,则返回
         if (entry == null) {
             return;
@@ -208,8 +233,7 @@ public class BasicNetwork implements Network {
 
         // 记录的最后一次修改时间
         if (entry.lastModified > 0) {
-            Date refTime = new Date(entry.lastModified);
-            headers.put("If-Modified-Since", DateUtils.formatDate(refTime));
+            headers.put("If-Modified-Since", DateUtils.formatHttpDate(entry.lastModified));
         }
     }
 
@@ -0,0 +1,80 @@
+package qian.jimmie.cn.volley.volley.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 统计新建连接数的 {@link SSLSocketFactory}: 每次创建 socket 对应一次 TCP 连接和 TLS 握手,
+ * 复用连接池中的连接时不会调用. 传给 {@link HurlStack#HurlStack(SSLSocketFactory)} 后,
+ * 连接的复用率为 1 - getConnectionCount() / {@link HurlStack#getRequestCount()}
+ */
+public class CountingSSLSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory mDelegate;
+
+    private final AtomicLong mConnectionCount = new AtomicLong();
+
+    public CountingSSLSocketFactory(SSLSocketFactory delegate) {
+        if (delegate == null) {
+            throw new IllegalArgumentException("delegate == null");
+        }
+        mDelegate = delegate;
+    }
+
+    /**
+     * 已经创建的连接数 (即 TLS 握手次数)
+     */
+    public long getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return mDelegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return mDelegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        mConnectionCount.incrementAndGet();
+        return mDelegate.createSocket(s, host, port, autoClose);
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        mConnectionCount.incrementAndGet();
+        return mDelegate.createSocket();
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        mConnectionCount.incrementAndGet();
+        return mDelegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        mConnectionCount.incrementAndGet();
+        return mDelegate.createSocket(host, port, localHost, localPort);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        mConnectionCount.incrementAndGet();
+        return mDelegate.createSocket(host, port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        mConnectionCount.incrementAndGet();
+        return mDelegate.createSocket(address, port, localAddress, localPort);
+    }
+}
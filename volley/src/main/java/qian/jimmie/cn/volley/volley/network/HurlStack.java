@@ -27,18 +27,22 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
 
 import qian.jimmie.cn.volley.volley.Bees;
+import qian.jimmie.cn.volley.volley.cache.HttpHeaderParser;
 import qian.jimmie.cn.volley.volley.constance.HttpStatus;
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
 import qian.jimmie.cn.volley.volley.core.interfaces.HttpStack;
 import qian.jimmie.cn.volley.volley.effict.ByteArrayPool;
 import qian.jimmie.cn.volley.volley.effict.PoolingByteArrayOutputStream;
 import qian.jimmie.cn.volley.volley.exception.AuthFailureError;
 import qian.jimmie.cn.volley.volley.exception.NetworkError;
 import qian.jimmie.cn.volley.volley.exception.ServerError;
+import qian.jimmie.cn.volley.volley.exception.VolleyLog;
 import qian.jimmie.cn.volley.volley.request.Request;
 import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
 
@@ -55,6 +59,11 @@ public class HurlStack implements HttpStack {
      */
     private static int DEFAULT_POOL_SIZE = 4096;
 
+    /**
+     * 同时写入缓存时的读取缓冲区大小,每次写入缓存文件 (以及计算 CRC) 的数据不要太少
+     */
+    private static final int TEE_BUFFER_BYTES = 16 * 1024;
+
     /**
      * ssl连接工厂
      */
@@ -65,6 +74,10 @@ public class HurlStack implements HttpStack {
      */
     protected final ByteArrayPool mPool;
 
+    /**
+     * 发出的请求数,和 {@link CountingSSLSocketFactory#getConnectionCount()} 一起可以算出连接的复用率
+     */
+    private final AtomicLong mRequestCount = new AtomicLong();
 
     public HurlStack() {
         this(null);
@@ -84,6 +97,10 @@ public class HurlStack implements HttpStack {
     public NetworkResponse performRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, ServerError, NetworkError, AuthFailureError {
         NetworkResponse response = null;
         HttpURLConnection connection = null;
+        Cache.EntryWriter cacheWriter = null;
+        // 响应读完并关闭后连接回到 HttpURLConnection 的连接池,否则断开.
+        // 以流的方式交给请求解析时由 ResponseStream 在关闭时决定
+        boolean reusable = false;
         long requestStart = SystemClock.elapsedRealtime();
         try {
 
@@ -108,23 +125,18 @@ public class HurlStack implements HttpStack {
             // 设置请求方式
             setConnectionParametersForRequest(connection, request);
 
+            mRequestCount.incrementAndGet();
             // 建立连接
             InputStream in = connection.getInputStream();
             int contentLength = connection.getContentLength();
-            byte[] body = streamToBytes(in, mPool, contentLength);
 
-            // getResponseCode 中调用了 getInputStream 说明请求已经完成
+            // getInputStream 返回后响应码和头部已经收到
             int responseCode = connection.getResponseCode();
 
             // 无法检索到返回码
             if (responseCode == -1) {
                 throw new IOException("Could not retrieve response code from HttpUrlConnection.");
             }
-            // 获取实体信息
-            if (!hasResponseBody(request.getMethod(), responseCode)) {
-                // 请求以收到应答(获取应答实体) 耗时较长...
-                body = new byte[0];
-            }
             Map<String, String> responeHeaders = new HashMap<>();
             // 获取头部信息
             for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
@@ -134,21 +146,61 @@ public class HurlStack implements HttpStack {
                     responeHeaders.put(header.getKey(), s);
                 }
             }
+
+            // 能够处理流的请求在分发线程上边读边解析,实体不读入内存
+            if (request.acceptsStream() && hasResponseBody(request.getMethod(), responseCode)
+                    && responseCode < HttpStatus.SC_MULTIPLE_CHOICES) {
+                cacheWriter = openCacheWriter(request, responseCode, responeHeaders);
+                InputStream stream = new ResponseStream(request, connection, in, cacheWriter);
+                response = new NetworkResponse(responseCode, stream, responeHeaders,
+                        SystemClock.elapsedRealtime() - requestStart);
+                response.cacheWriter = cacheWriter;
+                cacheWriter = null;
+                reusable = true;
+                return response;
+            }
+
+            // 获取实体信息
+            byte[] body;
+            if (hasResponseBody(request.getMethod(), responseCode)) {
+                // 需要时一边读取一边写入缓存文件
+                cacheWriter = openCacheWriter(request, responseCode, responeHeaders);
+                body = streamToBytes(in, mPool, contentLength, cacheWriter);
+            } else {
+                // 请求以收到应答(获取应答实体) 耗时较长...
+                streamToBytes(in, mPool, contentLength, null);
+                body = new byte[0];
+            }
             response = new NetworkResponse(responseCode, body, responeHeaders,
                     false, SystemClock.elapsedRealtime() - requestStart, false);
+            response.cacheWriter = cacheWriter;
+            cacheWriter = null;
+            reusable = true;
         } catch (IOException ioe) {
+            if (cacheWriter != null) {
+                cacheWriter.abort();
+            }
             if (connection == null) throw new IOException();
-            byte[] errorBody = streamToBytes(connection.getErrorStream(), mPool, connection.getContentLength());
+            byte[] errorBody = streamToBytes(connection.getErrorStream(), mPool, connection.getContentLength(), null);
             if (errorBody == null) throw new IOException();
             response = new NetworkResponse(errorBody, true);
+            reusable = true;
             return response;
         } finally {
-            if (connection != null)
+            // disconnect 会关闭底层的 socket,下一个请求需要重新建立 TCP 连接和 TLS 握手
+            if (connection != null && !reusable)
                 connection.disconnect();
         }
         return response;
     }
 
+    /**
+     * 已经发出的请求数
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
     /**
      * 判断响应是否包含实体信息
      * 不是head请求
@@ -252,24 +304,64 @@ public class HurlStack implements HttpStack {
         }
     }
 
+    /**
+     * 下载时同时写入缓存: 请求设置了 {@link Request#setTeeCache(Cache)},响应为 200,并且响应头允许缓存.
+     * 元数据先按响应头计算,解析后由网络分发线程替换
+     */
+    private static Cache.EntryWriter openCacheWriter(Request<?> request, int responseCode,
+                                                     Map<String, String> headers) {
+        Cache cache = request.getTeeCache();
+        if (cache == null || responseCode != HttpStatus.SC_OK) {
+            return null;
+        }
+        Cache.Entry metadata = HttpHeaderParser.parseCacheHeaders(
+                new NetworkResponse((byte[]) null, headers));
+        if (metadata == null) {
+            return null;
+        }
+        return cache.openForWrite(request.getCacheKey(), metadata);
+    }
+
     /**
      * 将实体InputStream转化为byte[]
      * Reads the contents of HttpEntity into a byte[].
+     *
+     * 读到末尾后关闭输入流,连接才能被复用
+     *
+     * @param tee 不为 null 时读到的数据同时写入缓存,写入失败时放弃写入缓存,不影响读取
      */
-    private static byte[] streamToBytes(InputStream in, ByteArrayPool pool, int size) throws IOException {
+    private static byte[] streamToBytes(InputStream in, ByteArrayPool pool, int size,
+                                        Cache.EntryWriter tee) throws IOException {
         PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(pool, size);
         byte[] buffer = null;
         try {
             if (in == null) {
                 throw new IOException();
             }
-            buffer = pool.getBuf(1024);
+            buffer = pool.getBuf(tee == null ? 1024 : TEE_BUFFER_BYTES);
             int count;
             while ((count = in.read(buffer)) != -1) {
                 bytes.write(buffer, 0, count);
+                if (tee != null) {
+                    try {
+                        tee.write(buffer, 0, count);
+                    } catch (IOException e) {
+                        VolleyLog.d("cache tee failed: %s", e.toString());
+                        tee.abort();
+                        tee = null;
+                    }
+                }
             }
             return bytes.toByteArray();
         } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (IOException e) {
+                // 数据已经读完,关闭失败不影响结果
+                VolleyLog.v("Error occured when closing the response stream");
+            }
             pool.returnBuf(buffer);
             bytes.close();
         }
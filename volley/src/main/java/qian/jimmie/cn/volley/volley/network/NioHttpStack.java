@@ -0,0 +1,920 @@
+package qian.jimmie.cn.volley.volley.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import qian.jimmie.cn.volley.volley.Bees;
+import qian.jimmie.cn.volley.volley.constance.HttpStatus;
+import qian.jimmie.cn.volley.volley.core.interfaces.AsyncHttpStack;
+import qian.jimmie.cn.volley.volley.effict.ByteArrayPool;
+import qian.jimmie.cn.volley.volley.effict.PoolingByteArrayOutputStream;
+import qian.jimmie.cn.volley.volley.exception.AuthFailureError;
+import qian.jimmie.cn.volley.volley.exception.VolleyLog;
+import qian.jimmie.cn.volley.volley.request.Request;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+
+/**
+ * 基于 {@link SocketChannel} 和 {@link Selector} 的 HTTP/1.1 客户端: 一个 IO 线程处理所有连接的读写,
+ * 等待响应的请求不占用线程.
+ * <p>
+ * 支持 GET,POST,HEAD; 响应实体支持 Content-Length,chunked 和读到连接关闭.
+ * 连接按 host:port 复用 (keep-alive),复用的连接在收到响应之前被服务器关闭时用新的连接重发一次.
+ * 超时为 {@link Request#getTimeoutMs()} 内没有任何读写进展,请求取消后连接被关闭.
+ * <p>
+ * 只支持 http,https 请求以 IOException 失败. 域名在解析线程中解析,不占用 IO 线程和发出请求的线程.
+ * 不支持以流的方式返回实体 ({@link Request#acceptsStream()}),实体总是整个读入内存
+ */
+public class NioHttpStack implements AsyncHttpStack {
+
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+
+    private static final int DEFAULT_POOL_SIZE = 4096;
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * 状态行和头部每行的最大长度
+     */
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    /**
+     * 每个 host:port 保留的空闲连接数
+     */
+    private static final int MAX_IDLE_PER_ROUTE = 5;
+
+    /**
+     * 空闲连接保留的时间
+     */
+    private static final long KEEP_ALIVE_MS = 30 * 1000;
+
+    /**
+     * 检查取消和超时的间隔
+     */
+    private static final long SWEEP_INTERVAL_MS = 100;
+
+    private static final String CHARSET = "ISO-8859-1";
+
+    /**
+     * 解析域名的线程数,空闲一段时间后线程退出
+     */
+    private static final int RESOLVER_THREADS = 2;
+    private static final long RESOLVER_KEEP_ALIVE_SECONDS = 30;
+
+    private final ByteArrayPool mPool;
+
+    /**
+     * 解析域名,{@link InetAddress#getByName(String)} 会阻塞
+     */
+    private final ExecutorService mResolver;
+
+    /**
+     * 其他线程提交的请求,由 IO 线程取出
+     */
+    private final ConcurrentLinkedQueue<Call> mSubmitted = new ConcurrentLinkedQueue<Call>();
+
+    /**
+     * 以下只在 IO 线程上访问
+     */
+    private final List<Call> mActive = new ArrayList<Call>();
+    private final Map<String, ArrayDeque<Connection>> mIdle = new HashMap<String, ArrayDeque<Connection>>();
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    private long mLastSweep;
+
+    /**
+     * 以下在 this 上同步. 每次 {@link #shutdown()} 加一,解析域名期间被关闭的请求不再发出
+     */
+    private Selector mSelector;
+    private Thread mThread;
+    private int mGeneration;
+    private volatile boolean mShutdown = false;
+
+    public NioHttpStack() {
+        this(new ByteArrayPool(DEFAULT_POOL_SIZE));
+    }
+
+    public NioHttpStack(ByteArrayPool pool) {
+        mPool = pool;
+        ThreadPoolExecutor resolver = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS,
+                RESOLVER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "bees-dns-" + mCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        resolver.allowCoreThreadTimeOut(true);
+        mResolver = resolver;
+    }
+
+    @Override
+    public void performRequest(final Request<?> request, Map<String, String> additionalHeaders,
+                               final OnRequestComplete callback) throws AuthFailureError {
+        URL url;
+        try {
+            url = new URL(request.getUrl());
+        } catch (MalformedURLException e) {
+            callback.onError(e);
+            return;
+        }
+        if (!"http".equals(url.getProtocol())) {
+            callback.onError(new IOException("NioHttpStack supports http only: " + url));
+            return;
+        }
+        final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        final String host = url.getHost();
+        final ByteBuffer encoded = encodeRequest(request, url, additionalHeaders);
+        final int generation;
+        synchronized (this) {
+            generation = mGeneration;
+        }
+        mResolver.execute(new Runnable() {
+            @Override
+            public void run() {
+                InetSocketAddress address;
+                try {
+                    address = new InetSocketAddress(InetAddress.getByName(host), port);
+                } catch (UnknownHostException e) {
+                    callback.onError(e);
+                    return;
+                } catch (RuntimeException e) {
+                    callback.onError(new IOException(e));
+                    return;
+                }
+                submit(new Call(request, host + ":" + port, address, encoded, callback), generation);
+            }
+        });
+    }
+
+    /**
+     * 停止 IO 线程,关闭所有连接,没有完成的请求 (包括正在解析域名的) 以 IOException 失败.
+     * 等待 IO 线程退出,不能在 IO 线程上调用. 之后发出请求时重新启动 IO 线程
+     */
+    @Override
+    public synchronized void shutdown() {
+        mGeneration++;
+        if (mThread == null) {
+            return;
+        }
+        mShutdown = true;
+        mSelector.wakeup();
+        joinLocked();
+    }
+
+    /**
+     * 交给 IO 线程. 在 this 上同步,IO 线程不会在加入队列之后,取出之前退出
+     */
+    private void submit(Call call, int generation) {
+        IOException error;
+        synchronized (this) {
+            if (generation == mGeneration) {
+                try {
+                    startLocked();
+                    mSubmitted.add(call);
+                    mSelector.wakeup();
+                    return;
+                } catch (IOException e) {
+                    error = e;
+                }
+            } else {
+                error = new IOException("NioHttpStack is shut down");
+            }
+        }
+        notifyError(call, error);
+    }
+
+    /**
+     * 需要时启动 IO 线程. 需要在 this 上同步
+     */
+    private void startLocked() throws IOException {
+        if (mThread != null) {
+            if (!mShutdown) {
+                return;
+            }
+            // selector 出错,IO 线程正在退出
+            joinLocked();
+        }
+        final Selector selector = Selector.open();
+        mSelector = selector;
+        mShutdown = false;
+        mThread = new Thread("bees-nio") {
+            @Override
+            public void run() {
+                loop(selector);
+            }
+        };
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * 等待 IO 线程退出. 需要在 this 上同步
+     */
+    private void joinLocked() {
+        boolean interrupted = false;
+        while (mThread.isAlive() && mThread != Thread.currentThread()) {
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    private void loop(Selector selector) {
+        try {
+            while (!mShutdown) {
+                selector.select(SWEEP_INTERVAL_MS);
+                Call call;
+                while ((call = mSubmitted.poll()) != null) {
+                    connect(call, false);
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                long now = now();
+                if (now - mLastSweep >= SWEEP_INTERVAL_MS) {
+                    mLastSweep = now;
+                    sweep(now);
+                }
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "NioHttpStack selector failed");
+        } finally {
+            mShutdown = true;
+            for (Call call : new ArrayList<Call>(mActive)) {
+                fail(call, new IOException("NioHttpStack is shut down"));
+            }
+            for (ArrayDeque<Connection> idle : mIdle.values()) {
+                for (Connection connection : idle) {
+                    closeQuietly(connection);
+                }
+            }
+            mIdle.clear();
+            failSubmitted();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                VolleyLog.d("close selector failed: %s", e.toString());
+            }
+        }
+    }
+
+    private void failSubmitted() {
+        Call call;
+        while ((call = mSubmitted.poll()) != null) {
+            notifyError(call, new IOException("NioHttpStack is shut down"));
+        }
+    }
+
+    /**
+     * 为请求取一个空闲的连接,没有时新建连接
+     *
+     * @param fresh true: 不使用空闲的连接
+     */
+    private void connect(Call call, boolean fresh) {
+        if (call.request.isCanceled()) {
+            notifyError(call, new InterruptedIOException("request canceled"));
+            return;
+        }
+        mActive.add(call);
+        call.deadline = now() + call.request.getTimeoutMs();
+        Connection connection = fresh ? null : takeIdle(call.route);
+        if (connection != null) {
+            try {
+                connection.key.interestOps(SelectionKey.OP_WRITE);
+                connection.reused = true;
+                connection.call = call;
+                call.connection = connection;
+                return;
+            } catch (CancelledKeyException e) {
+                // 已经被关闭的空闲连接
+                closeQuietly(connection);
+            }
+        }
+        try {
+            SocketChannel channel = SocketChannel.open();
+            connection = new Connection(call.route, channel);
+            connection.call = call;
+            call.connection = connection;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connected = channel.connect(call.address);
+            connection.key = channel.register(mSelector,
+                    connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, connection);
+        } catch (IOException e) {
+            fail(call, e);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Connection connection = (Connection) key.attachment();
+        Call call = connection.call;
+        if (call == null) {
+            // 空闲的连接可读: 服务器关闭了连接 (或者发来了不应该有的数据)
+            removeIdle(connection);
+            closeQuietly(connection);
+            return;
+        }
+        try {
+            if (key.isConnectable()) {
+                if (connection.channel.finishConnect()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    progress(call);
+                }
+            } else if (key.isWritable()) {
+                connection.channel.write(call.out);
+                progress(call);
+                if (!call.out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            } else if (key.isReadable()) {
+                read(connection, call);
+            }
+        } catch (IOException e) {
+            retryOrFail(call, e);
+        } catch (CancelledKeyException e) {
+            retryOrFail(call, new IOException("connection closed"));
+        }
+    }
+
+    private void read(Connection connection, Call call) throws IOException {
+        mReadBuffer.clear();
+        int n = connection.channel.read(mReadBuffer);
+        if (n == -1) {
+            if (call.parser.onEndOfStream()) {
+                complete(call);
+                return;
+            }
+            throw new EOFException("unexpected end of stream");
+        }
+        if (n == 0) {
+            return;
+        }
+        call.receivedAny = true;
+        progress(call);
+        mReadBuffer.flip();
+        if (call.parser.feed(mReadBuffer)) {
+            complete(call);
+        }
+    }
+
+    /**
+     * 收到完整的响应: 连接放回空闲连接中 (或关闭),通知回调
+     */
+    private void complete(Call call) {
+        mActive.remove(call);
+        Connection connection = call.connection;
+        call.connection = null;
+        connection.call = null;
+        NetworkResponse response;
+        try {
+            response = call.parser.toResponse(now() - call.start);
+        } catch (IOException e) {
+            closeQuietly(connection);
+            notifyError(call, e);
+            return;
+        }
+        if (call.parser.keepAlive && !mShutdown) {
+            release(connection);
+        } else {
+            closeQuietly(connection);
+        }
+        try {
+            call.callback.onSuccess(response);
+        } catch (RuntimeException e) {
+            VolleyLog.e(e, "NioHttpStack callback failed");
+        }
+    }
+
+    /**
+     * 复用的连接在收到任何数据之前失败,多半是服务器已经关闭了空闲连接,用新的连接重发一次
+     */
+    private void retryOrFail(Call call, IOException e) {
+        Connection connection = call.connection;
+        if (connection != null && connection.reused && !call.receivedAny && !call.retried) {
+            mActive.remove(call);
+            closeQuietly(connection);
+            call.reset();
+            connect(call, true);
+            return;
+        }
+        fail(call, e);
+    }
+
+    private void fail(Call call, IOException e) {
+        mActive.remove(call);
+        if (call.connection != null) {
+            closeQuietly(call.connection);
+            call.connection = null;
+        }
+        call.parser.discard();
+        notifyError(call, e);
+    }
+
+    private static void notifyError(Call call, IOException e) {
+        try {
+            call.callback.onError(e);
+        } catch (RuntimeException re) {
+            VolleyLog.e(re, "NioHttpStack callback failed");
+        }
+    }
+
+    /**
+     * 检查取消和超时的请求,关闭空闲太久的连接
+     */
+    private void sweep(long now) {
+        for (int i = mActive.size() - 1; i >= 0; i--) {
+            Call call = mActive.get(i);
+            if (call.request.isCanceled()) {
+                fail(call, new InterruptedIOException("request canceled"));
+            } else if (now > call.deadline) {
+                fail(call, new SocketTimeoutException("timeout after " + call.request.getTimeoutMs() + " ms"));
+            }
+        }
+        Iterator<ArrayDeque<Connection>> routes = mIdle.values().iterator();
+        while (routes.hasNext()) {
+            ArrayDeque<Connection> idle = routes.next();
+            while (!idle.isEmpty() && now - idle.peekFirst().idleSince > KEEP_ALIVE_MS) {
+                closeQuietly(idle.pollFirst());
+            }
+            if (idle.isEmpty()) {
+                routes.remove();
+            }
+        }
+    }
+
+    /**
+     * 单调时钟的毫秒数
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static void progress(Call call) {
+        call.deadline = now() + call.request.getTimeoutMs();
+    }
+
+    private Connection takeIdle(String route) {
+        ArrayDeque<Connection> idle = mIdle.get(route);
+        if (idle == null) {
+            return null;
+        }
+        // 最近使用的连接最可能仍然可用
+        Connection connection = idle.pollLast();
+        if (idle.isEmpty()) {
+            mIdle.remove(route);
+        }
+        return connection;
+    }
+
+    private void release(Connection connection) {
+        ArrayDeque<Connection> idle = mIdle.get(connection.route);
+        if (idle == null) {
+            idle = new ArrayDeque<Connection>();
+            mIdle.put(connection.route, idle);
+        }
+        connection.idleSince = now();
+        try {
+            // 空闲时监听可读,服务器关闭连接时及时移除
+            connection.key.interestOps(SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            closeQuietly(connection);
+            return;
+        }
+        idle.addLast(connection);
+        if (idle.size() > MAX_IDLE_PER_ROUTE) {
+            closeQuietly(idle.pollFirst());
+        }
+    }
+
+    private void removeIdle(Connection connection) {
+        ArrayDeque<Connection> idle = mIdle.get(connection.route);
+        if (idle != null) {
+            idle.remove(connection);
+            if (idle.isEmpty()) {
+                mIdle.remove(connection.route);
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            VolleyLog.d("close channel failed: %s", e.toString());
+        }
+    }
+
+    /**
+     * 编码请求行,头部和实体. 头部和实体在调用线程上获取
+     */
+    private static ByteBuffer encodeRequest(Request<?> request, URL url,
+                                            Map<String, String> additionalHeaders) throws AuthFailureError {
+        String method;
+        byte[] body = null;
+        switch (request.getMethod()) {
+            case Bees.Method.GET:
+                method = "GET";
+                break;
+            case Bees.Method.POST:
+                method = "POST";
+                body = request.getBody();
+                break;
+            case Bees.Method.HEAD:
+                method = "HEAD";
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+        String file = url.getFile();
+        StringBuilder head = new StringBuilder(256);
+        head.append(method).append(' ').append(file.length() == 0 ? "/" : file).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+
+        HashMap<String, String> map = new HashMap<>();
+        map.putAll(request.getHeaders());
+        map.putAll(additionalHeaders);
+        for (Map.Entry<String, String> header : map.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (body != null) {
+            head.append(HEADER_CONTENT_TYPE).append(": ").append(request.getBodyContentType()).append("\r\n");
+        }
+        if (body != null || "POST".equals(method)) {
+            head.append("Content-Length: ").append(body == null ? 0 : body.length).append("\r\n");
+        }
+        head.append("\r\n");
+
+        byte[] headBytes;
+        try {
+            headBytes = head.toString().getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        ByteBuffer out = ByteBuffer.allocate(headBytes.length + (body == null ? 0 : body.length));
+        out.put(headBytes);
+        if (body != null) {
+            out.put(body);
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * 一条连接,同一时刻最多处理一个请求
+     */
+    private static final class Connection {
+        final String route;
+        final SocketChannel channel;
+        SelectionKey key;
+        Call call;
+        boolean reused;
+        long idleSince;
+
+        Connection(String route, SocketChannel channel) {
+            this.route = route;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * 一次请求的状态,只在 IO 线程上修改 (创建除外)
+     */
+    private final class Call {
+        final Request<?> request;
+        final String route;
+        final InetSocketAddress address;
+        final ByteBuffer out;
+        final OnRequestComplete callback;
+        final long start = now();
+        ResponseParser parser;
+        Connection connection;
+        long deadline;
+        boolean receivedAny;
+        boolean retried;
+
+        Call(Request<?> request, String route, InetSocketAddress address, ByteBuffer out,
+             OnRequestComplete callback) {
+            this.request = request;
+            this.route = route;
+            this.address = address;
+            this.out = out;
+            this.callback = callback;
+            parser = new ResponseParser(request.getMethod() == Bees.Method.HEAD);
+        }
+
+        /**
+         * 在新的连接上重发
+         */
+        void reset() {
+            parser.discard();
+            parser = new ResponseParser(request.getMethod() == Bees.Method.HEAD);
+            out.rewind();
+            connection = null;
+            receivedAny = false;
+            retried = true;
+        }
+    }
+
+    /**
+     * HTTP/1.1 响应的增量解析
+     */
+    private final class ResponseParser {
+        private static final int STATUS = 0;
+        private static final int HEADERS = 1;
+        private static final int BODY_FIXED = 2;
+        private static final int CHUNK_SIZE = 3;
+        private static final int CHUNK_DATA = 4;
+        private static final int CHUNK_END = 5;
+        private static final int TRAILERS = 6;
+        private static final int BODY_UNTIL_CLOSE = 7;
+        private static final int DONE = 8;
+
+        private final boolean mHead;
+        /**
+         * 按名字查找头部时不区分大小写 (例如 ETag 和 Etag)
+         */
+        private final Map<String, String> mHeaders = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        private final ByteArrayOutputStream mLine = new ByteArrayOutputStream(128);
+        private PoolingByteArrayOutputStream mBody;
+        private int mState = STATUS;
+        private int mStatusCode;
+        private boolean mHttp11;
+        private long mRemaining;
+        private long mContentLength = -1;
+        private boolean mChunked;
+        private String mConnectionHeader;
+
+        boolean keepAlive;
+
+        ResponseParser(boolean head) {
+            mHead = head;
+        }
+
+        /**
+         * @return true: 响应已经完整
+         */
+        boolean feed(ByteBuffer in) throws IOException {
+            while (in.hasRemaining() && mState != DONE) {
+                switch (mState) {
+                    case STATUS:
+                    case HEADERS:
+                    case CHUNK_SIZE:
+                    case CHUNK_END:
+                    case TRAILERS:
+                        String line = readLine(in);
+                        if (line != null) {
+                            onLine(line);
+                        }
+                        break;
+                    case BODY_FIXED:
+                    case CHUNK_DATA:
+                        int count = (int) Math.min(mRemaining, in.remaining());
+                        copy(in, count);
+                        mRemaining -= count;
+                        if (mRemaining == 0) {
+                            mState = mState == BODY_FIXED ? DONE : CHUNK_END;
+                        }
+                        break;
+                    case BODY_UNTIL_CLOSE:
+                        copy(in, in.remaining());
+                        break;
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+            if (mState == DONE && in.hasRemaining()) {
+                // 没有发出的请求的数据,连接不能再用
+                keepAlive = false;
+            }
+            return mState == DONE;
+        }
+
+        /**
+         * 连接被关闭
+         *
+         * @return true: 实体以连接关闭结束,响应完整
+         */
+        boolean onEndOfStream() {
+            if (mState == BODY_UNTIL_CLOSE) {
+                mState = DONE;
+                keepAlive = false;
+                return true;
+            }
+            return mState == DONE;
+        }
+
+        NetworkResponse toResponse(long networkTimeMs) throws IOException {
+            byte[] data;
+            if (mBody == null) {
+                data = new byte[0];
+            } else {
+                data = mBody.toByteArray();
+                mBody.close();
+                mBody = null;
+            }
+            return new NetworkResponse(mStatusCode, data, mHeaders, false, networkTimeMs, false);
+        }
+
+        void discard() {
+            if (mBody != null) {
+                try {
+                    mBody.close();
+                } catch (IOException e) {
+                    // 只是把缓冲区还给池
+                }
+                mBody = null;
+            }
+        }
+
+        private void copy(ByteBuffer in, int count) {
+            if (mBody == null) {
+                mBody = new PoolingByteArrayOutputStream(mPool,
+                        mContentLength > 0 && mContentLength < Integer.MAX_VALUE ? (int) mContentLength : 256);
+            }
+            mBody.write(in.array(), in.arrayOffset() + in.position(), count);
+            in.position(in.position() + count);
+        }
+
+        /**
+         * 读取一行 (去掉 CRLF),数据不够一行时保留已读的部分并返回 null
+         */
+        private String readLine(ByteBuffer in) throws IOException {
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                if (b == '\n') {
+                    byte[] bytes = mLine.toByteArray();
+                    mLine.reset();
+                    int length = bytes.length;
+                    if (length > 0 && bytes[length - 1] == '\r') {
+                        length--;
+                    }
+                    return new String(bytes, 0, length, CHARSET);
+                }
+                if (mLine.size() >= MAX_LINE_BYTES) {
+                    throw new IOException("response line too long");
+                }
+                mLine.write(b);
+            }
+            return null;
+        }
+
+        private void onLine(String line) throws IOException {
+            switch (mState) {
+                case STATUS:
+                    parseStatusLine(line);
+                    mState = HEADERS;
+                    break;
+                case HEADERS:
+                    if (line.length() == 0) {
+                        onHeadersEnd();
+                    } else {
+                        parseHeader(line);
+                    }
+                    break;
+                case CHUNK_SIZE:
+                    int end = line.indexOf(';');
+                    long size;
+                    try {
+                        size = Long.parseLong((end < 0 ? line : line.substring(0, end)).trim(), 16);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("bad chunk size: " + line);
+                    }
+                    if (size < 0) {
+                        throw new IOException("bad chunk size: " + line);
+                    }
+                    if (size == 0) {
+                        mState = TRAILERS;
+                    } else {
+                        mRemaining = size;
+                        mState = CHUNK_DATA;
+                    }
+                    break;
+                case CHUNK_END:
+                    if (line.length() != 0) {
+                        throw new IOException("bad chunk end");
+                    }
+                    mState = CHUNK_SIZE;
+                    break;
+                case TRAILERS:
+                    if (line.length() == 0) {
+                        mState = DONE;
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException();
+            }
+        }
+
+        /**
+         * HTTP/1.1 200 OK
+         */
+        private void parseStatusLine(String line) throws IOException {
+            if (!line.startsWith("HTTP/1.") || line.length() < 12 || line.charAt(8) != ' ') {
+                throw new IOException("bad status line: " + line);
+            }
+            mHttp11 = line.charAt(7) != '0';
+            try {
+                mStatusCode = Integer.parseInt(line.substring(9, 12));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad status line: " + line);
+            }
+        }
+
+        private void parseHeader(String line) throws IOException {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new IOException("bad header: " + line);
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            // 和 HurlStack 一样,同名的头部保留最后一个
+            mHeaders.put(name, value);
+            if ("Content-Length".equalsIgnoreCase(name)) {
+                try {
+                    mContentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("bad content length: " + value);
+                }
+            } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+                mChunked = value.toLowerCase(Locale.US).contains("chunked");
+            } else if ("Connection".equalsIgnoreCase(name)) {
+                mConnectionHeader = value.toLowerCase(Locale.US);
+            }
+        }
+
+        private void onHeadersEnd() {
+            if (mStatusCode >= 100 && mStatusCode < 200) {
+                // 100 Continue 等临时响应,后面还有最终的响应
+                mHeaders.clear();
+                mContentLength = -1;
+                mChunked = false;
+                mConnectionHeader = null;
+                mState = STATUS;
+                return;
+            }
+            keepAlive = mHttp11
+                    ? mConnectionHeader == null || !mConnectionHeader.contains("close")
+                    : mConnectionHeader != null && mConnectionHeader.contains("keep-alive");
+            if (mHead || mStatusCode == HttpStatus.SC_NO_CONTENT
+                    || mStatusCode == HttpStatus.SC_NOT_MODIFIED) {
+                mState = DONE;
+            } else if (mChunked) {
+                mState = CHUNK_SIZE;
+            } else if (mContentLength >= 0) {
+                mRemaining = mContentLength;
+                mState = mContentLength == 0 ? DONE : BODY_FIXED;
+            } else {
+                mState = BODY_UNTIL_CLOSE;
+                keepAlive = false;
+            }
+        }
+    }
+}
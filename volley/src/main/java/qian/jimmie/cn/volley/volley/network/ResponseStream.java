@@ -0,0 +1,155 @@
+package qian.jimmie.cn.volley.volley.network;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+import qian.jimmie.cn.volley.volley.exception.VolleyLog;
+import qian.jimmie.cn.volley.volley.request.Request;
+
+/**
+ * {@link HurlStack} 交给 {@link Request#acceptsStream()} 请求解析的响应实体.
+ * <p>
+ * 每次读取前检查请求是否已经取消,取消后抛出 {@link InterruptedIOException};
+ * 读到的数据同时写入缓存 (有 tee 写入时),没有读到末尾就关闭时放弃写入.
+ * 关闭时读到末尾的连接回到连接池,否则断开
+ */
+final class ResponseStream extends FilterInputStream {
+
+    /**
+     * 关闭时剩余的数据不超过这个大小时读完,以便复用连接 (和写入缓存)
+     */
+    private static final int DRAIN_LIMIT = 16 * 1024;
+
+    private final Request<?> mRequest;
+    private final HttpURLConnection mConnection;
+    private Cache.EntryWriter mTee;
+    private boolean mEof = false;
+    private boolean mClosed = false;
+
+    ResponseStream(Request<?> request, HttpURLConnection connection, InputStream in,
+                   Cache.EntryWriter tee) {
+        super(in);
+        mRequest = request;
+        mConnection = connection;
+        mTee = tee;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCanceled();
+        int b = in.read();
+        if (b == -1) {
+            mEof = true;
+        } else if (mTee != null) {
+            try {
+                mTee.write(b);
+            } catch (IOException e) {
+                abortTee(e);
+            }
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        checkCanceled();
+        int n = in.read(buffer, offset, count);
+        if (n == -1) {
+            mEof = true;
+        } else if (mTee != null) {
+            try {
+                mTee.write(buffer, offset, n);
+            } catch (IOException e) {
+                abortTee(e);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 跳过的数据也要写入缓存,所以按读取处理
+     */
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            int count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (count == -1) {
+                break;
+            }
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            if (!mEof && !mRequest.isCanceled()) {
+                drain();
+            }
+        } catch (IOException e) {
+            VolleyLog.d("drain failed: %s", e.toString());
+        }
+        mClosed = true;
+        if (!mEof) {
+            if (mTee != null) {
+                mTee.abort();
+                mTee = null;
+            }
+            // 还有数据没有读取,连接不能复用
+            mConnection.disconnect();
+            return;
+        }
+        in.close();
+    }
+
+    private void drain() throws IOException {
+        byte[] buffer = new byte[4096];
+        long remaining = DRAIN_LIMIT;
+        while (remaining > 0) {
+            int n = read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (n == -1) {
+                return;
+            }
+            remaining -= n;
+        }
+    }
+
+    private void checkCanceled() throws IOException {
+        if (mClosed) {
+            throw new IOException("stream closed");
+        }
+        if (mRequest.isCanceled()) {
+            throw new InterruptedIOException("request canceled");
+        }
+    }
+
+    private void abortTee(IOException e) {
+        VolleyLog.d("cache tee failed: %s", e.toString());
+        mTee.abort();
+        mTee = null;
+    }
+}
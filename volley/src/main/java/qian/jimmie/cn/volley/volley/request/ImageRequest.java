@@ -21,6 +21,11 @@ import android.graphics.Bitmap;
 import android.support.annotation.DrawableRes;
 import android.widget.ImageView;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
 import qian.jimmie.cn.volley.volley.Bees;
 import qian.jimmie.cn.volley.volley.cache.HttpHeaderParser;
 import qian.jimmie.cn.volley.volley.exception.GreeError;
@@ -52,6 +57,13 @@ public class ImageRequest extends Request<Bitmap> {
      */
     private static final float IMAGE_BACKOFF_MULT = 2f;
 
+    /**
+     * 写入临时文件的缓冲区大小
+     */
+    private static final int SPOOL_BUFFER_BYTES = 16 * 1024;
+
+    private static final String SPOOL_PREFIX = "bees-image";
+
     private Bitmap.Config mDecodeConfig;
     private int mMaxWidth;
     private int mMaxHeight;
@@ -71,6 +83,7 @@ public class ImageRequest extends Request<Bitmap> {
         setMethod(Bees.Method.GET);
         setRetryTimes(IMAGE_MAX_RETRIES);
         setTimeOut(IMAGE_TIMEOUT_MS);
+        setPriority(Priority.LOW);
     }
 
     public Request setResolution(int maxWidth, int maxHeight) {
@@ -125,19 +138,28 @@ public class ImageRequest extends Request<Bitmap> {
     }
 
     @Override
-    public Priority getPriority() {
-        return Priority.LOW;
+    public boolean acceptsByteBuffer() {
+        return true;
     }
 
+    @Override
+    public boolean acceptsStream() {
+        return true;
+    }
 
     @Override
     public Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
+        if (response.data == null && response.buffer == null && response.stream != null) {
+            return parseStream(response);
+        }
         // Serialize all decode on a global lock to reduce concurrent heap usage.
         synchronized (sDecodeLock) {
             try {
                 return doParse(response);
             } catch (OutOfMemoryError e) {
-                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data.length, getUrl());
+                VolleyLog.e("Caught OOM for %d byte image, url=%s", response.data != null
+                        ? response.data.length : response.buffer != null
+                        ? response.buffer.remaining() : -1, getUrl());
                 return Response.error(new ParseError(e));
             }
         }
@@ -147,10 +169,45 @@ public class ImageRequest extends Request<Bitmap> {
      * The real guts of parseNetworkResponse. Broken out for readability.
      */
     private Response<Bitmap> doParse(NetworkResponse response) {
-        byte[] data = response.data;
         Bitmap bitmap;
-        bitmap = ImageUtils.zipBitmap(data, mMaxWidth, mMaxHeight, mScaleType, mDecodeConfig);
+        if (response.data == null && response.buffer != null) {
+            // 映射自缓存文件的大图片,直接从 buffer 解码
+            bitmap = ImageUtils.zipBitmap(response.buffer, mMaxWidth, mMaxHeight, mScaleType, mDecodeConfig);
+        } else {
+            bitmap = ImageUtils.zipBitmap(response.data, mMaxWidth, mMaxHeight, mScaleType, mDecodeConfig);
+        }
+        return toResponse(bitmap, response);
+    }
+
+    /**
+     * 以流的方式返回的实体先在锁外写入临时文件 (读取时检查取消,并同时写入缓存),
+     * 锁内再从文件中解码: 不等待网络,实体也不需要整个放在内存中
+     */
+    private Response<Bitmap> parseStream(NetworkResponse response) {
+        File spool;
+        try {
+            spool = spool(response.stream);
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        }
+        try {
+            synchronized (sDecodeLock) {
+                try {
+                    Bitmap bitmap = ImageUtils.zipBitmap(spool, mMaxWidth, mMaxHeight, mScaleType, mDecodeConfig);
+                    return toResponse(bitmap, response);
+                } catch (OutOfMemoryError e) {
+                    VolleyLog.e("Caught OOM for %d byte image, url=%s", spool.length(), getUrl());
+                    return Response.error(new ParseError(e));
+                }
+            }
+        } finally {
+            if (!spool.delete()) {
+                VolleyLog.d("delete spool file failed: %s", spool);
+            }
+        }
+    }
 
+    private static Response<Bitmap> toResponse(Bitmap bitmap, NetworkResponse response) {
         if (bitmap == null) {
             return Response.error(new ParseError(response));
         } else {
@@ -158,6 +215,29 @@ public class ImageRequest extends Request<Bitmap> {
         }
     }
 
+    /**
+     * 把流写入临时目录 (Android 上为应用的缓存目录) 中的文件
+     */
+    private static File spool(InputStream in) throws IOException {
+        File file = File.createTempFile(SPOOL_PREFIX, null);
+        boolean done = false;
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[SPOOL_BUFFER_BYTES];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            done = true;
+        } finally {
+            out.close();
+            if (!done) {
+                file.delete();
+            }
+        }
+        return file;
+    }
+
     @Override
     public void deliverResponse(Bitmap response) {
         if (mImageView == null) throw new NullPointerException("imageView == null ");
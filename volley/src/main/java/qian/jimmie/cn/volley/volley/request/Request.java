@@ -121,6 +121,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private Cache.Entry mCacheEntry = null;
 
+    /**
+     * 下载实体时同时写入的缓存 (开启 tee 模式时由网络分发线程设置)
+     */
+    private Cache mTeeCache = null;
+
+    /**
+     * 优先级,在请求队列中时不能修改 (见 {@link #setPriority(Priority)})
+     */
+    private volatile Priority mPriority = Priority.NORMAL;
+
+    /**
+     * 是否为预取请求 (只写入缓存,不解析也不分发响应)
+     */
+    private volatile boolean mPrefetch = false;
+
     /**
      * An opaque token tagging this request; used for bulk cancellation.
      * 请求标志,用于取消
@@ -356,6 +371,18 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mCacheEntry;
     }
 
+    /**
+     * 设置下载实体时同时写入的缓存,stack 一边读取实体一边写入缓存文件,解析成功后由网络分发线程提交
+     */
+    public Request<?> setTeeCache(Cache cache) {
+        mTeeCache = cache;
+        return this;
+    }
+
+    public Cache getTeeCache() {
+        return mTeeCache;
+    }
+
     /**
      * 标记请求已经被去掉,不会有回调被分配
      */
@@ -452,6 +479,10 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * 优先值
      */
     public enum Priority {
+        /**
+         * 预取请求专用,低于所有普通请求
+         */
+        PREFETCH,
         LOW,
         NORMAL,
         HIGH,
@@ -462,7 +493,30 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * 返回优先级 可被重写修改
      */
     public Priority getPriority() {
-        return Priority.NORMAL;
+        return mPriority;
+    }
+
+    /**
+     * 设置优先级. 请求已经在优先级队列中时修改不会生效,预取请求的提升由 {@link RequestQueue} 负责
+     */
+    public Request<?> setPriority(Priority priority) {
+        mPriority = priority;
+        return this;
+    }
+
+    /**
+     * 标记为预取请求.  Used by {@link RequestQueue#prefetch(java.util.Collection)}.
+     */
+    public final Request<?> setPrefetch(boolean prefetch) {
+        mPrefetch = prefetch;
+        return this;
+    }
+
+    /**
+     * true: 预取请求,缓存仍然新鲜时直接丢弃,否则只把响应写入缓存,不解析也不分发
+     */
+    public final boolean isPrefetch() {
+        return mPrefetch;
     }
 
     /**
@@ -496,6 +550,24 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mResponseDelivered;
     }
 
+    /**
+     * true: {@link #parseNetworkResponse(NetworkResponse)} 能够处理 {@link NetworkResponse#buffer}
+     * (data 为 null),较大的缓存实体可以不经复制直接交给请求解析. 可被重写修改
+     */
+    public boolean acceptsByteBuffer() {
+        return false;
+    }
+
+    /**
+     * true: {@link #parseNetworkResponse(NetworkResponse)} 能够处理 {@link NetworkResponse#stream}
+     * (data 为 null),缓存实体直接从文件中读取,网络响应 (2xx) 的实体直接从连接中读取,不需要整个读入内存.
+     * 流需要在解析过程中读取完毕,解析返回后由分发线程关闭; 请求取消后读取会抛出 {@link java.io.InterruptedIOException}.
+     * 网络响应的实体在读取时写入缓存,解析返回的 cacheEntry 的 data 可以为 null. 可被重写修改
+     */
+    public boolean acceptsStream() {
+        return false;
+    }
+
     /**
      * 将NetworkResponse 转化为最终给用户显示的 Response
      */
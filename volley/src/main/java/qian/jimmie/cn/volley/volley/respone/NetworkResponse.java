@@ -17,11 +17,14 @@
 package qian.jimmie.cn.volley.volley.respone;
 
 
+import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.Map;
 
 import qian.jimmie.cn.volley.volley.constance.HttpStatus;
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
 
 
 /**
@@ -63,6 +66,34 @@ public class NetworkResponse implements Serializable {
         this(HttpStatus.SC_OK, data, headers, false, 0, false);
     }
 
+    /**
+     * 实体数据为只读的 buffer (映射自缓存文件),{@link #data} 为 null.
+     * 只会交给 {@link Request#acceptsByteBuffer()} 返回 true 的请求.
+     */
+    public NetworkResponse(ByteBuffer buffer, Map<String, String> headers) {
+        this(HttpStatus.SC_OK, null, headers, false, 0, false);
+        this.buffer = buffer;
+    }
+
+    /**
+     * 实体数据为缓存文件的输入流,{@link #data} 为 null.
+     * 只会交给 {@link Request#acceptsStream()} 返回 true 的请求,流由分发线程关闭.
+     */
+    public NetworkResponse(InputStream stream, Map<String, String> headers) {
+        this(HttpStatus.SC_OK, null, headers, false, 0, false);
+        this.stream = stream;
+    }
+
+    /**
+     * 实体数据为网络连接的输入流,{@link #data} 为 null.
+     * 只会交给 {@link Request#acceptsStream()} 返回 true 的请求,在分发线程上边读边解析,流由分发线程关闭
+     */
+    public NetworkResponse(int statusCode, InputStream stream, Map<String, String> headers,
+                           long networkTimeMs) {
+        this(statusCode, null, headers, false, networkTimeMs, false);
+        this.stream = stream;
+    }
+
     /**
      * The HTTP status code.
      */
@@ -73,6 +104,24 @@ public class NetworkResponse implements Serializable {
      */
     public byte[] data;
 
+    /**
+     * Raw data from this response as a read-only buffer, when served from a memory mapped
+     * cache file. {@link #data} is null in that case.
+     */
+    public transient ByteBuffer buffer;
+
+    /**
+     * Raw data from this response as a stream over the cache file or the network connection.
+     * {@link #data} is null in that case, and the stream is only valid during parsing.
+     */
+    public transient InputStream stream;
+
+    /**
+     * 下载时实体同时写入的缓存 (见 {@link Request#setTeeCache(Cache)}),尚未提交.
+     * 由网络分发线程在解析后提交或放弃
+     */
+    public transient Cache.EntryWriter cacheWriter;
+
     /**
      * Response headers.
      */
@@ -80,6 +80,52 @@ public final class DateUtils {
         DEFAULT_TWO_DIGIT_YEAR_START = calendar.getTime();
     }
 
+    /**
+     * IMF-fixdate 的长度: {@code Sun, 06 Nov 1994 08:49:37 GMT}
+     */
+    private static final int FIXDATE_LENGTH = 29;
+
+    private static final String[] DAY_NAMES = {"Thu", "Fri", "Sat", "Sun", "Mon", "Tue", "Wed"};
+
+    private static final String[] MONTH_NAMES = {
+            "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * 快速解析和格式化只处理 1583 年到 9999 年: SimpleDateFormat 对 1582-10-15 之前的日期使用儒略历
+     */
+    private static final int MIN_FAST_YEAR = 1583;
+    private static final int MAX_FAST_YEAR = 9999;
+    private static final long MIN_FAST_DAY = daysFromCivil(MIN_FAST_YEAR, 1, 1);
+    private static final long MAX_FAST_DAY = daysFromCivil(MAX_FAST_YEAR + 1, 1, 1) - 1;
+
+    /**
+     * {@link #parseHttpDate(String)} 解析失败时的返回值
+     */
+    public static final long INVALID_DATE = Long.MIN_VALUE;
+
+    /**
+     * 最近解析过的值,按 hashCode 分到几个槽中 (Date,Expires,Last-Modified 互不覆盖).
+     * 同一个 CDN 返回的 Date 在一秒内都相同
+     */
+    private static final int MEMO_SLOTS = 4;
+
+    private static final ParsedDate[] sMemo = new ParsedDate[MEMO_SLOTS];
+
+    /**
+     * 解析过的日期,不可变,可以在线程之间共享
+     */
+    private static final class ParsedDate {
+        final String text;
+        final long time;
+
+        ParsedDate(String text, long time) {
+            this.text = text;
+            this.time = time;
+        }
+    }
+
     /**
      * Parses a date value.  The formats used for parsing the date value are retrieved from
      * the default http params.
@@ -88,7 +134,156 @@ public final class DateUtils {
      * @return the parsed date or null if input could not be parsed
      */
     public static Date parseDate(final String dateValue) {
-        return parseDate(dateValue, null, null);
+        long time = parseHttpDate(dateValue);
+        return time == INVALID_DATE ? null : new Date(time);
+    }
+
+    /**
+     * 解析 HTTP 日期,返回毫秒数. 先按固定格式解析 IMF-fixdate (RFC 7231),
+     * 不是该格式时再依次尝试 {@link #PATTERN_RFC1123},{@link #PATTERN_RFC1036} 和 {@link #PATTERN_ASCTIME}
+     *
+     * @return 无法解析时返回 {@link #INVALID_DATE}
+     */
+    public static long parseHttpDate(final String dateValue) {
+        int slot = dateValue.hashCode() & (MEMO_SLOTS - 1);
+        ParsedDate memo = sMemo[slot];
+        if (memo != null && memo.text.equals(dateValue)) {
+            return memo.time;
+        }
+        long time = parseFixdate(dateValue);
+        if (time == INVALID_DATE) {
+            Date legacy = parseDate(dateValue, null, null);
+            if (legacy == null) {
+                return INVALID_DATE;
+            }
+            time = legacy.getTime();
+        }
+        sMemo[slot] = new ParsedDate(dateValue, time);
+        return time;
+    }
+
+    /**
+     * 按固定的位置解析 IMF-fixdate,格式不完全符合 (包括大小写和取值范围) 时返回 {@link #INVALID_DATE}
+     */
+    static long parseFixdate(String s) {
+        if (s.length() != FIXDATE_LENGTH
+                || s.charAt(3) != ',' || s.charAt(4) != ' ' || s.charAt(7) != ' '
+                || s.charAt(11) != ' ' || s.charAt(16) != ' ' || s.charAt(19) != ':'
+                || s.charAt(22) != ':' || s.charAt(25) != ' '
+                || !s.startsWith("GMT", 26) || indexOf(DAY_NAMES, s, 0) < 0) {
+            return INVALID_DATE;
+        }
+        int month = indexOf(MONTH_NAMES, s, 8) + 1;
+        int day = digits(s, 5, 2);
+        int year = digits(s, 12, 4);
+        int hour = digits(s, 17, 2);
+        int minute = digits(s, 20, 2);
+        int second = digits(s, 23, 2);
+        if (month <= 0 || day < 1 || day > 31 || year < MIN_FAST_YEAR
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return INVALID_DATE;
+        }
+        // 31 Feb 之类的日期和 SimpleDateFormat 的宽松模式一样顺延到下个月
+        return daysFromCivil(year, month, day) * MILLIS_PER_DAY
+                + ((hour * 60L + minute) * 60 + second) * 1000;
+    }
+
+    /**
+     * 按 IMF-fixdate 格式化,和 {@link #formatDate(Date)} 的结果相同
+     */
+    public static String formatHttpDate(long time) {
+        long days = floorDiv(time, MILLIS_PER_DAY);
+        int millisOfDay = (int) (time - days * MILLIS_PER_DAY);
+        if (days < MIN_FAST_DAY || days > MAX_FAST_DAY) {
+            return formatDate(new Date(time), PATTERN_RFC1123);
+        }
+        // 以 3 月 1 日为一年的开始,闰日在年末 (见 daysFromCivil)
+        long z = days + 719468;
+        long era = floorDiv(z, 146097);
+        int dayOfEra = (int) (z - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        char[] out = new char[FIXDATE_LENGTH];
+        DAY_NAMES[(int) floorMod(days, 7)].getChars(0, 3, out, 0);
+        out[3] = ',';
+        out[4] = ' ';
+        putDigits(out, 5, day, 2);
+        out[7] = ' ';
+        MONTH_NAMES[month - 1].getChars(0, 3, out, 8);
+        out[11] = ' ';
+        putDigits(out, 12, year, 4);
+        out[16] = ' ';
+        int seconds = millisOfDay / 1000;
+        putDigits(out, 17, seconds / 3600, 2);
+        out[19] = ':';
+        putDigits(out, 20, seconds / 60 % 60, 2);
+        out[22] = ':';
+        putDigits(out, 23, seconds % 60, 2);
+        out[25] = ' ';
+        out[26] = 'G';
+        out[27] = 'M';
+        out[28] = 'T';
+        return new String(out);
+    }
+
+    /**
+     * 公历日期到 1970-01-01 的天数 (proleptic Gregorian)
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * 返回 s 中 offset 开始的三个字符在 names 中的下标,找不到时返回 -1
+     */
+    private static int indexOf(String[] names, String s, int offset) {
+        for (int i = 0; i < names.length; i++) {
+            if (s.startsWith(names[i], offset)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 解析 count 位十进制数字,有非数字字符时返回 -1
+     */
+    private static int digits(String s, int offset, int count) {
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static void putDigits(char[] out, int offset, int value, int count) {
+        for (int i = offset + count - 1; i >= offset; i--) {
+            out[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return (x % y != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+
+    private static long floorMod(long x, long y) {
+        return x - floorDiv(x, y) * y;
     }
 
     /**
@@ -146,7 +341,7 @@ public final class DateUtils {
      * @see #PATTERN_RFC1123
      */
     public static String formatDate(final Date date) {
-        return formatDate(date, PATTERN_RFC1123);
+        return formatHttpDate(date.getTime());
     }
 
     /**
@@ -162,6 +357,8 @@ public final class DateUtils {
      */
     public static String formatDate(final Date date, final String pattern) {
         final SimpleDateFormat formatter = DateFormatHolder.formatFor(pattern);
+        // 同一个 SimpleDateFormat 也用于解析,解析带时区的日期 (如 UTC) 会修改它的时区
+        formatter.setTimeZone(GMT);
         return formatter.format(date);
     }
 
@@ -4,6 +4,9 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -18,8 +21,15 @@ public class IOUtils {
      * headers on disk. Once upon a time, this used the standard Java
      * Object{Input,Output}Stream, but the default implementation relies heavily
      * on reflection (even for standard types) and generates a ton of garbage.
+     *
+     * 所有整数都是小端序. 旧格式的字符串长度为 8 字节的 long,新格式为 varint (见 writeVarint)
      */
 
+    /**
+     * varint 最多的字节数 (64 位)
+     */
+    private static final int MAX_VARINT_BYTES = 10;
+
     /**
      * Simple wrapper around {@link InputStream#read()} that throws EOFException
      * instead of returning -1.
@@ -32,7 +42,7 @@ public class IOUtils {
         return b;
     }
 
-    private static int readInt(InputStream is) throws IOException {
+    public static int readInt(InputStream is) throws IOException {
         int n = 0;
         n |= (read(is) << 0);
         n |= (read(is) << 8);
@@ -41,7 +51,7 @@ public class IOUtils {
         return n;
     }
 
-    private static long readLong(InputStream is) throws IOException {
+    public static long readLong(InputStream is) throws IOException {
         long n = 0;
         n |= ((read(is) & 0xFFL) << 0);
         n |= ((read(is) & 0xFFL) << 8);
@@ -54,33 +64,43 @@ public class IOUtils {
         return n;
     }
 
-    private static String readString(InputStream is) throws IOException {
-        int n = (int) readLong(is);
-        byte[] b = streamToBytes(is, n);
-        return new String(b, "UTF-8");
+    public static String readString(InputStream is) throws IOException {
+        long n = readLong(is);
+        if (n < 0 || n > Integer.MAX_VALUE) {
+            throw new IOException("bad string length " + n);
+        }
+        byte[] b = streamToBytes(is, (int) n);
+        return decodeString(b, 0, b.length);
     }
 
-    private static Map<String, String> readStringStringMap(InputStream is) throws IOException {
+    /**
+     * @param knownNames 常见的 key,读到相同的 key 时使用其中的实例 (代替 intern),可以为 null
+     */
+    public static Map<String, String> readStringStringMap(InputStream is,
+                                                          Map<String, String> knownNames) throws IOException {
         int size = readInt(is);
+        if (size < 0) {
+            throw new IOException("bad map size " + size);
+        }
         Map<String, String> result = (size == 0)
                 ? Collections.<String, String>emptyMap()
                 : new HashMap<String, String>(size);
         for (int i = 0; i < size; i++) {
-            String key = readString(is).intern();
-            String value = readString(is).intern();
+            String key = canonical(readString(is), knownNames);
+            String value = readString(is);
             result.put(key, value);
         }
         return result;
     }
 
-    private static void writeInt(OutputStream os, int n) throws IOException {
+    public static void writeInt(OutputStream os, int n) throws IOException {
         os.write((n >> 0) & 0xff);
         os.write((n >> 8) & 0xff);
         os.write((n >> 16) & 0xff);
         os.write((n >> 24) & 0xff);
     }
 
-    private static void writeLong(OutputStream os, long n) throws IOException {
+    public static void writeLong(OutputStream os, long n) throws IOException {
         os.write((byte) (n >>> 0));
         os.write((byte) (n >>> 8));
         os.write((byte) (n >>> 16));
@@ -91,13 +111,13 @@ public class IOUtils {
         os.write((byte) (n >>> 56));
     }
 
-    private static void writeString(OutputStream os, String s) throws IOException {
+    public static void writeString(OutputStream os, String s) throws IOException {
         byte[] b = s.getBytes("UTF-8");
         writeLong(os, b.length);
         os.write(b, 0, b.length);
     }
 
-    private static void writeStringStringMap(Map<String, String> map, OutputStream os) throws IOException {
+    public static void writeStringStringMap(Map<String, String> map, OutputStream os) throws IOException {
         if (map != null) {
             writeInt(os, map.size());
             for (Map.Entry<String, String> entry : map.entrySet()) {
@@ -109,7 +129,121 @@ public class IOUtils {
         }
     }
 
-    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
+    /**
+     * 无符号 varint: 每个字节低 7 位为数据,最高位表示后面还有字节. 小于 128 的值只占一个字节
+     */
+    public static void writeVarint(OutputStream os, long n) throws IOException {
+        while ((n & ~0x7FL) != 0) {
+            os.write((int) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        os.write((int) n);
+    }
+
+    public static void writeVarString(OutputStream os, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        writeVarint(os, b.length);
+        os.write(b, 0, b.length);
+    }
+
+    public static void writeVarStringMap(Map<String, String> map, OutputStream os) throws IOException {
+        if (map == null) {
+            writeVarint(os, 0);
+            return;
+        }
+        writeVarint(os, map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeVarString(os, entry.getKey());
+            writeVarString(os, entry.getValue());
+        }
+    }
+
+    /**
+     * 从 buffer 中读取 varint. 数据不完整时抛出 EOFException
+     */
+    public static long readVarint(ByteBuffer buf) throws IOException {
+        long n = 0;
+        for (int i = 0; i < MAX_VARINT_BYTES; i++) {
+            if (!buf.hasRemaining()) {
+                throw new EOFException();
+            }
+            int b = buf.get();
+            n |= (long) (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * 读取 varint 长度的字符串
+     */
+    public static String readVarString(ByteBuffer buf) throws IOException {
+        long n = readVarint(buf);
+        return readStringBytes(buf, n);
+    }
+
+    /**
+     * 读取 8 字节 long 长度的字符串 (旧格式). buffer 需要是小端序
+     */
+    public static String readLongString(ByteBuffer buf) throws IOException {
+        try {
+            return readStringBytes(buf, buf.getLong());
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * 读取 varint 长度和个数的 map
+     *
+     * @param knownNames 常见的 key,读到相同的 key 时使用其中的实例,可以为 null
+     */
+    public static Map<String, String> readVarStringMap(ByteBuffer buf,
+                                                       Map<String, String> knownNames) throws IOException {
+        long size = readVarint(buf);
+        // 每一项至少两个字节
+        if (size < 0 || size > buf.remaining() / 2) {
+            throw new IOException("bad map size " + size);
+        }
+        if (size == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> result = new HashMap<String, String>((int) size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            String key = canonical(readVarString(buf), knownNames);
+            result.put(key, readVarString(buf));
+        }
+        return result;
+    }
+
+    /**
+     * 读取 int 个数,long 长度的 map (旧格式). buffer 需要是小端序
+     */
+    public static Map<String, String> readLongStringMap(ByteBuffer buf,
+                                                        Map<String, String> knownNames) throws IOException {
+        int size;
+        try {
+            size = buf.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+        if (size < 0 || size > buf.remaining() / 16) {
+            throw new IOException("bad map size " + size);
+        }
+        if (size == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> result = new HashMap<String, String>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            String key = canonical(readLongString(buf), knownNames);
+            result.put(key, readLongString(buf));
+        }
+        return result;
+    }
+
+    public static byte[] streamToBytes(InputStream in, int length) throws IOException {
         byte[] bytes = new byte[length];
         int count;
         int pos = 0;
@@ -121,4 +255,42 @@ public class IOUtils {
         }
         return bytes;
     }
+
+    private static String readStringBytes(ByteBuffer buf, long n) throws IOException {
+        if (n < 0 || n > buf.remaining()) {
+            throw new IOException("bad string length " + n);
+        }
+        int length = (int) n;
+        if (buf.hasArray()) {
+            int offset = buf.arrayOffset() + buf.position();
+            buf.position(buf.position() + length);
+            return decodeString(buf.array(), offset, length);
+        }
+        byte[] b = new byte[length];
+        buf.get(b);
+        return decodeString(b, 0, length);
+    }
+
+    /**
+     * 响应头基本都是 ASCII,不需要经过 UTF-8 解码器
+     */
+    private static String decodeString(byte[] b, int offset, int length) throws UnsupportedEncodingException {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            byte c = b[offset + i];
+            if (c < 0) {
+                return new String(b, offset, length, "UTF-8");
+            }
+            chars[i] = (char) c;
+        }
+        return new String(chars);
+    }
+
+    private static String canonical(String s, Map<String, String> knownNames) {
+        if (knownNames == null) {
+            return s;
+        }
+        String known = knownNames.get(s);
+        return known != null ? known : s;
+    }
 }
@@ -6,6 +6,11 @@ import android.graphics.BitmapFactory;
 import android.support.annotation.DrawableRes;
 import android.widget.ImageView;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import qian.jimmie.cn.volley.volley.effict.ByteBufferInputStream;
+
 
 /**
  * Created by jimmie on 16/12/27.
@@ -95,6 +100,90 @@ public class ImageUtils {
         return bitmap;
     }
 
+    /**
+     * 从只读 buffer (映射自缓存文件) 中解码图片,不需要先把数据复制到 byte[] 中
+     */
+    public static Bitmap zipBitmap(ByteBuffer data, int maxWidth, int maxHeight, ImageView.ScaleType type, Bitmap.Config config) {
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        Bitmap bitmap = null;
+        if (maxWidth == 0 && maxHeight == 0) {
+            decodeOptions.inPreferredConfig = config;
+            bitmap = BitmapFactory.decodeStream(new ByteBufferInputStream(data), null, decodeOptions);
+        } else {
+            // If we have to resize this image, first get the natural bounds.
+            decodeOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(new ByteBufferInputStream(data), null, decodeOptions);
+            int actualWidth = decodeOptions.outWidth;
+            int actualHeight = decodeOptions.outHeight;
+
+            // Then compute the dimensions we would ideally like to decode to.
+            int desiredWidth = getResizedDimension(maxWidth, maxHeight,
+                    actualWidth, actualHeight, type);
+            int desiredHeight = getResizedDimension(maxHeight, maxWidth,
+                    actualHeight, actualWidth, type);
+
+            // Decode to the nearest power of two scaling factor.
+            decodeOptions.inJustDecodeBounds = false;
+            decodeOptions.inSampleSize =
+                    findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
+            Bitmap tempBitmap =
+                    BitmapFactory.decodeStream(new ByteBufferInputStream(data), null, decodeOptions);
+
+            // If necessary, scale down to the maximal acceptable size.
+            if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth ||
+                    tempBitmap.getHeight() > desiredHeight)) {
+                bitmap = Bitmap.createScaledBitmap(tempBitmap,
+                        desiredWidth, desiredHeight, true);
+                tempBitmap.recycle();
+            } else {
+                bitmap = tempBitmap;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * 从文件中解码图片,需要缩放时先读取尺寸,再按缩放比例解码,实体不需要读入内存
+     */
+    public static Bitmap zipBitmap(File file, int maxWidth, int maxHeight, ImageView.ScaleType type, Bitmap.Config config) {
+        String path = file.getPath();
+        BitmapFactory.Options decodeOptions = new BitmapFactory.Options();
+        Bitmap bitmap = null;
+        if (maxWidth == 0 && maxHeight == 0) {
+            decodeOptions.inPreferredConfig = config;
+            bitmap = BitmapFactory.decodeFile(path, decodeOptions);
+        } else {
+            // If we have to resize this image, first get the natural bounds.
+            decodeOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, decodeOptions);
+            int actualWidth = decodeOptions.outWidth;
+            int actualHeight = decodeOptions.outHeight;
+
+            // Then compute the dimensions we would ideally like to decode to.
+            int desiredWidth = getResizedDimension(maxWidth, maxHeight,
+                    actualWidth, actualHeight, type);
+            int desiredHeight = getResizedDimension(maxHeight, maxWidth,
+                    actualHeight, actualWidth, type);
+
+            // Decode to the nearest power of two scaling factor.
+            decodeOptions.inJustDecodeBounds = false;
+            decodeOptions.inSampleSize =
+                    findBestSampleSize(actualWidth, actualHeight, desiredWidth, desiredHeight);
+            Bitmap tempBitmap = BitmapFactory.decodeFile(path, decodeOptions);
+
+            // If necessary, scale down to the maximal acceptable size.
+            if (tempBitmap != null && (tempBitmap.getWidth() > desiredWidth ||
+                    tempBitmap.getHeight() > desiredHeight)) {
+                bitmap = Bitmap.createScaledBitmap(tempBitmap,
+                        desiredWidth, desiredHeight, true);
+                tempBitmap.recycle();
+            } else {
+                bitmap = tempBitmap;
+            }
+        }
+        return bitmap;
+    }
+
     /**
      * Scales one side of a rectangle to fit aspect ratio.
      *
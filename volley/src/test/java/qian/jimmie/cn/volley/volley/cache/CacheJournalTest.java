@@ -0,0 +1,178 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link CacheJournal} 和 {@link DiskBasedCache} 的日志恢复
+ */
+public class CacheJournalTest {
+    /**
+     * PUT 记录的长度: op + hash + size + ttl + softTtl
+     */
+    private static final int PUT_RECORD_BYTES = 1 + 4 * 8;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mDir = mTemp.newFolder("cache");
+    }
+
+    @Test
+    public void readsAreBufferedUntilFlush() throws Exception {
+        DiskBasedCache cache = newCache();
+        cache.put("a", entry("a"));
+        cache.put("b", entry("b"));
+        cache.put("c", entry("c"));
+        long journalLength = journal().length();
+
+        assertNotNull(cache.get("a"));
+        assertEquals("a hit must not write the journal", journalLength, journal().length());
+
+        cache.flush();
+        assertTrue(journal().length() > journalLength);
+        CacheIndex.Snapshot order = readJournal(new HashSet<Long>()).snapshot();
+        assertEquals(3, order.count);
+        assertEquals(DiskBasedCache.hashKey("b"), order.hashes[0]);
+        assertEquals(DiskBasedCache.hashKey("c"), order.hashes[1]);
+        assertEquals(DiskBasedCache.hashKey("a"), order.hashes[2]);
+    }
+
+    @Test
+    public void bufferedReadsAreWrittenBeforeNextPut() throws Exception {
+        DiskBasedCache cache = newCache();
+        cache.put("a", entry("a"));
+        cache.put("b", entry("b"));
+        cache.get("a");
+        cache.put("c", entry("c"));
+
+        CacheIndex.Snapshot order = readJournal(new HashSet<Long>()).snapshot();
+        assertEquals(DiskBasedCache.hashKey("b"), order.hashes[0]);
+        assertEquals(DiskBasedCache.hashKey("a"), order.hashes[1]);
+        assertEquals(DiskBasedCache.hashKey("c"), order.hashes[2]);
+    }
+
+    @Test
+    public void unfinishedWriteIsDeletedOnLoad() throws Exception {
+        DiskBasedCache cache = newCache();
+        cache.put("a", entry("a"));
+        long sizeOfA = cache.getTotalSize();
+        cache.put("b", entry("b"));
+        int files = countCacheFiles(mDir);
+        assertEquals(2, files);
+
+        // 模拟 b 重命名到位之后,写入 PUT 记录之前崩溃
+        truncateJournal(PUT_RECORD_BYTES);
+        Set<Long> dirty = new HashSet<>();
+        readJournal(dirty);
+        assertTrue(dirty.contains(DiskBasedCache.hashKey("b")));
+
+        DiskBasedCache reopened = newCache();
+        assertEquals(sizeOfA, reopened.getTotalSize());
+        assertNull(reopened.get("b"));
+        assertNotNull(reopened.get("a"));
+        assertEquals(1, countCacheFiles(mDir));
+
+        // 日志已经重写,再次打开时没有未完成的条目
+        dirty.clear();
+        readJournal(dirty);
+        assertTrue(dirty.isEmpty());
+    }
+
+    @Test
+    public void putAfterDirtyIsComplete() throws Exception {
+        DiskBasedCache cache = newCache();
+        cache.put("a", entry("a"));
+        cache.put("a", entry("a2"));
+
+        Set<Long> dirty = new HashSet<>();
+        CacheIndex index = readJournal(dirty);
+        assertTrue(dirty.isEmpty());
+        assertEquals(1, index.count());
+
+        Cache.Entry entry = newCache().get("a");
+        assertNotNull(entry);
+        assertEquals("a2", new String(entry.data));
+    }
+
+    @Test
+    public void removedEntryIsNotDirty() throws Exception {
+        DiskBasedCache cache = newCache();
+        cache.put("a", entry("a"));
+        cache.remove("a");
+
+        Set<Long> dirty = new HashSet<>();
+        assertEquals(0, readJournal(dirty).count());
+        assertTrue(dirty.isEmpty());
+        assertFalse(newCache().getTotalSize() > 0);
+    }
+
+    private DiskBasedCache newCache() {
+        DiskBasedCache cache = new DiskBasedCache(mDir, 1024 * 1024);
+        cache.initialize();
+        return cache;
+    }
+
+    private File journal() {
+        return new File(mDir, CacheJournal.JOURNAL_FILE);
+    }
+
+    private CacheIndex readJournal(Set<Long> dirty) throws Exception {
+        return new CacheJournal(mDir).read(dirty);
+    }
+
+    private void truncateJournal(int bytes) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(journal(), "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int countCacheFiles(File dir) {
+        int count = 0;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                count += countCacheFiles(file);
+            } else if (!CacheJournal.isJournalFile(file)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Cache.Entry entry(String body) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = body.getBytes();
+        entry.etag = "\"" + body + "\"";
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.responseHeaders = new HashMap<>();
+        return entry;
+    }
+}
@@ -0,0 +1,109 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashMap;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * {@link Cache#shutdown()} 停止各个缓存的后台线程,之后仍然可以读写,再次初始化时重新启动
+ */
+public class CacheShutdownTest {
+    private static final String SWEEPER = "bees-cache-sweeper";
+    private static final String WRITER = "bees-cache-writer";
+    private static final String COMPACTOR = "bees-cache-compactor";
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void diskBasedCacheStopsAndRestartsSweeper() throws Exception {
+        int before = threads(SWEEPER);
+        DiskBasedCache cache = new DiskBasedCache(mTemp.newFolder("disk"), 1024 * 1024);
+        cache.initialize();
+        assertEquals(before + 1, threads(SWEEPER));
+
+        cache.shutdown();
+        assertEquals(before, threads(SWEEPER));
+        cache.put("k", entry(100));
+        assertNotNull(cache.get("k"));
+
+        cache.initialize();
+        assertEquals(before + 1, threads(SWEEPER));
+        cache.shutdown();
+        assertEquals(before, threads(SWEEPER));
+    }
+
+    @Test
+    public void writeBehindCacheDrainsAndStopsWriter() throws Exception {
+        int sweepers = threads(SWEEPER);
+        int writers = threads(WRITER);
+        DiskBasedCache disk = new DiskBasedCache(mTemp.newFolder("write-behind"), 1024 * 1024);
+        WriteBehindCache cache = new WriteBehindCache(disk);
+        cache.initialize();
+        cache.put("k", entry(100));
+        assertEquals(writers + 1, threads(WRITER));
+
+        cache.shutdown();
+        assertEquals(writers, threads(WRITER));
+        assertEquals(sweepers, threads(SWEEPER));
+        assertEquals(0, cache.getPendingCount());
+        assertArrayEquals(entry(100).data, disk.get("k").data);
+    }
+
+    @Test
+    public void segmentCacheStopsCompactorAndLargeCache() throws Exception {
+        int sweepers = threads(SWEEPER);
+        int compactors = threads(COMPACTOR);
+        SegmentCache cache = new SegmentCache(mTemp.newFolder("segment"), 4 * 1024 * 1024);
+        cache.initialize();
+        assertEquals(compactors + 1, threads(COMPACTOR));
+        assertEquals(sweepers + 1, threads(SWEEPER));
+        cache.put("small", entry(100));
+        cache.put("large", entry(cache.getLargeEntryThreshold() + 1));
+
+        cache.shutdown();
+        assertEquals(compactors, threads(COMPACTOR));
+        assertEquals(sweepers, threads(SWEEPER));
+        // 段文件已经关闭,读写时重新打开
+        assertArrayEquals(entry(100).data, cache.get("small").data);
+        assertArrayEquals(entry(cache.getLargeEntryThreshold() + 1).data, cache.get("large").data);
+        cache.put("after", entry(200));
+        assertArrayEquals(entry(200).data, cache.get("after").data);
+
+        cache.initialize();
+        assertEquals(compactors + 1, threads(COMPACTOR));
+        assertArrayEquals(entry(200).data, cache.get("after").data);
+        cache.shutdown();
+        assertEquals(compactors, threads(COMPACTOR));
+    }
+
+    private static int threads(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && name.equals(thread.getName())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Cache.Entry entry(int size) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            entry.data[i] = (byte) (i * 31);
+        }
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.responseHeaders = new HashMap<>();
+        return entry;
+    }
+}
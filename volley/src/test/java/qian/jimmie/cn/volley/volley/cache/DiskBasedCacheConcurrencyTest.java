@@ -0,0 +1,151 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 多个线程同时读写 {@link DiskBasedCache} (分段锁) 之后,索引,日志和磁盘上的文件保持一致
+ */
+public class DiskBasedCacheConcurrencyTest {
+    private static final int THREADS = 6;
+    private static final int OPS_PER_THREAD = 400;
+    private static final int KEYS = 64;
+    private static final int MAX_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void concurrentPutGetRemoveKeepsSizeConsistent() throws Exception {
+        File dir = mTemp.newFolder("cache");
+        final DiskBasedCache cache = newCache(dir);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < OPS_PER_THREAD; i++) {
+                            String key = "k" + random.nextInt(KEYS);
+                            int op = random.nextInt(10);
+                            if (op < 4) {
+                                cache.put(key, entry(key, 512 + random.nextInt(4096)));
+                            } else if (op < 9) {
+                                Cache.Entry entry = cache.get(key);
+                                if (entry != null) {
+                                    // 读到的实体一定是这个 key 的某一次完整写入
+                                    checkBody(key, entry);
+                                }
+                            } else {
+                                cache.remove(key);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        long total = cache.getTotalSize();
+        assertTrue("pruned below the budget: " + total, total <= MAX_SIZE);
+        cache.flush();
+
+        // 日志恢复出的索引和内存中的一致
+        DiskBasedCache fromJournal = newCache(dir);
+        assertEquals(total, fromJournal.getTotalSize());
+
+        // 扫描目录得到的大小也一致: 没有多余的文件,也没有丢失的文件
+        assertTrue(new File(dir, CacheJournal.JOURNAL_FILE).delete());
+        DiskBasedCache fromScan = newCache(dir);
+        assertEquals(total, fromScan.getTotalSize());
+    }
+
+    @Test
+    public void removeDuringReadsLeavesNoEntry() throws Exception {
+        File dir = mTemp.newFolder("cache");
+        final DiskBasedCache cache = newCache(dir);
+        cache.put("a", entry("a", 1024));
+
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200; i++) {
+                    Cache.Entry entry = cache.get("a");
+                    if (entry != null) {
+                        checkBody("a", entry);
+                    }
+                }
+            }
+        };
+        reader.start();
+        cache.remove("a");
+        reader.join();
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getTotalSize());
+    }
+
+    /**
+     * 不在后台清理,所有线程结束后大小不再变化
+     */
+    private static DiskBasedCache newCache(File dir) {
+        DiskBasedCache cache = new DiskBasedCache(dir, MAX_SIZE);
+        cache.setBackgroundSpaceManagerEnabled(false);
+        cache.initialize();
+        return cache;
+    }
+
+    private static Cache.Entry entry(String key, int size) {
+        byte[] data = new byte[size];
+        byte fill = (byte) key.hashCode();
+        for (int i = 0; i < size; i++) {
+            data[i] = fill;
+        }
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = data;
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.responseHeaders = new HashMap<>();
+        return entry;
+    }
+
+    private static void checkBody(String key, Cache.Entry entry) {
+        byte fill = (byte) key.hashCode();
+        for (byte b : entry.data) {
+            if (b != fill) {
+                throw new AssertionError("torn read for " + key);
+            }
+        }
+    }
+}
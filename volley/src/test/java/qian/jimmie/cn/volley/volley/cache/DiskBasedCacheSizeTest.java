@@ -0,0 +1,54 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link DiskBasedCache#put(String, Cache.Entry)} 按头部加实体 (压缩后) 的实际长度腾出空间,写入后不超出容量
+ */
+public class DiskBasedCacheSizeTest {
+    private static final int MAX_SIZE = 30 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void largeHeadersStayWithinCapacity() throws Exception {
+        DiskBasedCache cache = new DiskBasedCache(mTemp.newFolder("cache"), MAX_SIZE);
+        cache.setBackgroundSpaceManagerEnabled(false);
+        cache.initialize();
+
+        Random random = new Random(7);
+        for (int i = 0; i < 40; i++) {
+            // 实体只占一个块,加上头部 (很长的 ETag) 后占两个块
+            Cache.Entry entry = new Cache.Entry();
+            entry.data = new byte[3000];
+            random.nextBytes(entry.data);
+            entry.ttl = Long.MAX_VALUE;
+            entry.softTtl = Long.MAX_VALUE;
+            entry.responseHeaders = new HashMap<>();
+            entry.etag = padding(random, 3000);
+            cache.put("k" + i, entry);
+
+            assertTrue("total " + cache.getTotalSize(), cache.getTotalSize() <= MAX_SIZE);
+            assertNotNull(cache.get("k" + i));
+        }
+    }
+
+    private static String padding(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+}
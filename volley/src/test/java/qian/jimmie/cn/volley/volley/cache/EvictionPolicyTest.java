@@ -0,0 +1,163 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LruPolicy}, {@link TinyLfuPolicy}, {@link GdsfPolicy} 和 {@link FrequencySketch}
+ */
+public class EvictionPolicyTest {
+
+    @Test
+    public void lruKeepsSnapshotOrder() {
+        int[] order = new LruPolicy().order(new long[]{11, 12, 13, 0}, new long[]{1, 1, 1, 0}, 3);
+        assertArrayEquals(new int[]{0, 1, 2}, order);
+    }
+
+    @Test
+    public void everyPolicyReturnsAPermutation() {
+        Random random = new Random(1);
+        EvictionPolicy[] policies = {new LruPolicy(), new TinyLfuPolicy(64), new GdsfPolicy(64)};
+        for (EvictionPolicy policy : policies) {
+            for (int round = 0; round < 20; round++) {
+                int count = random.nextInt(50);
+                long[] hashes = new long[count + 3];
+                long[] sizes = new long[count + 3];
+                for (int i = 0; i < count; i++) {
+                    hashes[i] = random.nextLong() | 1;
+                    sizes[i] = 1 + random.nextInt(10000);
+                    if (random.nextBoolean()) {
+                        policy.onPut(hashes[i], sizes[i]);
+                    }
+                    for (int j = random.nextInt(5); j > 0; j--) {
+                        policy.onAccess(hashes[i]);
+                    }
+                }
+                int[] order = policy.order(hashes, sizes, count);
+                int[] sorted = order.clone();
+                Arrays.sort(sorted);
+                for (int i = 0; i < count; i++) {
+                    assertEquals(policy.getClass().getSimpleName(), i, sorted[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tinyLfuEvictsColdWindowEntriesBeforeHotMainEntries() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(64);
+        // 0, 1: 主区中的热点条目;  2, 3: 刚写入的一次性条目
+        long[] hashes = {101, 102, 103, 104};
+        long[] sizes = {100, 100, 100, 100};
+        for (int i = 0; i < 5; i++) {
+            policy.onAccess(101);
+            policy.onAccess(102);
+        }
+        policy.onAccess(103);
+        policy.onPut(103, 100);
+        policy.onAccess(104);
+        policy.onPut(104, 100);
+
+        int[] order = policy.order(hashes, sizes, 4);
+        assertEquals(2, order[0]);
+        assertEquals(3, order[1]);
+    }
+
+    @Test
+    public void tinyLfuAdmitsFrequentWindowEntries() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(64);
+        // 0: 主区中很少访问的条目;  1: 窗口中访问频繁的条目
+        long[] hashes = {201, 202};
+        long[] sizes = {100, 100};
+        policy.onAccess(201);
+        for (int i = 0; i < 5; i++) {
+            policy.onAccess(202);
+        }
+        policy.onPut(202, 100);
+
+        assertArrayEquals(new int[]{0, 1}, policy.order(hashes, sizes, 2));
+    }
+
+    @Test
+    public void tinyLfuOrderWithPartialEvictionOnlyAdmitsEvictedDuels() {
+        TinyLfuPolicy policy = new TinyLfuPolicy(64);
+        // 0, 1: 主区中的条目;  2: 窗口中访问频繁的条目;  3: 窗口中的一次性条目
+        long[] hashes = {501, 502, 503, 504};
+        long[] sizes = {100, 100, 100, 100};
+        policy.onAccess(501);
+        policy.onAccess(502);
+        for (int i = 0; i < 5; i++) {
+            policy.onAccess(503);
+        }
+        policy.onPut(503, 100);
+        policy.onAccess(504);
+        policy.onPut(504, 100);
+
+        int[] order = policy.order(hashes, sizes, 4);
+        assertArrayEquals(new int[]{0, 3, 1, 2}, order);
+        // 排序本身不改变状态
+        assertArrayEquals(order, policy.order(hashes, sizes, 4));
+
+        // 缓存只淘汰了第一个条目: 503 挤掉 501 进入主区,504 仍然留在窗口中
+        policy.onRemove(501);
+        long[] remaining = {502, 503, 504};
+        assertArrayEquals(new int[]{2, 0, 1}, policy.order(remaining, new long[]{100, 100, 100}, 3));
+    }
+
+    @Test
+    public void gdsfEvictsLargeEntriesFirstAtEqualFrequency() {
+        GdsfPolicy policy = new GdsfPolicy(64);
+        long[] hashes = {301, 302, 303};
+        long[] sizes = {1000, 100000, 1000};
+        for (long hash : hashes) {
+            policy.onAccess(hash);
+        }
+        // 大小相同时保持 LRU 顺序
+        assertArrayEquals(new int[]{1, 0, 2}, policy.order(hashes, sizes, 3));
+    }
+
+    @Test
+    public void gdsfKeepsFrequentEntries() {
+        GdsfPolicy policy = new GdsfPolicy(64);
+        long[] hashes = {401, 402};
+        long[] sizes = {1000, 1000};
+        for (int i = 0; i < 8; i++) {
+            policy.onAccess(401);
+        }
+        policy.onAccess(402);
+        assertArrayEquals(new int[]{1, 0}, policy.order(hashes, sizes, 2));
+
+        policy.clear();
+        assertArrayEquals(new int[]{0, 1}, policy.order(hashes, sizes, 2));
+    }
+
+    @Test
+    public void sketchCountsSaturatesAndAges() {
+        FrequencySketch sketch = new FrequencySketch(16);
+        assertEquals(0, sketch.frequency(7));
+        for (int i = 0; i < 3; i++) {
+            sketch.increment(7);
+        }
+        assertEquals(3, sketch.frequency(7));
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(7);
+        }
+        assertEquals(15, sketch.frequency(7));
+
+        // 宽度 16 时每 160 次增加减半一次
+        Random random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            sketch.increment(random.nextLong());
+        }
+        assertTrue("aged: " + sketch.frequency(7), sketch.frequency(7) <= 7);
+
+        sketch.clear();
+        assertEquals(0, sketch.frequency(7));
+    }
+}
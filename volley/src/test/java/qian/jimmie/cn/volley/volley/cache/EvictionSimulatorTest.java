@@ -0,0 +1,137 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link EvictionSimulator}
+ */
+public class EvictionSimulatorTest {
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void everyRepeatHitsWhenTheWorkingSetFits() {
+        List<String> keys = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 10; i++) {
+                keys.add("k" + i);
+                sizes.add(100L);
+            }
+        }
+        EvictionSimulator.Result result = EvictionSimulator.replay(
+                new EvictionSimulator.Trace(keys, sizes), 10000, new LruPolicy());
+        assertEquals(30, result.requests);
+        assertEquals(20, result.hits);
+        assertEquals(0, result.evictions);
+        assertEquals(2 / 3.0, result.hitRatio(), 1e-9);
+        assertEquals(2 / 3.0, result.byteHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void lruMissesEveryRequestOfALoopLargerThanTheCache() {
+        List<String> keys = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 20; i++) {
+                keys.add("k" + i);
+                sizes.add(100L);
+            }
+        }
+        EvictionSimulator.Result result = EvictionSimulator.replay(
+                new EvictionSimulator.Trace(keys, sizes), 1000, new LruPolicy());
+        assertEquals(0, result.hits);
+        assertTrue(result.evictions > 0);
+    }
+
+    @Test
+    public void frequencyAwarePoliciesSurviveLargeOneOffs() {
+        // 10 个反复访问的小接口,每轮之间穿插一张只访问一次的大图片
+        List<String> keys = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 10; i++) {
+                keys.add("api" + i);
+                sizes.add(1000L);
+            }
+            keys.add("image" + round);
+            sizes.add(8000L);
+        }
+        EvictionSimulator.Trace trace = new EvictionSimulator.Trace(keys, sizes);
+
+        List<EvictionSimulator.Result> results = EvictionSimulator.replayAll(trace, 16000,
+                new LruPolicy(), new TinyLfuPolicy(64), new GdsfPolicy(64));
+        EvictionSimulator.Result lru = results.get(0);
+        EvictionSimulator.Result tinyLfu = results.get(1);
+        EvictionSimulator.Result gdsf = results.get(2);
+        assertEquals("LruPolicy", lru.policy);
+        assertTrue(lru + " vs " + tinyLfu, tinyLfu.hits > lru.hits);
+        assertTrue(lru + " vs " + gdsf, gdsf.hits > lru.hits);
+    }
+
+    @Test
+    public void entriesLargerThanTheCacheAreNotStored() {
+        List<String> keys = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            keys.add("huge");
+            sizes.add(5000L);
+        }
+        EvictionSimulator.Result result = EvictionSimulator.replay(
+                new EvictionSimulator.Trace(keys, sizes), 1000, new LruPolicy());
+        assertEquals(0, result.hits);
+        assertEquals(0, result.evictions);
+    }
+
+    @Test
+    public void readsTraceFile() throws Exception {
+        File file = write("# key size\n"
+                + "a 100\n"
+                + "\n"
+                + "  b\t200  \n"
+                + "a 100\n");
+        EvictionSimulator.Trace trace = EvictionSimulator.readTrace(file);
+        assertEquals(3, trace.size());
+        assertEquals(DiskBasedCache.hashKey("b"), trace.hashes[1]);
+        assertEquals(200, trace.sizes[1]);
+
+        EvictionSimulator.Result result = EvictionSimulator.replay(trace, 1000, new LruPolicy());
+        assertEquals(1, result.hits);
+        assertEquals(100, result.hitBytes);
+        assertEquals(400, result.requestBytes);
+    }
+
+    @Test
+    public void rejectsLinesWithoutSize() throws Exception {
+        File file = write("a 100\nb\n");
+        try {
+            EvictionSimulator.readTrace(file);
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    private File write(String content) throws IOException {
+        File file = mTemp.newFile();
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
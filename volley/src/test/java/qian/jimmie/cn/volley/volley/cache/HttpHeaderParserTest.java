@@ -0,0 +1,154 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link HttpHeaderParser} 的 Cache-Control 和 Content-Type 解析
+ */
+public class HttpHeaderParserTest {
+    /**
+     * 解析时取的当前时间和测试中取的当前时间之间允许的误差
+     */
+    private static final long CLOCK_SLACK_MS = 5000;
+
+    @Test
+    public void noCacheAndNoStoreDisableCaching() {
+        assertNull(parse("Cache-Control", "no-cache"));
+        assertNull(parse("Cache-Control", "NO-STORE"));
+        assertNull(parse("Cache-Control", "private, max-age=60 ,  no-cache"));
+    }
+
+    @Test
+    public void maxAge() {
+        Cache.Entry entry = parse("Cache-Control", "public, max-age=60");
+        assertAbout(60000, entry.softTtl);
+        assertEquals(entry.softTtl, entry.ttl);
+    }
+
+    @Test
+    public void staleWhileRevalidateExtendsHardTtl() {
+        Cache.Entry entry = parse("Cache-Control", "max-age=60, stale-while-revalidate=30");
+        assertAbout(60000, entry.softTtl);
+        assertEquals(entry.softTtl + 30000, entry.ttl);
+    }
+
+    @Test
+    public void mustRevalidateIgnoresStaleWhileRevalidate() {
+        Cache.Entry entry = parse("Cache-Control",
+                "max-age=60, stale-while-revalidate=30, MUST-REVALIDATE");
+        assertEquals(entry.softTtl, entry.ttl);
+
+        entry = parse("Cache-Control", "max-age=60,stale-while-revalidate=30,proxy-revalidate");
+        assertEquals(entry.softTtl, entry.ttl);
+    }
+
+    @Test
+    public void commasInsideQuotesDoNotSplitDirectives() {
+        Cache.Entry entry = parse("Cache-Control", "private=\"Set-Cookie, no-cache\", max-age=10");
+        assertNotNull(entry);
+        assertAbout(10000, entry.softTtl);
+    }
+
+    @Test
+    public void directivesAreTrimmedAndMatchedIgnoringCase() {
+        Cache.Entry entry = parse("Cache-Control", "  Max-Age=20\t,\tStale-While-Revalidate=5  ");
+        assertAbout(20000, entry.softTtl);
+        assertEquals(entry.softTtl + 5000, entry.ttl);
+    }
+
+    @Test
+    public void malformedMaxAgeIsIgnored() {
+        assertAbout(0, parse("Cache-Control", "max-age=abc").softTtl);
+        assertAbout(0, parse("Cache-Control", "max-age=").softTtl);
+        assertAbout(0, parse("Cache-Control", "max-age=12x").softTtl);
+        // 溢出 long
+        assertAbout(0, parse("Cache-Control", "max-age=99999999999999999999").softTtl);
+        // 与 Long.parseLong 相同,接受符号
+        assertAbout(5000, parse("Cache-Control", "max-age=+5").softTtl);
+        // 前一个合法的值保留
+        assertAbout(30000, parse("Cache-Control", "max-age=30, max-age=oops").softTtl);
+    }
+
+    @Test
+    public void expiresRelativeToServerDate() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Date", "Thu, 01 Jan 2015 00:00:00 GMT");
+        headers.put("Expires", "Thu, 01 Jan 2015 01:00:00 GMT");
+        headers.put("Last-Modified", "Wed, 31 Dec 2014 00:00:00 GMT");
+        headers.put("ETag", "\"v1\"");
+        Cache.Entry entry = parse(headers);
+        assertAbout(3600000, entry.softTtl);
+        assertEquals(entry.softTtl, entry.ttl);
+        assertEquals(1420070400000L, entry.serverDate);
+        assertEquals(1420070400000L - 86400000L, entry.lastModified);
+        assertEquals("\"v1\"", entry.etag);
+    }
+
+    @Test
+    public void cacheControlTakesPrecedenceOverExpires() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Date", "Thu, 01 Jan 2015 00:00:00 GMT");
+        headers.put("Expires", "Thu, 01 Jan 2015 01:00:00 GMT");
+        headers.put("Cache-Control", "max-age=10");
+        assertAbout(10000, parse(headers).softTtl);
+    }
+
+    @Test
+    public void unparseableDatesAreZero() {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Date", "yesterday");
+        headers.put("Expires", "0");
+        Cache.Entry entry = parse(headers);
+        assertEquals(0, entry.serverDate);
+        assertEquals(0, entry.softTtl);
+        assertEquals(0, HttpHeaderParser.parseDateAsEpoch("not a date"));
+    }
+
+    @Test
+    public void parseCharset() {
+        assertEquals("UTF-8", charset("text/html; charset=UTF-8"));
+        assertEquals("utf-8", charset("application/json;CHARSET = \"utf-8\""));
+        assertEquals("ISO-8859-2", charset("text/plain; format=flowed; charset=ISO-8859-2; x=y"));
+        assertEquals("fallback", charset("text/plain; format=flowed"));
+        assertEquals("fallback", charset("text/plain; charset="));
+        assertEquals("fallback", charset("text/plain; charset=\"\""));
+        assertEquals("fallback", charset("text/plain"));
+        assertEquals("fallback", HttpHeaderParser.parseCharset(new HashMap<String, String>(), "fallback"));
+        assertEquals("ISO-8859-1", HttpHeaderParser.parseCharset(new HashMap<String, String>()));
+    }
+
+    private static String charset(String contentType) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", contentType);
+        return HttpHeaderParser.parseCharset(headers, "fallback");
+    }
+
+    private static Cache.Entry parse(String name, String value) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(name, value);
+        return parse(headers);
+    }
+
+    private static Cache.Entry parse(Map<String, String> headers) {
+        return HttpHeaderParser.parseCacheHeaders(new NetworkResponse(new byte[0], headers));
+    }
+
+    /**
+     * ttl 约等于当前时间加上 deltaMs
+     */
+    private static void assertAbout(long deltaMs, long ttl) {
+        long expected = System.currentTimeMillis() + deltaMs;
+        assertTrue("expected ~" + expected + " but was " + ttl, Math.abs(ttl - expected) < CLOCK_SLACK_MS);
+    }
+}
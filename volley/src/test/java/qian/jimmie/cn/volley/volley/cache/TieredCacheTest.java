@@ -0,0 +1,109 @@
+package qian.jimmie.cn.volley.volley.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.HashMap;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * {@link TieredCache} 的内存命中通知下一级缓存,热点的 key 不会先从磁盘上被淘汰;
+ * 从下一级缓存读取期间只有同一个 key (分段) 的写入才会阻止读到的条目放入内存
+ */
+public class TieredCacheTest {
+    private static final int DISK_SIZE = 30 * 1024;
+    private static final int MEMORY_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void memoryHitsKeepHotKeyOnDisk() throws Exception {
+        DiskBasedCache disk = new DiskBasedCache(mTemp.newFolder("cache"), DISK_SIZE);
+        disk.setBackgroundSpaceManagerEnabled(false);
+        disk.initialize();
+        TieredCache cache = new TieredCache(disk, MEMORY_SIZE);
+
+        cache.put("hot", entry(3000));
+        for (int i = 0; i < 20; i++) {
+            cache.put("k" + i, entry(3000));
+            assertNotNull(cache.get("hot"));
+        }
+        assertEquals(20, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+        // 每次写入都超出磁盘容量,最久没有访问的条目被淘汰
+        assertNotNull(disk.get("hot"));
+    }
+
+    @Test
+    public void writeToOtherKeyDuringReadStillPromotes() throws Exception {
+        String other = otherStripe("target");
+        TieredCache cache = cacheWritingDuringRead("target", other);
+        cache.getBackingCache().put("target", entry(100));
+
+        assertNotNull(cache.get("target"));
+        assertEquals(1, cache.getMissCount());
+        // 第二次从内存中读取
+        assertNotNull(cache.get("target"));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void writeToSameKeyDuringReadIsNotOverwritten() throws Exception {
+        TieredCache cache = cacheWritingDuringRead("target", "target");
+        cache.getBackingCache().put("target", entry(100));
+
+        // 读到的是写入之前的条目,不放入内存
+        assertEquals(100, cache.get("target").data.length);
+        assertArrayEquals(entry(200).data, cache.get("target").data);
+        assertEquals(1, cache.getHitCount());
+    }
+
+    /**
+     * 下一级缓存第一次读取 readKey 时,通过 TieredCache 写入 writeKey (模拟另一个线程同时写入)
+     */
+    private TieredCache cacheWritingDuringRead(final String readKey, final String writeKey) throws Exception {
+        final TieredCache[] tiered = new TieredCache[1];
+        DiskBasedCache disk = new DiskBasedCache(mTemp.newFolder("cache"), DISK_SIZE) {
+            private boolean mWritten = false;
+
+            @Override
+            public Entry get(String key) {
+                Entry entry = super.get(key);
+                if (key.equals(readKey) && !mWritten) {
+                    mWritten = true;
+                    tiered[0].put(writeKey, entry(200));
+                }
+                return entry;
+            }
+        };
+        disk.setBackgroundSpaceManagerEnabled(false);
+        disk.initialize();
+        tiered[0] = new TieredCache(disk, MEMORY_SIZE);
+        return tiered[0];
+    }
+
+    private static String otherStripe(String key) {
+        for (int i = 0; ; i++) {
+            String other = "other" + i;
+            if (TieredCache.stripeFor(other) != TieredCache.stripeFor(key)) {
+                return other;
+            }
+        }
+    }
+
+    private static Cache.Entry entry(int size) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[size];
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        entry.responseHeaders = new HashMap<>();
+        return entry;
+    }
+}
@@ -0,0 +1,131 @@
+package qian.jimmie.cn.volley.volley.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import qian.jimmie.cn.volley.volley.cache.NoCache;
+import qian.jimmie.cn.volley.volley.core.interfaces.Network;
+import qian.jimmie.cn.volley.volley.dispatcher.ExecutorDelivery;
+import qian.jimmie.cn.volley.volley.exception.GreeError;
+import qian.jimmie.cn.volley.volley.request.Request;
+import qian.jimmie.cn.volley.volley.request.StringRequest;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+import qian.jimmie.cn.volley.volley.respone.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 带 GET 参数的预取请求按拼接参数后的 cache key 去重,提升和取消
+ */
+public class PrefetchTest {
+    private static final long NETWORK_DELAY_MS = 200;
+
+    private final ConcurrentHashMap<String, AtomicInteger> mHits = new ConcurrentHashMap<>();
+    private RequestQueue mQueue;
+
+    @Before
+    public void setUp() {
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws GreeError {
+                hitsFor(request.getUrl()).incrementAndGet();
+                try {
+                    Thread.sleep(NETWORK_DELAY_MS);
+                } catch (InterruptedException ignored) {
+                }
+                return new NetworkResponse(200, "ok".getBytes(), new HashMap<String, String>(), false);
+            }
+        };
+        Executor direct = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        mQueue = new RequestQueue(new NoCache(), network, 2, new ExecutorDelivery(direct));
+        mQueue.setMaxConcurrentPrefetches(1);
+        mQueue.start();
+    }
+
+    @After
+    public void tearDown() {
+        mQueue.cancelPrefetches();
+        mQueue.stop();
+    }
+
+    @Test
+    public void normalRequestReplacesPendingPrefetchWithParams() throws Exception {
+        mQueue.prefetch(requests("http://p/a", "http://p/b", "http://p/c"));
+        Thread.sleep(NETWORK_DELAY_MS / 4);
+        assertEquals(2, mQueue.getPendingPrefetchCount());
+
+        final CountDownLatch delivered = new CountDownLatch(1);
+        StringRequest request = withParams("http://p/c");
+        request.setListener(new Response.Listener<String>() {
+            @Override
+            public void onResponse(String response) {
+                delivered.countDown();
+            }
+        });
+        mQueue.add(request);
+        assertEquals(1, mQueue.getPendingPrefetchCount());
+
+        assertTrue(delivered.await(2, TimeUnit.SECONDS));
+        Thread.sleep(NETWORK_DELAY_MS * 3);
+        assertEquals(1, hitsFor("http://p/c?q=1&").get());
+        assertEquals(1, hitsFor("http://p/b?q=1&").get());
+    }
+
+    @Test
+    public void duplicatePrefetchesWithParamsAreDropped() throws Exception {
+        mQueue.prefetch(requests("http://p/a", "http://p/b", "http://p/b"));
+        assertEquals(1, mQueue.getPendingPrefetchCount());
+
+        // 之后预取的相同请求同样按拼接参数后的 key 去重
+        mQueue.prefetch(requests("http://p/b"));
+        assertEquals(1, mQueue.getPendingPrefetchCount());
+    }
+
+    @Test
+    public void cancelRemovesPendingPrefetchesWithParams() throws Exception {
+        mQueue.prefetch(requests("http://p/a", "http://p/b", "http://p/c"));
+        mQueue.cancelPrefetches();
+        assertEquals(0, mQueue.getPendingPrefetchCount());
+
+        Thread.sleep(NETWORK_DELAY_MS * 2);
+        assertEquals(0, hitsFor("http://p/b?q=1&").get());
+        assertEquals(0, hitsFor("http://p/c?q=1&").get());
+    }
+
+    private AtomicInteger hitsFor(String url) {
+        mHits.putIfAbsent(url, new AtomicInteger());
+        return mHits.get(url);
+    }
+
+    private static List<Request<?>> requests(String... urls) {
+        List<Request<?>> requests = new ArrayList<>();
+        for (String url : urls) {
+            requests.add(withParams(url));
+        }
+        return requests;
+    }
+
+    private static StringRequest withParams(String url) {
+        StringRequest request = new StringRequest();
+        request.setUrl(url);
+        request.setParams(new HashMap<>(Collections.singletonMap("q", "1")));
+        return request;
+    }
+}
@@ -0,0 +1,207 @@
+package qian.jimmie.cn.volley.volley.dispatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import qian.jimmie.cn.volley.volley.cache.CacheStats;
+import qian.jimmie.cn.volley.volley.cache.DiskBasedCache;
+import qian.jimmie.cn.volley.volley.cache.HttpHeaderParser;
+import qian.jimmie.cn.volley.volley.core.interfaces.Cache;
+import qian.jimmie.cn.volley.volley.core.interfaces.ResponseDelivery;
+import qian.jimmie.cn.volley.volley.exception.GreeError;
+import qian.jimmie.cn.volley.volley.exception.ParseError;
+import qian.jimmie.cn.volley.volley.network.HurlStack;
+import qian.jimmie.cn.volley.volley.network.LoopbackServer;
+import qian.jimmie.cn.volley.volley.request.Request;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+import qian.jimmie.cn.volley.volley.respone.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 以流的方式解析的大实体经过 {@link NetworkResponseHandler}: 边读边写入缓存,读取过程中取消时不写入缓存也不分发
+ */
+public class NetworkResponseHandlerStreamTest {
+    private static final int BODY_BYTES = 8 * 1024 * 1024;
+    private static final int READ_BUFFER_BYTES = 8 * 1024;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private static final byte[] sBody = newBody();
+
+    private LoopbackServer mServer;
+    private DiskBasedCache mCache;
+    private RecordingDelivery mDelivery;
+    private NetworkResponseHandler mHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new LoopbackServer(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                LoopbackServer.write(out, "HTTP/1.1 200 OK\r\nContent-Length: " + sBody.length
+                        + "\r\nCache-Control: max-age=60\r\n\r\n");
+                out.write(sBody);
+                out.flush();
+                return true;
+            }
+        });
+        mCache = new DiskBasedCache(mTemp.newFolder("cache"), 4L * BODY_BYTES);
+        mCache.setBackgroundSpaceManagerEnabled(false);
+        mCache.initialize();
+        mDelivery = new RecordingDelivery();
+        mHandler = new NetworkResponseHandler(mCache, mDelivery, new CacheStats());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+    }
+
+    @Test
+    public void largeBodyIsParsedAndTeedToCache() throws Exception {
+        ChecksumRequest request = perform("/large", Long.MAX_VALUE);
+
+        assertEquals(1, mDelivery.mResponses.size());
+        assertTrue(mDelivery.mErrors.isEmpty());
+        long[] result = (long[]) mDelivery.mResponses.get(0).result;
+        assertEquals(sBody.length, result[0]);
+        assertEquals(checksum(sBody), result[1]);
+
+        Cache.EntryStream cached = mCache.openForRead(request.getCacheKey());
+        assertNotNull(cached);
+        try {
+            assertEquals(sBody.length, cached.length);
+            long[] stored = read(cached.stream, null, Long.MAX_VALUE);
+            assertEquals(sBody.length, stored[0]);
+            assertEquals(checksum(sBody), stored[1]);
+        } finally {
+            cached.close();
+        }
+    }
+
+    @Test
+    public void cancelWhileStreamingSkipsCacheAndDelivery() throws Exception {
+        ChecksumRequest request = perform("/cancel", 1024 * 1024);
+
+        assertTrue(request.isCanceled());
+        assertTrue(mDelivery.mResponses.isEmpty());
+        assertTrue(mDelivery.mErrors.isEmpty());
+        assertNull(mCache.openForRead(request.getCacheKey()));
+        assertNull(mCache.get(request.getCacheKey()));
+    }
+
+    private ChecksumRequest perform(String path, long cancelAfter) throws Exception {
+        ChecksumRequest request = new ChecksumRequest(cancelAfter);
+        request.setUrl(mServer.url(path));
+        request.setTimeOut(10000);
+        mHandler.prepare(request, false);
+        NetworkResponse response = new HurlStack().performRequest(request, new HashMap<String, String>());
+        assertNull(response.data);
+        assertNotNull(response.stream);
+        assertNotNull(response.cacheWriter);
+        mHandler.onResponse(request, response, 0);
+        return request;
+    }
+
+    /**
+     * 读完流,返回读到的字节数和 CRC32. 读到 cancelAfter 个字节后取消请求
+     */
+    private static long[] read(InputStream in, Request<?> request, long cancelAfter) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[READ_BUFFER_BYTES];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, count);
+            total += count;
+            if (request != null && total >= cancelAfter) {
+                request.cancel();
+            }
+        }
+        return new long[]{total, crc.getValue()};
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    private static byte[] newBody() {
+        byte[] body = new byte[BODY_BYTES];
+        new Random(42).nextBytes(body);
+        return body;
+    }
+
+    /**
+     * 以 8 KB 的缓冲区读取流,结果为字节数和 CRC32,实体不留在内存中
+     */
+    private static final class ChecksumRequest extends Request<long[]> {
+        private final long mCancelAfter;
+
+        ChecksumRequest(long cancelAfter) {
+            mCancelAfter = cancelAfter;
+        }
+
+        @Override
+        public Request setListener(Response.Listener<long[]> listener) {
+            return this;
+        }
+
+        @Override
+        public boolean acceptsStream() {
+            return true;
+        }
+
+        @Override
+        public Response<long[]> parseNetworkResponse(NetworkResponse response) {
+            try {
+                long[] result = read(response.stream, this, mCancelAfter);
+                return Response.success(result, HttpHeaderParser.parseCacheHeaders(response));
+            } catch (IOException e) {
+                return Response.error(new ParseError(e));
+            }
+        }
+
+        @Override
+        public void deliverResponse(long[] response) {
+        }
+    }
+
+    private static final class RecordingDelivery implements ResponseDelivery {
+        final List<Response<?>> mResponses = new ArrayList<>();
+        final List<GreeError> mErrors = new ArrayList<>();
+
+        @Override
+        public void postResponse(Request<?> request, Response<?> response) {
+            mResponses.add(response);
+        }
+
+        @Override
+        public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
+            mResponses.add(response);
+        }
+
+        @Override
+        public void postError(Request<?> request, GreeError error) {
+            mErrors.add(error);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package qian.jimmie.cn.volley.volley.network;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.AsyncNetwork;
+import qian.jimmie.cn.volley.volley.exception.AuthFailureError;
+import qian.jimmie.cn.volley.volley.exception.GreeError;
+import qian.jimmie.cn.volley.volley.request.StringRequest;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link BasicAsyncNetwork} 的重试在回调线程上重新获取头部并发出请求,不占用 IO 线程
+ */
+public class BasicAsyncNetworkTest {
+
+    private LoopbackServer mServer;
+    private final NioHttpStack mStack = new NioHttpStack();
+
+    @After
+    public void tearDown() throws Exception {
+        mStack.shutdown();
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void retryRunsOnTheCallbackThread() throws Exception {
+        mServer = new LoopbackServer(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                if (exchange.connection == 1) {
+                    // 第一次请求的连接直接关闭
+                    return false;
+                }
+                LoopbackServer.respond(out, 200, "retried");
+                return true;
+            }
+        });
+        final List<String> headerThreads = new CopyOnWriteArrayList<>();
+        StringRequest request = new StringRequest() {
+            @Override
+            public Map<String, String> getHeaders() throws AuthFailureError {
+                headerThreads.add(Thread.currentThread().getName());
+                return super.getHeaders();
+            }
+        };
+        request.setUrl(mServer.url("/retry"));
+        request.setRetryTimes(1);
+
+        Result result = new Result();
+        new BasicAsyncNetwork(mStack).performRequest(request, result);
+        assertTrue(result.mDone.await(5, TimeUnit.SECONDS));
+        assertNull(result.mError);
+        assertEquals("retried", new String(result.mResponse.data, "ISO-8859-1"));
+
+        assertEquals(2, headerThreads.size());
+        assertEquals(Thread.currentThread().getName(), headerThreads.get(0));
+        assertTrue(headerThreads.get(1), headerThreads.get(1).startsWith("bees-async-retry"));
+    }
+
+    @Test
+    public void shutdownStopsRetries() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        mServer = new LoopbackServer(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                release.await();
+                return false;
+            }
+        });
+        StringRequest request = new StringRequest();
+        request.setUrl(mServer.url("/shutdown"));
+        request.setRetryTimes(3);
+
+        Result result = new Result();
+        BasicAsyncNetwork network = new BasicAsyncNetwork(mStack);
+        network.performRequest(request, result);
+        Thread.sleep(100);
+        network.shutdown();
+        try {
+            assertTrue(result.mDone.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        assertNotNull(result.mError);
+        assertEquals(1, mServer.getRequestCount());
+    }
+
+    private static final class Result implements AsyncNetwork.OnRequestComplete {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile NetworkResponse mResponse;
+        volatile GreeError mError;
+
+        @Override
+        public void onSuccess(NetworkResponse response) {
+            mResponse = response;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onError(GreeError error) {
+            mError = error;
+            mDone.countDown();
+        }
+    }
+}
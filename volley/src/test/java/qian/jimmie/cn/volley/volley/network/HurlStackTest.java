@@ -0,0 +1,71 @@
+package qian.jimmie.cn.volley.volley.network;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.util.HashMap;
+
+import qian.jimmie.cn.volley.volley.request.StringRequest;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link HurlStack} 读完响应后连接回到连接池,后面的请求复用同一条连接
+ */
+public class HurlStackTest {
+
+    private LoopbackServer mServer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void sequentialRequestsReuseOneConnection() throws Exception {
+        mServer = new LoopbackServer(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                LoopbackServer.respond(out, 200, "hello " + exchange.sequence);
+                return true;
+            }
+        });
+        HurlStack stack = new HurlStack();
+        for (int i = 1; i <= 3; i++) {
+            NetworkResponse response = stack.performRequest(request("/reuse"), new HashMap<String, String>());
+            assertEquals(200, response.statusCode);
+            assertEquals("hello " + i, new String(response.data, "ISO-8859-1"));
+        }
+        assertEquals(3, stack.getRequestCount());
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void connectionCloseIsNotReused() throws Exception {
+        mServer = new LoopbackServer(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                LoopbackServer.respond(out, 200, "bye", "Connection: close");
+                return false;
+            }
+        });
+        HurlStack stack = new HurlStack();
+        for (int i = 0; i < 3; i++) {
+            NetworkResponse response = stack.performRequest(request("/close"), new HashMap<String, String>());
+            assertEquals("bye", new String(response.data, "ISO-8859-1"));
+        }
+        assertEquals(3, stack.getRequestCount());
+        assertEquals(3, mServer.getConnectionCount());
+    }
+
+    private StringRequest request(String path) {
+        StringRequest request = new StringRequest();
+        request.setUrl(mServer.url(path));
+        return request;
+    }
+}
@@ -0,0 +1,231 @@
+package qian.jimmie.cn.volley.volley.network;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的本地 HTTP/1.1 服务器: 每条连接一个线程,按顺序读取请求,由 {@link Handler} 写出原始的应答.
+ * 记录建立的连接数和收到的请求数,用来检查连接是否被复用
+ */
+public class LoopbackServer implements Closeable {
+
+    private static final String CHARSET = "ISO-8859-1";
+
+    public interface Handler {
+        /**
+         * 写出应答
+         *
+         * @return false: 写完后关闭连接
+         */
+        boolean handle(Exchange exchange, OutputStream out) throws Exception;
+    }
+
+    /**
+     * 收到的一个请求
+     */
+    public static final class Exchange {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+        public final byte[] body;
+        /**
+         * 第几条连接,从 1 开始
+         */
+        public final int connection;
+        /**
+         * 这条连接上的第几个请求,从 1 开始
+         */
+        public final int sequence;
+
+        Exchange(String method, String path, Map<String, String> headers, byte[] body,
+                 int connection, int sequence) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+            this.connection = connection;
+            this.sequence = sequence;
+        }
+    }
+
+    private final ServerSocket mServer;
+    private final Handler mHandler;
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final List<Socket> mSockets = new ArrayList<>();
+    private volatile boolean mClosed = false;
+
+    public LoopbackServer(Handler handler) throws IOException {
+        mHandler = handler;
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread("loopback-accept") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServer.getLocalPort() + path;
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mServer.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+            mSockets.clear();
+        }
+    }
+
+    /**
+     * 写出带 Content-Length 的应答
+     *
+     * @param headers 额外的头部,每项为一整行 (例如 "Connection: close")
+     */
+    public static void respond(OutputStream out, int code, String body, String... headers) throws IOException {
+        byte[] data = body.getBytes(CHARSET);
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(code).append(code == 200 ? " OK" : " Status").append("\r\n");
+        head.append("Content-Length: ").append(data.length).append("\r\n");
+        for (String header : headers) {
+            head.append(header).append("\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(CHARSET));
+        out.write(data);
+        out.flush();
+    }
+
+    public static void write(OutputStream out, String raw) throws IOException {
+        out.write(raw.getBytes(CHARSET));
+        out.flush();
+    }
+
+    private void acceptLoop() {
+        while (!mClosed) {
+            final Socket socket;
+            try {
+                socket = mServer.accept();
+            } catch (IOException e) {
+                return;
+            }
+            final int connection = mConnectionCount.incrementAndGet();
+            synchronized (mSockets) {
+                mSockets.add(socket);
+            }
+            Thread thread = new Thread("loopback-" + connection) {
+                @Override
+                public void run() {
+                    serve(socket, connection);
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket, int connection) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            for (int sequence = 1; ; sequence++) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                }
+                byte[] body = readBody(in, headers);
+                String[] parts = requestLine.split(" ");
+                mRequestCount.incrementAndGet();
+                Exchange exchange = new Exchange(parts[0], parts[1], headers, body, connection, sequence);
+                if (!mHandler.handle(exchange, out)) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            // 客户端断开或者测试结束
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static byte[] readBody(InputStream in, Map<String, String> headers) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        String length = headers.get("Content-Length");
+        if (length != null) {
+            for (int i = Integer.parseInt(length); i > 0; i--) {
+                body.write(readByte(in));
+            }
+        } else if ("chunked".equalsIgnoreCase(headers.get("Transfer-Encoding"))) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                for (int i = 0; i < size; i++) {
+                    body.write(readByte(in));
+                }
+                readLine(in);
+            }
+            readLine(in);
+        }
+        return body.toByteArray();
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new IOException("unexpected end of stream");
+        }
+        return b;
+    }
+
+    /**
+     * @return 去掉 CRLF 的一行,连接关闭时返回 null
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return line.size() == 0 ? null : line.toString(CHARSET);
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(CHARSET);
+    }
+}
@@ -0,0 +1,277 @@
+package qian.jimmie.cn.volley.volley.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import qian.jimmie.cn.volley.volley.core.interfaces.AsyncHttpStack;
+import qian.jimmie.cn.volley.volley.request.StringRequest;
+import qian.jimmie.cn.volley.volley.respone.NetworkResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link NioHttpStack} 对本地服务器的请求: 实体的三种结束方式,连接复用,失效连接的重发,超时和取消
+ */
+public class NioHttpStackTest {
+
+    private LoopbackServer mServer;
+    private NioHttpStack mStack;
+
+    @Before
+    public void setUp() {
+        mStack = new NioHttpStack();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStack.shutdown();
+        if (mServer != null) {
+            mServer.close();
+        }
+    }
+
+    @Test
+    public void fixedLengthBody() throws Exception {
+        serve(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                LoopbackServer.respond(out, 200, "fixed " + exchange.path, "X-Test: a");
+                return true;
+            }
+        });
+        NetworkResponse response = perform(request("/fixed"));
+        assertEquals(200, response.statusCode);
+        assertEquals("fixed /fixed", body(response));
+        assertEquals("a", response.headers.get("x-test"));
+    }
+
+    @Test
+    public void chunkedBodyAcrossReads() throws Exception {
+        serve(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                LoopbackServer.write(out, "HTTP/1.1 200 OK\r\nTransfer-Encoding: Chunked\r\n\r\n5\r\nhel");
+                Thread.sleep(50);
+                LoopbackServer.write(out, "lo\r\n6;ext=1\r\n world\r\n0\r\nX-Trailer: t\r\n\r\n");
+                return true;
+            }
+        });
+        assertEquals("hello world", body(perform(request("/chunked"))));
+        // 读完 trailer 后连接可以复用
+        assertEquals("hello world", body(perform(request("/chunked"))));
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void bodyUntilClose() throws Exception {
+        serve(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                LoopbackServer.write(out, "HTTP/1.1 200 OK\r\n\r\nuntil close");
+                return false;
+            }
+        });
+        assertEquals("until close", body(perform(request("/close"))));
+        assertEquals("until close", body(perform(request("/close"))));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void keepAliveReusesOneConnection() throws Exception {
+        serve(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                LoopbackServer.respond(out, 200, "n" + exchange.sequence);
+                return true;
+            }
+        });
+        for (int i = 1; i <= 5; i++) {
+            assertEquals("n" + i, body(perform(request("/keep-alive"))));
+        }
+        assertEquals(5, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void connectionCloseIsNotReused() throws Exception {
+        serve(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                LoopbackServer.respond(out, 200, "bye", "Connection: close");
+                return false;
+            }
+        });
+        perform(request("/bye"));
+        perform(request("/bye"));
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void staleConnectionIsRetriedOnAFreshOne() throws Exception {
+        serve(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                if (exchange.connection == 1 && exchange.sequence == 2) {
+                    // 服务器已经放弃了这条空闲连接: 读到请求后直接关闭,不返回任何数据
+                    return false;
+                }
+                LoopbackServer.respond(out, 200, "c" + exchange.connection);
+                return true;
+            }
+        });
+        assertEquals("c1", body(perform(request("/stale"))));
+        assertEquals("c2", body(perform(request("/stale"))));
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(2, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void freshConnectionFailureIsNotRetried() throws Exception {
+        serve(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                return false;
+            }
+        });
+        try {
+            perform(request("/drop"));
+            fail("expected IOException");
+        } catch (IOException expected) {
+        }
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    @Test
+    public void timeoutWithoutProgress() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        serve(blockUntil(release));
+        StringRequest request = request("/slow");
+        request.setTimeOut(300);
+        long start = System.nanoTime();
+        try {
+            perform(request);
+            fail("expected SocketTimeoutException");
+        } catch (SocketTimeoutException expected) {
+        } finally {
+            release.countDown();
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("elapsed " + elapsedMs, elapsedMs >= 300 && elapsedMs < 3000);
+    }
+
+    @Test
+    public void cancelFailsTheRequest() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        serve(blockUntil(release));
+        StringRequest request = request("/cancel");
+        request.setTimeOut(10000);
+        Result result = new Result();
+        mStack.performRequest(request, new HashMap<String, String>(), result);
+        Thread.sleep(100);
+        request.cancel();
+        try {
+            result.await();
+            fail("expected InterruptedIOException");
+        } catch (InterruptedIOException expected) {
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void shutdownFailsPendingRequestsAndRestarts() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        serve(new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                if (exchange.path.equals("/block")) {
+                    release.await();
+                }
+                LoopbackServer.respond(out, 200, "after");
+                return true;
+            }
+        });
+        Result result = new Result();
+        mStack.performRequest(request("/block"), new HashMap<String, String>(), result);
+        Thread.sleep(100);
+        mStack.shutdown();
+        try {
+            result.await();
+            fail("expected IOException");
+        } catch (IOException expected) {
+        } finally {
+            release.countDown();
+        }
+        assertEquals("after", body(perform(request("/next"))));
+    }
+
+    private void serve(LoopbackServer.Handler handler) throws IOException {
+        mServer = new LoopbackServer(handler);
+    }
+
+    private StringRequest request(String path) {
+        StringRequest request = new StringRequest();
+        request.setUrl(mServer.url(path));
+        return request;
+    }
+
+    private NetworkResponse perform(StringRequest request) throws Exception {
+        Result result = new Result();
+        mStack.performRequest(request, new HashMap<String, String>(), result);
+        return result.await();
+    }
+
+    private static String body(NetworkResponse response) throws Exception {
+        return new String(response.data, "ISO-8859-1");
+    }
+
+    private static LoopbackServer.Handler blockUntil(final CountDownLatch release) {
+        return new LoopbackServer.Handler() {
+            @Override
+            public boolean handle(LoopbackServer.Exchange exchange, OutputStream out) throws Exception {
+                release.await();
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 等待回调的结果
+     */
+    static final class Result implements AsyncHttpStack.OnRequestComplete {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile NetworkResponse mResponse;
+        private volatile IOException mError;
+
+        @Override
+        public void onSuccess(NetworkResponse response) {
+            mResponse = response;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onError(IOException e) {
+            mError = e;
+            mDone.countDown();
+        }
+
+        NetworkResponse await() throws Exception {
+            assertTrue("no callback", mDone.await(5, TimeUnit.SECONDS));
+            if (mError != null) {
+                throw mError;
+            }
+            return mResponse;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package qian.jimmie.cn.volley.volley.utils;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link DateUtils} 的 IMF-fixdate 快速解析,格式化以及旧格式的回退
+ */
+public class DateUtilsTest {
+    /**
+     * RFC 7231 中的示例日期
+     */
+    private static final long EXAMPLE = 784111777000L;
+
+    @Test
+    public void parsesKnownFixdates() {
+        assertEquals(EXAMPLE, DateUtils.parseHttpDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(0L, DateUtils.parseHttpDate("Thu, 01 Jan 1970 00:00:00 GMT"));
+        assertEquals(951782400000L, DateUtils.parseHttpDate("Tue, 29 Feb 2000 00:00:00 GMT"));
+        assertEquals(EXAMPLE, DateUtils.parseDate("Sun, 06 Nov 1994 08:49:37 GMT").getTime());
+    }
+
+    @Test
+    public void formatsKnownDates() {
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", DateUtils.formatHttpDate(EXAMPLE));
+        assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", DateUtils.formatHttpDate(0));
+        assertEquals("Wed, 31 Dec 1969 23:59:59 GMT", DateUtils.formatHttpDate(-1));
+        // 毫秒被截掉
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", DateUtils.formatHttpDate(EXAMPLE + 999));
+    }
+
+    @Test
+    public void fastPathMatchesSimpleDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(DateUtils.PATTERN_RFC1123, Locale.US);
+        format.setTimeZone(DateUtils.GMT);
+        Random random = new Random(3);
+        // 1583 年到 9999 年
+        long min = -12212553600000L;
+        long max = 253402300799000L;
+        for (int i = 0; i < 10000; i++) {
+            long time = (min + (long) (random.nextDouble() * (max - min))) / 1000 * 1000;
+            String expected = format.format(new Date(time));
+            assertEquals(expected, DateUtils.formatHttpDate(time));
+            assertEquals(expected, time, DateUtils.parseFixdate(expected));
+            assertEquals(expected, time, DateUtils.parseHttpDate(expected));
+        }
+    }
+
+    @Test
+    public void yearsBeforeGregorianCalendarFallBack() throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat(DateUtils.PATTERN_RFC1123, Locale.US);
+        format.setTimeZone(DateUtils.GMT);
+        String text = "Fri, 01 Jan 1500 00:00:00 GMT";
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseFixdate(text));
+        long expected = format.parse(text).getTime();
+        assertEquals(expected, DateUtils.parseHttpDate(text));
+        assertEquals(format.format(new Date(expected)), DateUtils.formatHttpDate(expected));
+    }
+
+    @Test
+    public void legacyFormatsFallBack() {
+        // 两位年份从 2000 年开始算
+        assertEquals("Sat, 06 Nov 2094 08:49:37 GMT",
+                DateUtils.formatHttpDate(DateUtils.parseHttpDate("Saturday, 06-Nov-94 08:49:37 GMT")));
+        assertEquals(EXAMPLE, DateUtils.parseHttpDate("Sun Nov 6 08:49:37 1994"));
+        // 不是 GMT 的 RFC 1123 日期
+        assertEquals(EXAMPLE, DateUtils.parseHttpDate("Sun, 06 Nov 1994 09:49:37 +0100"));
+    }
+
+    @Test
+    public void strictFixdateRejectsNearMisses() {
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseFixdate("sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseFixdate("Sun, 06 nov 1994 08:49:37 GMT"));
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseFixdate("Sun, 06 Nov 1994 24:00:00 GMT"));
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseFixdate("Sun, 6 Nov 1994 08:49:37 GMT"));
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseFixdate("Sun, 06 Nov 1994 08:49:37 UTC"));
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseFixdate("Sun, 0x Nov 1994 08:49:37 GMT"));
+    }
+
+    @Test
+    public void invalidInputReturnsInvalidDate() {
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseHttpDate("not a date"));
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseHttpDate(""));
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseHttpDate("0"));
+        assertNull(DateUtils.parseDate("not a date"));
+    }
+
+    @Test
+    public void memoReturnsTheValueForTheSameText() {
+        String[] texts = new String[32];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = DateUtils.formatHttpDate(EXAMPLE + i * 1000L);
+        }
+        // 反复解析,槽位互相覆盖后结果仍然正确
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < texts.length; i++) {
+                assertEquals(EXAMPLE + i * 1000L, DateUtils.parseHttpDate(texts[i]));
+                assertEquals(EXAMPLE + i * 1000L, DateUtils.parseHttpDate(new String(texts[i])));
+            }
+        }
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseHttpDate("garbage"));
+        assertEquals(DateUtils.INVALID_DATE, DateUtils.parseHttpDate("garbage"));
+    }
+}